@@ -3,10 +3,15 @@ package at.salzburgresearch.nodekeeper;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
 import at.salzburgresearch.nodekeeper.handlers.DataHandler;
 import at.salzburgresearch.nodekeeper.handlers.impl.BooleanHandler;
+import at.salzburgresearch.nodekeeper.handlers.impl.ByteArrayHandler;
 import at.salzburgresearch.nodekeeper.handlers.impl.IntegerHandler;
+import at.salzburgresearch.nodekeeper.handlers.impl.JsonDataHandler;
 import at.salzburgresearch.nodekeeper.handlers.impl.LongHandler;
 import at.salzburgresearch.nodekeeper.handlers.impl.StringDataHandler;
 import at.salzburgresearch.nodekeeper.model.Node;
+import at.salzburgresearch.nodekeeper.timer.TimingWheel;
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -19,6 +24,8 @@ import java.lang.InterruptedException;
 import java.lang.Override;
 import java.lang.String;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -37,6 +44,8 @@ public class NodeKeeper implements Watcher {
     private static Logger log = LoggerFactory.getLogger(NodeKeeper.class);
     private static HashMap<Class,DataHandler> handlers = new HashMap<Class, DataHandler>();
     private static final String PATH_SEPARATOR = "/";
+    //the prefix of the properties that hold the time to live of a node
+    private static final String TTL_PREFIX = "ttl:";
 
     private ZooKeeper zk;
     private Properties properties;
@@ -44,7 +53,17 @@ public class NodeKeeper implements Watcher {
     private String connectionString;
     private int sessionTimeout;
 
-    private HashMap<String,List<NodeListener>> listeners = new HashMap<String,List<NodeListener>>();
+    //listeners may be added and removed while an event is delivered
+    private ConcurrentHashMap<String,List<NodeListener>> listeners = new ConcurrentHashMap<String,List<NodeListener>>();
+    private volatile boolean listening = false;
+
+    //the thread that delivers the events of the current connection
+    private volatile Thread eventThread;
+
+    private EventTracer tracer = new EventTracer();
+
+    private TimingWheel timers;
+    private ConcurrentHashMap<String,TimingWheel.Timeout> expiries = new ConcurrentHashMap<String, TimingWheel.Timeout>();
 
     /**
      * NodeKeeper enables a ZooKeeper connection.
@@ -78,6 +97,8 @@ public class NodeKeeper implements Watcher {
         this.addDataHandler(new IntegerHandler());
         this.addDataHandler(new BooleanHandler());
         this.addDataHandler(new LongHandler());
+        this.addDataHandler(new ByteArrayHandler());
+        this.addDataHandler(new JsonDataHandler());
 
         init(false);
     }
@@ -87,6 +108,7 @@ public class NodeKeeper implements Watcher {
         zk = new ZooKeeper(connectionString, sessionTimeout, new Watcher() {
             @Override
             public void process(WatchedEvent event) {
+                eventThread = Thread.currentThread();
                 switch(event.getState()) {
                     case SyncConnected:
                         connectedSignal.countDown();
@@ -123,12 +145,138 @@ public class NodeKeeper implements Watcher {
     }
 
     public void startListeners() throws InterruptedException, NodeKeeperException, IOException {
+        //set before the traversal, so listeners that are added during the traversal are served by it
+        listening = true;
         try {
             deleteRemoved();
             appendWatcherToSubnodes(startNode);
         } catch (KeeperException e) {
             throw new NodeKeeperException("cannot append listeners", e);
         }
+        //the expiry times are derived from the modification times, so they survive a restart
+        for(String key : properties.stringPropertyNames()) {
+            if(key.startsWith(TTL_PREFIX)) armExpiry(key.substring(TTL_PREFIX.length()));
+        }
+    }
+
+    /**
+     * @return true if the listeners have been started by {@link #startListeners()}, so watchers are appended to all
+     * known nodes and every change is delivered to the listeners without another traversal
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * returns the paths of all nodes that are known from the last traversal and the events since, without a round trip
+     * to zookeeper
+     * @return the known node paths
+     */
+    public Set<String> getKnownPaths() {
+        Set<String> paths = new HashSet<String>();
+        for(String key : properties.stringPropertyNames()) {
+            if(key.startsWith(PATH_SEPARATOR)) paths.add(key);
+        }
+        return paths;
+    }
+
+    /**
+     * @return the timing wheel of the node keeper, which is started on first use; its tasks run on the timer thread
+     */
+    public synchronized TimingWheel getTimers() {
+        if(timers == null) timers = new TimingWheel(100, TimeUnit.MILLISECONDS);
+        return timers;
+    }
+
+    /**
+     * Deletes the node when it has not been modified for the time to live. Every update of the node restarts the time
+     * to live; a node that has children when it expires is not deleted. The time to live is stored in the properties,
+     * so it is restored by {@link #startListeners()}.
+     * @param path the path of the node
+     * @param ttl the time to live in milliseconds
+     */
+    public void expire(String path, long ttl) {
+        if(ttl <= 0) throw new IllegalArgumentException(String.format("the time to live of node %s must be positive, found %s", path, ttl));
+        properties.setProperty(TTL_PREFIX + path, String.valueOf(ttl));
+        armExpiry(path);
+    }
+
+    /**
+     * removes the time to live of a node
+     */
+    public void persist(String path) {
+        properties.remove(TTL_PREFIX + path);
+        TimingWheel.Timeout timeout = expiries.remove(path);
+        if(timeout != null) getTimers().cancel(timeout);
+    }
+
+    /**
+     * @return the time to live of the node in milliseconds or -1 if it does not expire
+     */
+    public long getTimeToLive(String path) {
+        String ttl = properties.getProperty(TTL_PREFIX + path);
+        return ttl != null ? Long.parseLong(ttl) : -1;
+    }
+
+    //schedules the expiry of a node at its modification time plus the time to live
+    private void armExpiry(final String path) {
+        zk.exists(path, false, new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String p, Object ctx, Stat stat) {
+                long ttl = getTimeToLive(path);
+                if(ttl < 0) return;
+                if(rc == KeeperException.Code.NONODE.intValue()) {
+                    persist(path);
+                } else if(rc != KeeperException.Code.OK.intValue()) {
+                    log.warn(String.format("cannot arm the expiry of node %s: %s", path, KeeperException.Code.get(rc)));
+                } else {
+                    TimingWheel.Timeout timeout = getTimers().scheduleAt(new Runnable() {
+                        @Override
+                        public void run() {
+                            expireNode(path);
+                        }
+                    }, stat.getMtime() + ttl);
+                    TimingWheel.Timeout previous = expiries.put(path, timeout);
+                    if(previous != null) getTimers().cancel(previous);
+                }
+            }
+        }, null);
+    }
+
+    //deletes the node if it has not been modified since, otherwise re-arms the expiry
+    private void expireNode(final String path) {
+        zk.exists(path, false, new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String p, Object ctx, Stat stat) {
+                long ttl = getTimeToLive(path);
+                if(ttl < 0) return;
+                if(rc == KeeperException.Code.NONODE.intValue()) {
+                    persist(path);
+                } else if(rc != KeeperException.Code.OK.intValue()) {
+                    log.warn(String.format("cannot expire node %s: %s", path, KeeperException.Code.get(rc)));
+                } else if(stat.getMtime() + ttl > System.currentTimeMillis()) {
+                    armExpiry(path);
+                } else {
+                    zk.delete(path, stat.getVersion(), new AsyncCallback.VoidCallback() {
+                        @Override
+                        public void processResult(int rc, String p, Object ctx) {
+                            if(rc == KeeperException.Code.BADVERSION.intValue()) {
+                                //modified in the meantime
+                                armExpiry(path);
+                            } else if(rc == KeeperException.Code.NOTEMPTY.intValue()) {
+                                log.warn(String.format("node %s expired but has children, it is not deleted", path));
+                                persist(path);
+                            } else if(rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                                log.debug(String.format("node %s expired", path));
+                                persist(path);
+                            } else {
+                                log.warn(String.format("cannot expire node %s: %s", path, KeeperException.Code.get(rc)));
+                            }
+                        }
+                    }, null);
+                }
+            }
+        }, null);
     }
 
     private void appendWatcherToSubnodes(String path) throws KeeperException, InterruptedException, NodeKeeperException, IOException {
@@ -145,28 +293,68 @@ public class NodeKeeper implements Watcher {
     }
 
     private void handleNode(String path, Stat stat, Event.EventType version) throws KeeperException, InterruptedException, NodeKeeperException, IOException {
-        for(String pattern : listeners.keySet()) {
-            if(path.matches(pattern)) {
-                for(NodeListener listener : listeners.get(pattern)) {
-                    if(handlers.containsKey(listener.getType())) {
-                        switch (version) {
-                            case NodeCreated:
-                                listener.onNodeCreated(new Node(path,handlers.get(listener.getType()).parse(zk.getData(path,this,stat))));
-                                break;
-                            case NodeDataChanged:
-                                listener.onNodeUpdated(new Node(path,handlers.get(listener.getType()).parse(zk.getData(path,this,stat))));
-                                break;
-                            case NodeDeleted:
-                                listener.onNodeDeleted(new Node(path));
-                                break;
-                        }
-                    } else throw new NodeKeeperException(String.format("cannot handle type %s",listener.getType()));
+        Span span = tracer.startTrace("handle", path);
+        if(span != null) span.tag("type", version);
+        try {
+            //the data is read once per event and parsed once per type, so all listeners of a type get the same node
+            byte[] data = null;
+            HashMap<Class,Node> nodes = new HashMap<Class, Node>();
+            for(String pattern : listeners.keySet()) {
+                if(path.matches(pattern)) {
+                    for(NodeListener listener : listeners.get(pattern)) {
+                        //a declined node is neither read nor delivered to the listener
+                        if(!listener.accepts(path)) continue;
+                        if(handlers.containsKey(listener.getType())) {
+                            Node node = nodes.get(listener.getType());
+                            if(node == null) {
+                                if(version == Event.EventType.NodeDeleted) {
+                                    node = new Node(path);
+                                } else {
+                                    if(data == null) {
+                                        Span fetch = tracer.start("fetch");
+                                        try {
+                                            data = zk.getData(path,this,stat);
+                                        } finally {
+                                            tracer.finish(fetch);
+                                        }
+                                    }
+                                    Span decode = tracer.start("decode");
+                                    if(decode != null) decode.tag("class", listener.getType().getName());
+                                    try {
+                                        node = new Node(path,handlers.get(listener.getType()).parse(data),stat != null ? stat.getVersion() : -1);
+                                    } finally {
+                                        tracer.finish(decode);
+                                    }
+                                }
+                                nodes.put(listener.getType(), node);
+                            }
+                            Span listen = tracer.start("listener");
+                            if(listen != null) listen.tag("listener", listener.getClass().getName());
+                            try {
+                                switch (version) {
+                                    case NodeCreated:
+                                        listener.onNodeCreated(node);
+                                        break;
+                                    case NodeDataChanged:
+                                        listener.onNodeUpdated(node);
+                                        break;
+                                    case NodeDeleted:
+                                        listener.onNodeDeleted(node);
+                                        break;
+                                }
+                            } finally {
+                                tracer.finish(listen);
+                            }
+                        } else throw new NodeKeeperException(String.format("cannot handle type %s",listener.getType()));
+                    }
                 }
             }
+            if(version == Event.EventType.NodeDeleted)
+                removeStatus(path);
+            else setStatus(path, stat.getVersion());
+        } finally {
+            tracer.finish(span);
         }
-        if(version == Event.EventType.NodeDeleted)
-            removeStatus(path);
-        else setStatus(path, stat.getVersion());
     }
 
     @Override
@@ -180,10 +368,22 @@ public class NodeKeeper implements Watcher {
                     appendWatcherToSubnodes(watchedEvent.getPath().equals("/") ? "/" + child : watchedEvent.getPath() + "/" + child);
                 }
             } else {
-                Stat stat = zk.exists(watchedEvent.getPath(),this);
+                Span span = tracer.startTrace("event", watchedEvent.getPath());
+                if(span != null) span.tag("type", watchedEvent.getType());
+                try {
+                    Span exists = tracer.start("exists");
+                    Stat stat;
+                    try {
+                        stat = zk.exists(watchedEvent.getPath(),this);
+                    } finally {
+                        tracer.finish(exists);
+                    }
 
-                if(stat != null && watchedEvent.getPath().equals(startNode)) appendWatcherToSubnodes(watchedEvent.getPath());
-                else handleNode(watchedEvent.getPath(),stat, watchedEvent.getType());
+                    if(stat != null && watchedEvent.getPath().equals(startNode)) appendWatcherToSubnodes(watchedEvent.getPath());
+                    else handleNode(watchedEvent.getPath(),stat, watchedEvent.getType());
+                } finally {
+                    tracer.finish(span);
+                }
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -197,6 +397,14 @@ public class NodeKeeper implements Watcher {
         }
     }
 
+    /**
+     * returns true if the current thread delivers the zookeeper events. The callbacks of asynchronous requests are
+     * delivered by the same thread, so awaiting them on it blocks forever.
+     */
+    public boolean isEventThread() {
+        return Thread.currentThread() == eventThread;
+    }
+
     /**
      * returns the ZooKeeper connection if it is connected
      * @return
@@ -205,11 +413,29 @@ public class NodeKeeper implements Watcher {
         return zk;
     }
 
+    /**
+     * @return the tracer of the node events, which samples no event by default
+     */
+    public EventTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * sets the tracer of the node events, see {@link EventTracer}
+     */
+    public void setTracer(EventTracer tracer) {
+        this.tracer = tracer;
+    }
+
     /**
      * shut down ZooKeeper connection
      * @throws InterruptedException
      */
     public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            if(timers != null) timers.stop();
+            timers = null;
+        }
         if(zk != null) {
             zk.close();
             log.info(" - nodekeeper closed");
@@ -226,18 +452,17 @@ public class NodeKeeper implements Watcher {
      * @throws at.salzburgresearch.nodekeeper.exception.NodeKeeperException
      */
     public <T> Node<T> readNode(String path, Class<T> clazz) throws InterruptedException, NodeKeeperException, IOException {
+        if(!handlers.containsKey(clazz)) return null;
         try {
-            Stat stat;
-            if((stat=zk.exists(path,false))!=null) {
-                if(handlers.containsKey(clazz)) {
-                    byte[] data = zk.getData(path,false,stat);
-                    return new Node(path,handlers.get(clazz).parse(data),stat.getVersion());
-                }
-            }
+            //a single round trip, a missing node is reported by getData
+            Stat stat = new Stat();
+            byte[] data = zk.getData(path,false,stat);
+            return new Node(path,handlers.get(clazz).parse(data),stat.getVersion());
+        } catch (KeeperException.NoNodeException e) {
+            return null;
         } catch (KeeperException e) {
             throw new NodeKeeperException(String.format("cannot read node %s (class: %s)",path,clazz), e);
         }
-        return null;
     }
 
     private void buildRecursively(String path, byte[] data) throws InterruptedException, NodeKeeperException {
@@ -260,6 +485,9 @@ public class NodeKeeper implements Watcher {
      * @param <T> the handler for writing the data
      */
     public <T> void writeNode(Node<T> node, Class<T> clazz) throws InterruptedException, NodeKeeperException, IOException {
+        //a write of a traced event is the cause of the event it triggers
+        Span span = tracer.start("write");
+        if(span != null) span.tag("path", node.getPath());
         try {
             Stat stat;
             //set if exists
@@ -283,8 +511,11 @@ public class NodeKeeper implements Watcher {
                     throw new NodeKeeperException(String.format("cannot find handler for '%s'",node.getData().getClass().getName()));
                 }
             }
+            tracer.caused(node.getPath(), span);
         } catch (KeeperException e) {
             throw new NodeKeeperException(String.format("cannot write data for node '%s'", node.getPath()), e);
+        } finally {
+            tracer.finish(span);
         }
     }
 
@@ -296,13 +527,18 @@ public class NodeKeeper implements Watcher {
      * @throws NodeKeeperException
      */
     public <T> void deleteNode(Node<T> node) throws InterruptedException, NodeKeeperException {
+        Span span = tracer.start("delete");
+        if(span != null) span.tag("path", node.getPath());
         try {
             Stat stat;
             if((stat=zk.exists(node.getPath(),false))!=null) {
                 zk.delete(node.getPath(),stat.getVersion());
+                tracer.caused(node.getPath(), span);
             }
         } catch (KeeperException e) {
             throw new NodeKeeperException(String.format("cannot delete node '%s'", node.getPath()), e);
+        } finally {
+            tracer.finish(span);
         }
     }
 
@@ -356,33 +592,30 @@ public class NodeKeeper implements Watcher {
 
     /**
      * Appends a listener to the pathPattern. The methods of the lister are called when a node that matches the pathPattern
-     * is created, updated or deleted.
+     * is created, updated or deleted. Listeners may be added and removed while an event is delivered, e.g. by a listener.
      * @param pathPattern a regular expression that declares the node the listener is listen to.
      * @param listener a implementation of the NodeListener interface that handles the node events create, update and delete.
      * @throws NodeKeeperException
      */
     public void addListener(String pathPattern, NodeListener listener) throws NodeKeeperException {
         listener.nodekeeper = this;
-        if(!listeners.containsKey(pathPattern)) {
-            listeners.put(pathPattern,new ArrayList<NodeListener>());
-        }
+        listeners.putIfAbsent(pathPattern, new CopyOnWriteArrayList<NodeListener>());
         listeners.get(pathPattern).add(listener);
     }
 
     public void removeListener(String pathPattern, NodeListener listener) {
-        if(listeners.containsKey(pathPattern)) {
-            if(listeners.get(pathPattern).contains(listener)) listeners.get(pathPattern).remove(listener);
-        }
+        List<NodeListener> patternListeners = listeners.get(pathPattern);
+        if(patternListeners != null) patternListeners.remove(listener);
     }
 
     private void deleteRemoved() throws KeeperException, InterruptedException, NodeKeeperException {
-        for (String path : properties.stringPropertyNames()) {
+        for (String path : getKnownPaths()) {
             for(String pathPattern : listeners.keySet()) {
                 if (!path.matches(pathPattern)) continue;
                 if (zk.exists(path, false) == null) {
                     Node node = new Node(path);
                     for(NodeListener listener : listeners.get(pathPattern)) {
-                        listener.onNodeDeleted(node);
+                        if(listener.accepts(path)) listener.onNodeDeleted(node);
                     }
                     removeStatus(path);
                 }
@@ -24,6 +24,16 @@ public abstract class NodeListener<T> implements Comparable<T> {
 
     public abstract Class<T> getType();
 
+    /**
+     * is asked before an event of a node is delivered to this listener and before the data of the node is read for it.
+     * A listener with a broad pattern can decline the nodes it does not handle, so their data is neither read nor
+     * parsed for it. The default accepts all nodes.
+     * @param path the path of the node
+     */
+    public boolean accepts(String path) {
+        return true;
+    }
+
     public int compareTo(Object o) {
         return id.compareTo(((NodeListener)o).id);
     }
@@ -0,0 +1,340 @@
+package at.salzburgresearch.nodekeeper.bench;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.NodeListener;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator that drives read, write and list operations through NodeKeeper and measures throughput and latency.
+ * Written values carry the write timestamp, so listeners appended to the key space measure the end-to-end latency
+ * from write to listener callback. All nodes are created below {@link #getBasePath()} and removed at the end.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class Benchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(Benchmark.class);
+
+    public static final String BASE_PATH = "/nodekeeper-bench";
+
+    public enum Operation {
+        read, write, list
+    }
+
+    private NodeKeeper nodeKeeper;
+    private String basePath;
+
+    private int threads = 4;
+    private int keys = 1000;
+    private int valueSize = 100;
+    private int[] mix = new int[]{80, 20, 0};
+    private int listeners = 0;
+    private int warmup = 5;
+    private int duration = 30;
+
+    /**
+     * @param nodeKeeper the nodekeeper instance, should have {@link #BASE_PATH} as start node, otherwise the whole
+     *                   tree is traversed when the listeners are started
+     */
+    public Benchmark(NodeKeeper nodeKeeper) {
+        this.nodeKeeper = nodeKeeper;
+        this.basePath = BASE_PATH + "/" + UUID.randomUUID().toString();
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    public void setValueSize(int valueSize) {
+        this.valueSize = valueSize;
+    }
+
+    /**
+     * @param mix the read:write:list ratio, e.g. "70:25:5"
+     */
+    public void setMix(String mix) {
+        String[] parts = mix.split(":");
+        int[] m = new int[3];
+        for(int i = 0; i < parts.length && i < 3; i++) {
+            m[i] = Integer.parseInt(parts[i].trim());
+        }
+        if(m[0] + m[1] + m[2] <= 0) throw new IllegalArgumentException(String.format("mix %s does not contain any operation", mix));
+        this.mix = m;
+    }
+
+    /**
+     * @param listeners the number of listeners that are appended to the key space
+     */
+    public void setListeners(int listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * @param warmup warmup in seconds, operations of the warmup are not measured
+     */
+    public void setWarmup(int warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * @param duration measurement duration in seconds
+     */
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    public Result run() throws InterruptedException, NodeKeeperException, IOException {
+        log.info("prepare {} keys below {}", keys, basePath);
+        for(int i = 0; i < keys; i++) {
+            nodeKeeper.writeNode(new Node<String>(key(i), value(Long.MIN_VALUE)), String.class);
+        }
+
+        final long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        final long measureEnd = measureStart + TimeUnit.SECONDS.toNanos(duration);
+
+        //listeners measure write -> callback latency
+        final LatencyRecorder callbacks = new LatencyRecorder();
+        final AtomicLong events = new AtomicLong();
+        String pattern = basePath + "/.+";
+        List<NodeListener> appended = new ArrayList<NodeListener>();
+        for(int i = 0; i < listeners; i++) {
+            NodeListener<String> listener = new NodeListener<String>() {
+                @Override
+                public void onNodeCreated(Node<String> node) {
+                }
+
+                @Override
+                public void onNodeUpdated(Node<String> node) {
+                    long now = System.nanoTime();
+                    long stamp = stamp(node.getData());
+                    if(stamp >= measureStart && stamp < measureEnd) {
+                        events.incrementAndGet();
+                        synchronized (callbacks) {
+                            callbacks.record(now - stamp);
+                        }
+                    }
+                }
+
+                @Override
+                public void onNodeDeleted(Node<String> node) {
+                }
+
+                @Override
+                public Class<String> getType() {
+                    return String.class;
+                }
+            };
+            nodeKeeper.addListener(pattern, listener);
+            appended.add(listener);
+        }
+        if(listeners > 0) nodeKeeper.startListeners();
+
+        log.info("run {} threads, warmup {}s, duration {}s", threads, warmup, duration);
+        List<Worker> workers = new ArrayList<Worker>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> running = new ArrayList<Future<?>>();
+            for(int i = 0; i < threads; i++) {
+                Worker worker = new Worker(measureStart, measureEnd);
+                workers.add(worker);
+                running.add(executor.submit(worker));
+            }
+            for(Future<?> future : running) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new NodeKeeperException("benchmark failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Result result = new Result(duration, threads, keys, valueSize, mix, listeners);
+        for(Worker worker : workers) {
+            result.add(worker);
+        }
+
+        //give the last events some time to arrive
+        if(listeners > 0) Thread.sleep(1000);
+
+        for(NodeListener listener : appended) {
+            nodeKeeper.removeListener(pattern, listener);
+        }
+        synchronized (callbacks) {
+            result.callbacks.add(callbacks);
+        }
+        result.events = events.get();
+
+        nodeKeeper.deleteNode(new Node<String>(basePath), true);
+        return result;
+    }
+
+    private String key(int i) {
+        return basePath + "/k" + i;
+    }
+
+    private String value(long stamp) {
+        StringBuilder b = new StringBuilder(valueSize + 20);
+        b.append(stamp).append(':');
+        while(b.length() < valueSize) b.append('x');
+        return b.toString();
+    }
+
+    private static long stamp(String value) {
+        int i = value == null ? -1 : value.indexOf(':');
+        if(i <= 0) return Long.MIN_VALUE;
+        try {
+            return Long.parseLong(value.substring(0, i));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private long measureStart, measureEnd;
+        private LatencyRecorder[] recorders = new LatencyRecorder[Operation.values().length];
+        private long[] errors = new long[Operation.values().length];
+        private Random random = new Random();
+
+        private Worker(long measureStart, long measureEnd) {
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            for(int i = 0; i < recorders.length; i++) {
+                recorders[i] = new LatencyRecorder();
+            }
+        }
+
+        private Operation next() {
+            int r = random.nextInt(mix[0] + mix[1] + mix[2]);
+            if(r < mix[0]) return Operation.read;
+            if(r < mix[0] + mix[1]) return Operation.write;
+            return Operation.list;
+        }
+
+        @Override
+        public void run() {
+            long start;
+            while((start = System.nanoTime()) < measureEnd && !Thread.currentThread().isInterrupted()) {
+                Operation operation = next();
+                try {
+                    switch (operation) {
+                        case read:
+                            nodeKeeper.readNode(key(random.nextInt(keys)), String.class);
+                            break;
+                        case write:
+                            nodeKeeper.writeNode(new Node<String>(key(random.nextInt(keys)), value(System.nanoTime())), String.class);
+                            break;
+                        case list:
+                            nodeKeeper.nbOfChildren(basePath);
+                            break;
+                    }
+                    if(start >= measureStart) recorders[operation.ordinal()].record(System.nanoTime() - start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    if(start >= measureStart) errors[operation.ordinal()]++;
+                    log.debug("{} failed: {}", operation, e.getMessage());
+                }
+            }
+        }
+    }
+
+    public static class Result {
+
+        private int duration, threads, keys, valueSize, listeners;
+        private int[] mix;
+
+        private Map<Operation,LatencyRecorder> operations = new LinkedHashMap<Operation, LatencyRecorder>();
+        private Map<Operation,Long> errors = new LinkedHashMap<Operation, Long>();
+        private LatencyRecorder callbacks = new LatencyRecorder();
+        private long events = 0;
+
+        private Result(int duration, int threads, int keys, int valueSize, int[] mix, int listeners) {
+            this.duration = duration;
+            this.threads = threads;
+            this.keys = keys;
+            this.valueSize = valueSize;
+            this.mix = mix;
+            this.listeners = listeners;
+            for(Operation operation : Operation.values()) {
+                operations.put(operation, new LatencyRecorder());
+                errors.put(operation, 0L);
+            }
+        }
+
+        private void add(Worker worker) {
+            for(Operation operation : Operation.values()) {
+                operations.get(operation).add(worker.recorders[operation.ordinal()]);
+                errors.put(operation, errors.get(operation) + worker.errors[operation.ordinal()]);
+            }
+        }
+
+        public LatencyRecorder getLatency(Operation operation) {
+            return operations.get(operation);
+        }
+
+        public long getErrors(Operation operation) {
+            return errors.get(operation);
+        }
+
+        /**
+         * @return the write to listener callback latencies
+         */
+        public LatencyRecorder getCallbackLatency() {
+            return callbacks;
+        }
+
+        public double getThroughput(Operation operation) {
+            return (double) operations.get(operation).getCount() / duration;
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("threads=%s keys=%s valueSize=%s mix(read:write:list)=%s listeners=%s duration=%ss",
+                    threads, keys, valueSize, Arrays.toString(mix), listeners, duration));
+            out.println(String.format("%-9s %10s %10s %8s %10s %10s %10s %10s %10s %10s",
+                    "operation", "count", "ops/s", "errors", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+            for(Operation operation : Operation.values()) {
+                LatencyRecorder r = operations.get(operation);
+                if(r.getCount() == 0 && errors.get(operation) == 0) continue;
+                print(out, operation.name(), r, getThroughput(operation), errors.get(operation));
+            }
+            if(listeners > 0) {
+                print(out, "callback", callbacks, (double) events / duration, 0);
+            }
+        }
+
+        private void print(PrintStream out, String name, LatencyRecorder r, double throughput, long errors) {
+            out.println(String.format("%-9s %10d %10.1f %8d %10.1f %10d %10d %10d %10d %10d",
+                    name, r.getCount(), throughput, errors, r.getMean() / 1000,
+                    r.getPercentile(50) / 1000, r.getPercentile(90) / 1000, r.getPercentile(99) / 1000,
+                    r.getPercentile(99.9) / 1000, r.getMax() / 1000));
+        }
+    }
+}
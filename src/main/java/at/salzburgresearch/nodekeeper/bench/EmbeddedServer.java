@@ -0,0 +1,55 @@
+package at.salzburgresearch.nodekeeper.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A standalone zookeeper server that runs in-process on a random port with a temporary data directory, e.g. to
+ * benchmark nodekeeper without a running ensemble.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class EmbeddedServer {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedServer.class);
+
+    private static final int TICK_TIME = 2000;
+    private static final int MAX_CONNECTIONS = 5000;
+
+    private File directory;
+    private ZooKeeperServer server;
+    private ServerCnxnFactory factory;
+
+    /**
+     * starts the server
+     * @return the connection string of the server
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public String start() throws IOException, InterruptedException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "nodekeeper_" + UUID.randomUUID().toString());
+        if(!directory.mkdirs()) throw new IOException("cannot create data directory " + directory.getAbsolutePath());
+
+        server = new ZooKeeperServer(directory, directory, TICK_TIME);
+        factory = ServerCnxnFactory.createFactory(0, MAX_CONNECTIONS);
+        factory.startup(server);
+
+        String connectionString = "127.0.0.1:" + factory.getLocalPort();
+        log.info("embedded zookeeper runs on {}, data directory is {}", connectionString, directory.getAbsolutePath());
+        return connectionString;
+    }
+
+    public void stop() throws IOException {
+        if(factory != null) factory.shutdown();
+        if(server != null) server.shutdown();
+        if(directory != null) FileUtils.deleteDirectory(directory);
+        log.info("embedded zookeeper stopped");
+    }
+}
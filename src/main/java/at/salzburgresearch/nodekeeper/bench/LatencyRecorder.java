@@ -0,0 +1,100 @@
+package at.salzburgresearch.nodekeeper.bench;
+
+/**
+ * A log-linear latency histogram (32 sub buckets per power of two, so values are stored with ~3% precision). Recording is
+ * allocation free; instances are not thread safe, use one recorder per thread and {@link #add(LatencyRecorder)} them.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+    private long min = Long.MAX_VALUE;
+
+    /**
+     * @param nanos a latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        count++;
+        sum += nanos;
+        if(nanos > max) max = nanos;
+        if(nanos < min) min = nanos;
+    }
+
+    public void add(LatencyRecorder other) {
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+        min = Math.min(min, other.min);
+    }
+
+    public void reset() {
+        counts = new long[BUCKETS];
+        count = 0;
+        sum = 0;
+        max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the (approximated) latency in nanoseconds at the percentile
+     */
+    public long getPercentile(double percentile) {
+        if(count == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        if(rank < 1) rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= rank) return Math.min(value(i), max);
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the upper bound of the bucket
+     */
+    static long value(int index) {
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,398 @@
+package at.salzburgresearch.nodekeeper.bench;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.NodeListener;
+import at.salzburgresearch.nodekeeper.eca.Action;
+import at.salzburgresearch.nodekeeper.eca.Binding;
+import at.salzburgresearch.nodekeeper.eca.Event;
+import at.salzburgresearch.nodekeeper.eca.Rule;
+import at.salzburgresearch.nodekeeper.eca.RuleHandler;
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scalability benchmark of the rule engine. It generates synthetic rule sets of a given {@link Shape}, replays a
+ * stream of created events through zookeeper and measures events per second, the latency from the event write to the
+ * action callbacks, the zookeeper round trips per event and the allocation per firing on the event thread. Every shape
+ * prints one line with the same columns, so runs of different shapes (and versions) can be compared.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(RuleBenchmark.class);
+
+    //stop waiting for firings if there was no progress for this time
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private NodeKeeper nodeKeeper;
+
+    private int events = 1000;
+    private int warmup = 100;
+    private int rate = 0;
+
+    /**
+     * The shape of a synthetic rule set.
+     */
+    public static class Shape {
+
+        final int rules, patterns, depth, fanOut, actions;
+
+        /**
+         * @param rules the number of rules
+         * @param patterns the number of distinct event patterns; the rules are spread over the patterns, so every event
+         *                 fires rules / patterns rules
+         * @param depth the nesting depth of the computed binding of every rule
+         * @param fanOut the number of nodeData bindings of every rule
+         * @param actions the number of actions of every rule
+         */
+        public Shape(int rules, int patterns, int depth, int fanOut, int actions) {
+            if(rules < 1 || patterns < 1 || depth < 1 || fanOut < 0 || actions < 1) {
+                throw new IllegalArgumentException(String.format("invalid shape %s", toString(rules, patterns, depth, fanOut, actions)));
+            }
+            this.rules = rules;
+            this.patterns = Math.min(patterns, rules);
+            this.depth = depth;
+            this.fanOut = fanOut;
+            this.actions = actions;
+        }
+
+        @Override
+        public String toString() {
+            return toString(rules, patterns, depth, fanOut, actions);
+        }
+
+        private static String toString(int rules, int patterns, int depth, int fanOut, int actions) {
+            return String.format("rules=%s patterns=%s depth=%s fanOut=%s actions=%s", rules, patterns, depth, fanOut, actions);
+        }
+    }
+
+    /**
+     * @param nodeKeeper the nodekeeper instance, should have {@link Benchmark#BASE_PATH} as start node
+     */
+    public RuleBenchmark(NodeKeeper nodeKeeper) {
+        this.nodeKeeper = nodeKeeper;
+    }
+
+    /**
+     * @param events the number of measured events per shape
+     */
+    public void setEvents(int events) {
+        this.events = events;
+    }
+
+    /**
+     * @param warmup the number of events before the measurement
+     */
+    public void setWarmup(int warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * @param rate the events per second that are written, 0 writes as fast as possible
+     */
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * runs all shapes one after another
+     * @param out the results are printed as table rows while the suite runs, may be null
+     */
+    public List<Result> run(List<Shape> shapes, PrintStream out) throws InterruptedException, NodeKeeperException, IOException {
+        if(out != null) Result.printHeader(out);
+        List<Result> results = new ArrayList<Result>();
+        for(Shape shape : shapes) {
+            Result result = run(shape);
+            if(out != null) result.print(out);
+            results.add(result);
+        }
+        return results;
+    }
+
+    public Result run(Shape shape) throws InterruptedException, NodeKeeperException, IOException {
+        String basePath = Benchmark.BASE_PATH + "/" + UUID.randomUUID().toString();
+        log.info("run {} below {}", shape, basePath);
+
+        //config nodes that are read by the nodeData bindings
+        for(int p = 0; p < shape.patterns; p++) {
+            for(int f = 0; f < shape.fanOut; f++) {
+                nodeKeeper.writeNode(new Node<String>(basePath + "/config/p" + p + "/c" + f, "config" + f), String.class);
+            }
+        }
+
+        RuleHandler handler = new RuleHandler(nodeKeeper);
+        List<Rule> rules = new ArrayList<Rule>(shape.rules);
+        int[] firingsPerPattern = new int[shape.patterns];
+        for(int i = 0; i < shape.rules; i++) {
+            rules.add(rule(basePath, shape, i));
+            firingsPerPattern[i % shape.patterns]++;
+        }
+
+        final Result result = new Result(shape, events);
+        final long[] eventThread = new long[]{-1};
+        final String outPattern = basePath + "/out/.+";
+        NodeListener<String> callbacks = new NodeListener<String>() {
+            @Override
+            public void onNodeCreated(Node<String> node) {
+                record(node);
+            }
+
+            @Override
+            public void onNodeUpdated(Node<String> node) {
+                record(node);
+            }
+
+            @Override
+            public void onNodeDeleted(Node<String> node) {
+            }
+
+            private void record(Node<String> node) {
+                long now = System.nanoTime();
+                long stamp = stamp(node.getData());
+                synchronized (result) {
+                    eventThread[0] = Thread.currentThread().getId();
+                    if(stamp != Long.MIN_VALUE && result.measuring) result.latency.record(now - stamp);
+                }
+            }
+
+            @Override
+            public Class<String> getType() {
+                return String.class;
+            }
+        };
+        nodeKeeper.addListener(outPattern, callbacks);
+
+        long start = System.nanoTime();
+        handler.addRules(rules);
+        result.activation = System.nanoTime() - start;
+
+        try {
+            //warmup, the action callbacks tell the event thread
+            replay(handler, basePath, shape, firingsPerPattern, 0, Math.max(warmup, 1));
+
+            handler.resetStatistics();
+            long allocated = allocated(eventThread[0]);
+            synchronized (result) {
+                result.measuring = true;
+            }
+
+            start = System.nanoTime();
+            long expected = replay(handler, basePath, shape, firingsPerPattern, Math.max(warmup, 1), events);
+            result.time = System.nanoTime() - start;
+
+            synchronized (result) {
+                result.measuring = false;
+            }
+            long allocatedAfter = allocated(eventThread[0]);
+            result.allocated = allocated < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocated;
+            result.expectedFirings = expected;
+            result.firings = handler.getFirings();
+            result.dispatched = handler.getEvents();
+            result.reads = handler.getNodeReads();
+            result.prefetched = handler.getPrefetchedReads();
+            result.transactions = handler.getTransactions();
+        } finally {
+            nodeKeeper.removeListener(outPattern, callbacks);
+            for(Rule rule : rules) {
+                handler.removeRule(rule);
+            }
+            nodeKeeper.deleteNode(new Node<String>(basePath), true);
+        }
+        return result;
+    }
+
+    /**
+     * writes the events round robin to the patterns and waits until all firings are done
+     * @return the number of expected firings
+     */
+    private long replay(RuleHandler handler, String basePath, Shape shape, int[] firingsPerPattern, int offset, int count) throws InterruptedException, NodeKeeperException, IOException {
+        long expected = 0;
+        long firings = handler.getFirings();
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long next = System.nanoTime();
+        for(int e = 0; e < count; e++) {
+            int p = (offset + e) % shape.patterns;
+            if(interval > 0) {
+                while(System.nanoTime() < next) Thread.sleep(0, 100000);
+                next += interval;
+            }
+            nodeKeeper.writeNode(new Node<String>(basePath + "/events/p" + p + "/e" + (offset + e), System.nanoTime() + ":event"), String.class);
+            expected += firingsPerPattern[p];
+        }
+
+        //wait for the firings, as long as there is progress
+        long target = firings + expected;
+        long last = handler.getFirings();
+        long progress = System.nanoTime();
+        while(handler.getFirings() < target) {
+            Thread.sleep(5);
+            long current = handler.getFirings();
+            if(current != last) {
+                last = current;
+                progress = System.nanoTime();
+            } else if(System.nanoTime() - progress > IDLE_TIMEOUT) {
+                log.warn("{} of {} firings done, stop waiting", current - firings, expected);
+                break;
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * a rule on the events of its pattern: a computed binding of the given depth, fan-out nodeData bindings with paths
+     * computed from the event path and actions whose data starts with the event data (the write timestamp)
+     */
+    private static Rule rule(String basePath, Shape shape, int i) {
+        int p = i % shape.patterns;
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated, basePath + "/events/p" + p + "/.+");
+
+        rule.bindings.add(new Binding("data", FunctionFactory.createFunction("currentNodeData"), false));
+
+        //concat('x', toUpperCase(concat('x', ... currentNodeLabel)))
+        Function name = FunctionFactory.createFunction("currentNodeLabel");
+        for(int d = 1; d < shape.depth; d++) {
+            name = d % 2 == 1
+                    ? FunctionFactory.createFunction("toUpperCase", name)
+                    : FunctionFactory.createFunction("concat", value("x"), name);
+        }
+        rule.bindings.add(new Binding("name", name, false));
+
+        StringBuilder data = new StringBuilder("{data}|{name}");
+        //the pattern segment of the event path is at slot depth(basePath) + 2
+        String slot = String.valueOf(basePath.split("/").length + 1);
+        for(int f = 0; f < shape.fanOut; f++) {
+            Function path = FunctionFactory.createFunction("concat", value(basePath + "/config/"),
+                    FunctionFactory.createFunction("pathNode", value(slot)), value("/c" + f));
+            rule.bindings.add(new Binding("c" + f, FunctionFactory.createFunction("nodeData", path), false));
+            data.append("|{c").append(f).append("}");
+        }
+
+        for(int a = 0; a < shape.actions; a++) {
+            rule.actions.add(new Action(Action.Type.createUpdateNode, basePath + "/out/r" + i + "/a" + a, data.toString()));
+        }
+        return rule;
+    }
+
+    private static Function value(String value) {
+        return FunctionFactory.createFunction("staticValue", value);
+    }
+
+    private static long stamp(String value) {
+        int i = value == null ? -1 : value.indexOf(':');
+        if(i <= 0) return Long.MIN_VALUE;
+        try {
+            return Long.parseLong(value.substring(0, i));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    //allocated bytes of a thread, -1 if not supported
+    private static long allocated(long thread) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(thread < 0 || !(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        if(!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) return -1;
+        return sun.getThreadAllocatedBytes(thread);
+    }
+
+    public static class Result {
+
+        private final Shape shape;
+        private final int events;
+
+        private boolean measuring = false;
+        private LatencyRecorder latency = new LatencyRecorder();
+
+        private long activation, time, allocated;
+        private long expectedFirings, firings, dispatched, reads, prefetched, transactions;
+
+        private Result(Shape shape, int events) {
+            this.shape = shape;
+            this.events = events;
+        }
+
+        public Shape getShape() {
+            return shape;
+        }
+
+        /**
+         * @return the latencies from the event write to the action callbacks
+         */
+        public LatencyRecorder getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the measured events per second, from the first event write to the last firing
+         */
+        public double getThroughput() {
+            return time == 0 ? 0 : events / (time / 1e9);
+        }
+
+        public long getFirings() {
+            return firings;
+        }
+
+        /**
+         * @return true if all expected rules fired
+         */
+        public boolean isComplete() {
+            return firings >= expectedFirings;
+        }
+
+        /**
+         * @return the node reads of bindings per event
+         */
+        public double getReadsPerEvent() {
+            return dispatched == 0 ? 0 : (double) reads / dispatched;
+        }
+
+        /**
+         * estimates the zookeeper round trips of the rule engine per event: synchronous reads, one round trip for the
+         * prefetched reads and two per action transaction (the pipelined existence checks and the multi())
+         */
+        public double getRoundTripsPerEvent() {
+            if(dispatched == 0) return 0;
+            double prefetchedPerEvent = (double) prefetched / dispatched;
+            return (double) (reads - prefetched) / dispatched + Math.min(1, prefetchedPerEvent)
+                    + 2.0 * transactions / dispatched;
+        }
+
+        /**
+         * @return the allocated bytes per firing on the event thread, -1 if not supported by the jvm
+         */
+        public long getAllocationPerFiring() {
+            return allocated < 0 || firings == 0 ? -1 : allocated / firings;
+        }
+
+        public static void printHeader(PrintStream out) {
+            out.println(String.format("%7s %8s %5s %6s %7s | %9s %10s %10s %9s %9s %9s %9s %8s %9s %10s",
+                    "rules", "patterns", "depth", "fanOut", "actions",
+                    "events/s", "firings", "activ(ms)", "p50(us)", "p90(us)", "p99(us)", "max(us)", "rt/event", "reads/ev", "bytes/fire"));
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("%7d %8d %5d %6d %7d | %9.1f %10s %10.1f %9d %9d %9d %9d %8.2f %9.2f %10d",
+                    shape.rules, shape.patterns, shape.depth, shape.fanOut, shape.actions,
+                    getThroughput(), firings + (isComplete() ? "" : "*"), activation / 1e6,
+                    latency.getPercentile(50) / 1000, latency.getPercentile(90) / 1000, latency.getPercentile(99) / 1000,
+                    latency.getMax() / 1000, getRoundTripsPerEvent(), getReadsPerEvent(), getAllocationPerFiring()));
+        }
+    }
+}
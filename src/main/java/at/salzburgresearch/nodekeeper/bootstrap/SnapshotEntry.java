@@ -0,0 +1,44 @@
+package at.salzburgresearch.nodekeeper.bootstrap;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A single node of a binary snapshot: the path, the raw node data and (optional) the stat of the node at export time.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class SnapshotEntry {
+
+    private String path;
+    private byte[] data;
+    private Stat stat;
+
+    public SnapshotEntry(String path, byte[] data) {
+        this(path, data, null);
+    }
+
+    public SnapshotEntry(String path, byte[] data, Stat stat) {
+        this.path = path;
+        this.data = data;
+        this.stat = stat;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the stat of the node at export time, null if the snapshot was written without stat metadata
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+    public String toString() {
+        return "[" + path + " (" + (data == null ? 0 : data.length) + " bytes)]";
+    }
+}
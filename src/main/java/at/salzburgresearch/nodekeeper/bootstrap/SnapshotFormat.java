@@ -0,0 +1,127 @@
+package at.salzburgresearch.nodekeeper.bootstrap;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The binary snapshot format. A snapshot file looks like this:
+ * <pre>
+ *  header:  int magic | int version | int flags
+ *  block*:  int rawLength | int storedLength | int entries | int crc32 | byte codec | byte[storedLength]
+ *  end:     int rawLength (= 0) | int storedLength (= 0) | int entries (= 0) | int crc32 (= 0) | byte codec
+ * </pre>
+ * The crc32 is computed over the stored bytes of the block, so corruption is detected before the block is inflated.
+ * A raw block is a sequence of entries:
+ * <pre>
+ *  int pathLength | byte[pathLength] path (UTF-8) | byte flags | int dataLength | byte[dataLength] | stat?
+ *  stat: long czxid | long mzxid | long ctime | long mtime | int version | int cversion | int aversion
+ *        | long ephemeralOwner | int numChildren | long pzxid
+ * </pre>
+ * Entries are written in pre-order (parents before children), so a snapshot can be imported in one pass.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public final class SnapshotFormat {
+
+    public static final int MAGIC = 0x4E4B534E; // "NKSN"
+    public static final int VERSION = 1;
+
+    public static final int FLAG_STAT = 1;
+
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    static final int HEADER_LENGTH = 12;
+    static final int BLOCK_HEADER_LENGTH = 17;
+
+    static final byte ENTRY_DATA = 1;
+    static final byte ENTRY_STAT = 2;
+
+    static final int STAT_LENGTH = 8 * 6 + 4 * 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SnapshotFormat() {
+    }
+
+    /**
+     * checks the magic number of the file
+     * @param file the file to check
+     * @return true if the file is a binary snapshot
+     * @throws IOException
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if(file.length() < HEADER_LENGTH) return false;
+        InputStream in = new FileInputStream(file);
+        try {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    static int entryLength(byte[] path, byte[] data, Stat stat) {
+        return 4 + path.length + 1 + 4 + (data == null ? 0 : data.length) + (stat == null ? 0 : STAT_LENGTH);
+    }
+
+    static void writeEntry(ByteBuffer buffer, byte[] path, byte[] data, Stat stat) {
+        buffer.putInt(path.length);
+        buffer.put(path);
+        buffer.put((byte) ((data != null ? ENTRY_DATA : 0) | (stat != null ? ENTRY_STAT : 0)));
+        if(data != null) {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        } else {
+            buffer.putInt(0);
+        }
+        if(stat != null) {
+            buffer.putLong(stat.getCzxid());
+            buffer.putLong(stat.getMzxid());
+            buffer.putLong(stat.getCtime());
+            buffer.putLong(stat.getMtime());
+            buffer.putInt(stat.getVersion());
+            buffer.putInt(stat.getCversion());
+            buffer.putInt(stat.getAversion());
+            buffer.putLong(stat.getEphemeralOwner());
+            buffer.putInt(stat.getNumChildren());
+            buffer.putLong(stat.getPzxid());
+        }
+    }
+
+    static SnapshotEntry readEntry(ByteBuffer buffer) throws IOException {
+        int pathLength = buffer.getInt();
+        if(pathLength <= 0 || pathLength > buffer.remaining()) throw new IOException(String.format("corrupt snapshot entry (path length %s)", pathLength));
+        byte[] path = new byte[pathLength];
+        buffer.get(path);
+        byte flags = buffer.get();
+        int dataLength = buffer.getInt();
+        if(dataLength < 0 || dataLength > buffer.remaining()) throw new IOException(String.format("corrupt snapshot entry (data length %s)", dataLength));
+        byte[] data = null;
+        if((flags & ENTRY_DATA) != 0) {
+            data = new byte[dataLength];
+            buffer.get(data);
+        }
+        Stat stat = null;
+        if((flags & ENTRY_STAT) != 0) {
+            long czxid = buffer.getLong();
+            long mzxid = buffer.getLong();
+            long ctime = buffer.getLong();
+            long mtime = buffer.getLong();
+            int version = buffer.getInt();
+            int cversion = buffer.getInt();
+            int aversion = buffer.getInt();
+            long ephemeralOwner = buffer.getLong();
+            int numChildren = buffer.getInt();
+            long pzxid = buffer.getLong();
+            stat = new Stat(czxid, mzxid, ctime, mtime, version, cversion, aversion, ephemeralOwner, dataLength, numChildren, pzxid);
+        }
+        return new SnapshotEntry(new String(path, UTF8), data, stat);
+    }
+}
@@ -0,0 +1,216 @@
+package at.salzburgresearch.nodekeeper.bootstrap;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary snapshot (see {@link SnapshotFormat}) block by block. Only one block is held in memory at a time, so
+ * snapshots of any size can be read. Use {@link #open(File)} to read files via memory mapping, or the stream constructor
+ * for any other input.
+ * <pre>
+ * SnapshotReader reader = SnapshotReader.open(file);
+ * SnapshotEntry entry;
+ * while((entry = reader.next()) != null) {
+ *     ...
+ * }
+ * reader.close();
+ * </pre>
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class SnapshotReader implements Closeable {
+
+    private Source source;
+    private boolean includesStat;
+
+    private byte[] stored = new byte[0];
+    private byte[] raw = new byte[0];
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private int remaining = 0;
+    private boolean finished = false;
+
+    private Inflater inflater = new Inflater();
+    private CRC32 crc = new CRC32();
+
+    public SnapshotReader(InputStream in) throws IOException {
+        this(new StreamSource(in));
+    }
+
+    private SnapshotReader(Source source) throws IOException {
+        this.source = source;
+        byte[] header = new byte[SnapshotFormat.HEADER_LENGTH];
+        source.read(header, header.length);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        if(h.getInt() != SnapshotFormat.MAGIC) throw new IOException("not a nodekeeper snapshot");
+        int version = h.getInt();
+        if(version != SnapshotFormat.VERSION) throw new IOException(String.format("unsupported snapshot version %s", version));
+        includesStat = (h.getInt() & SnapshotFormat.FLAG_STAT) != 0;
+    }
+
+    /**
+     * opens a snapshot file with memory mapped reads
+     * @param file the snapshot file
+     * @return a reader for the file
+     * @throws IOException
+     */
+    public static SnapshotReader open(File file) throws IOException {
+        return new SnapshotReader(new MappedSource(file));
+    }
+
+    /**
+     * @return true if the entries of the snapshot carry stat metadata
+     */
+    public boolean includesStat() {
+        return includesStat;
+    }
+
+    /**
+     * @return the next entry or null if the end of the snapshot is reached
+     * @throws IOException if the snapshot is corrupt
+     */
+    public SnapshotEntry next() throws IOException {
+        while(remaining == 0) {
+            if(finished || !readBlock()) return null;
+        }
+        remaining--;
+        return SnapshotFormat.readEntry(block);
+    }
+
+    private boolean readBlock() throws IOException {
+        byte[] header = new byte[SnapshotFormat.BLOCK_HEADER_LENGTH];
+        source.read(header, header.length);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        int rawLength = h.getInt();
+        int storedLength = h.getInt();
+        int entries = h.getInt();
+        int checksum = h.getInt();
+        byte codec = h.get();
+
+        if(entries == 0) {
+            finished = true;
+            return false;
+        }
+        if(rawLength < 0 || storedLength < 0 || entries < 0) throw new IOException("corrupt snapshot block header");
+
+        if(stored.length < storedLength) stored = new byte[storedLength];
+        source.read(stored, storedLength);
+
+        crc.reset();
+        crc.update(stored, 0, storedLength);
+        if((int) crc.getValue() != checksum) throw new IOException("snapshot block checksum mismatch");
+
+        switch(codec) {
+            case SnapshotFormat.CODEC_NONE:
+                if(storedLength != rawLength) throw new IOException("corrupt snapshot block length");
+                block = ByteBuffer.wrap(stored, 0, rawLength);
+                break;
+            case SnapshotFormat.CODEC_DEFLATE:
+                if(raw.length < rawLength) raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLength);
+                try {
+                    int length = 0;
+                    while(length < rawLength && !inflater.finished()) {
+                        int n = inflater.inflate(raw, length, rawLength - length);
+                        if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                        length += n;
+                    }
+                    if(length != rawLength) throw new IOException("corrupt snapshot block (inflated length mismatch)");
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupt snapshot block", e);
+                }
+                block = ByteBuffer.wrap(raw, 0, rawLength);
+                break;
+            default:
+                throw new IOException(String.format("unsupported snapshot codec %s", codec));
+        }
+        remaining = entries;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        source.close();
+    }
+
+    private interface Source extends Closeable {
+        void read(byte[] buffer, int length) throws IOException;
+    }
+
+    private static class StreamSource implements Source {
+
+        private DataInputStream in;
+
+        private StreamSource(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        }
+
+        @Override
+        public void read(byte[] buffer, int length) throws IOException {
+            in.readFully(buffer, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * maps the file in windows, so files larger than 2GB are supported; a window is re-mapped at the current position
+     * when a read does not fit into it any more
+     */
+    private static class MappedSource implements Source {
+
+        private static final long WINDOW = 256L * 1024 * 1024;
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private long size;
+
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        private MappedSource(File f) throws IOException {
+            file = new RandomAccessFile(f, "r");
+            channel = file.getChannel();
+            size = channel.size();
+            map(0, 0);
+        }
+
+        private void map(long position, int required) throws IOException {
+            long length = Math.min(Math.max(WINDOW, required), size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+        }
+
+        @Override
+        public void read(byte[] buffer, int length) throws IOException {
+            if(window.remaining() < length) {
+                long position = windowStart + window.position();
+                if(size - position < length) throw new EOFException("unexpected end of snapshot");
+                map(position, length);
+            }
+            window.get(buffer, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package at.salzburgresearch.nodekeeper.bootstrap;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a binary snapshot (see {@link SnapshotFormat}) to a stream. Entries are collected in a block buffer, every full
+ * block is compressed, check-summed and written, so memory usage is bounded by the block size.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class SnapshotWriter implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private DataOutputStream out;
+    private boolean includeStat;
+    private boolean compress;
+    private int blockSize;
+
+    private ByteBuffer block;
+    private int entries = 0;
+    private byte[] deflated = new byte[0];
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private CRC32 crc = new CRC32();
+
+    private long written = 0;
+
+    public SnapshotWriter(OutputStream out, boolean includeStat) throws IOException {
+        this(out, includeStat, true, DEFAULT_BLOCK_SIZE);
+    }
+
+    public SnapshotWriter(OutputStream out, boolean includeStat, boolean compress, int blockSize) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.includeStat = includeStat;
+        this.compress = compress;
+        this.blockSize = blockSize;
+        this.block = ByteBuffer.allocate(blockSize);
+
+        this.out.writeInt(SnapshotFormat.MAGIC);
+        this.out.writeInt(SnapshotFormat.VERSION);
+        this.out.writeInt(includeStat ? SnapshotFormat.FLAG_STAT : 0);
+    }
+
+    public void write(SnapshotEntry entry) throws IOException {
+        write(entry.getPath(), entry.getData(), entry.getStat());
+    }
+
+    /**
+     * appends a node to the snapshot; nodes must be written parents first
+     * @param path the node path
+     * @param data the raw node data, may be null
+     * @param stat the node stat, ignored if the writer does not include stat metadata
+     * @throws IOException
+     */
+    public void write(String path, byte[] data, Stat stat) throws IOException {
+        byte[] p = path.getBytes(SnapshotFormat.UTF8);
+        Stat s = includeStat ? stat : null;
+        int length = SnapshotFormat.entryLength(p, data, s);
+
+        if(block.position() + length > block.capacity() && block.position() > 0) flushBlock();
+        if(length > block.capacity()) block = ByteBuffer.allocate(length); //oversized entry gets its own block
+
+        SnapshotFormat.writeEntry(block, p, data, s);
+        entries++;
+        written++;
+
+        if(block.position() >= blockSize) flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if(entries == 0) return;
+
+        int rawLength = block.position();
+        byte[] stored = block.array();
+        int storedLength = rawLength;
+        byte codec = SnapshotFormat.CODEC_NONE;
+
+        if(compress) {
+            if(deflated.length < rawLength) deflated = new byte[rawLength];
+            deflater.reset();
+            deflater.setInput(block.array(), 0, rawLength);
+            deflater.finish();
+            int length = 0;
+            while(!deflater.finished() && length < deflated.length) {
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            //only store compressed if it is smaller
+            if(deflater.finished() && length < rawLength) {
+                stored = deflated;
+                storedLength = length;
+                codec = SnapshotFormat.CODEC_DEFLATE;
+            }
+        }
+
+        crc.reset();
+        crc.update(stored, 0, storedLength);
+
+        out.writeInt(rawLength);
+        out.writeInt(storedLength);
+        out.writeInt(entries);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(codec);
+        out.write(stored, 0, storedLength);
+
+        if(block.capacity() > blockSize) block = ByteBuffer.allocate(blockSize);
+        else block.clear();
+        entries = 0;
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    public void flush() throws IOException {
+        flushBlock();
+        out.flush();
+    }
+
+    /**
+     * writes the last block and the end marker and closes the underlying stream
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flushBlock();
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(SnapshotFormat.CODEC_NONE);
+        out.flush();
+        out.close();
+        deflater.end();
+    }
+}
@@ -0,0 +1,143 @@
+package at.salzburgresearch.nodekeeper.bootstrap;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The change set between a bootstrap file and a live subtree, as computed by
+ * {@link ZKBootstrap#diff(java.io.File, String, boolean)}. Creates are ordered parents first, deletes children first.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class SyncPlan {
+
+    public enum Type {
+        create, update, delete
+    }
+
+    public static class Change {
+
+        private Type type;
+        private String path;
+        private byte[] data;
+        private int version;
+
+        Change(Type type, String path, byte[] data, int version) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.version = version;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the version of the live node the change is based on (-1 for creates and deletes)
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public String toString() {
+            switch (type) {
+                case create: return "+ " + path + " (" + data.length + " bytes)";
+                case update: return "~ " + path + " (" + data.length + " bytes, version " + version + ")";
+                default: return "- " + path;
+            }
+        }
+    }
+
+    private List<Change> creates = new ArrayList<Change>();
+    private List<Change> updates = new ArrayList<Change>();
+    private List<Change> deletes = new ArrayList<Change>();
+    private long unchanged = 0;
+
+    void create(String path, byte[] data) {
+        creates.add(new Change(Type.create, path, data, -1));
+    }
+
+    void update(String path, byte[] data, int version) {
+        updates.add(new Change(Type.update, path, data, version));
+    }
+
+    void delete(String path) {
+        deletes.add(new Change(Type.delete, path, null, -1));
+    }
+
+    void unchanged() {
+        unchanged++;
+    }
+
+    /**
+     * brings the changes in an order that can be applied: creates (parents first), updates, deletes (children first)
+     */
+    void sort() {
+        Collections.sort(creates, new Comparator<Change>() {
+            @Override
+            public int compare(Change c1, Change c2) {
+                return c1.path.compareTo(c2.path);
+            }
+        });
+        Collections.sort(deletes, new Comparator<Change>() {
+            @Override
+            public int compare(Change c1, Change c2) {
+                return c2.path.compareTo(c1.path);
+            }
+        });
+    }
+
+    /**
+     * @return all changes in the order they are applied
+     */
+    public List<Change> getChanges() {
+        List<Change> changes = new ArrayList<Change>(creates.size() + updates.size() + deletes.size());
+        changes.addAll(creates);
+        changes.addAll(updates);
+        changes.addAll(deletes);
+        return changes;
+    }
+
+    public int getCreates() {
+        return creates.size();
+    }
+
+    public int getUpdates() {
+        return updates.size();
+    }
+
+    public int getDeletes() {
+        return deletes.size();
+    }
+
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    public boolean isEmpty() {
+        return creates.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    public void print(PrintStream out) {
+        for(Change change : getChanges()) {
+            out.println(change);
+        }
+        out.println(toString());
+    }
+
+    public String toString() {
+        return String.format("%s creates, %s updates, %s deletes, %s unchanged", creates.size(), updates.size(), deletes.size(), unchanged);
+    }
+}
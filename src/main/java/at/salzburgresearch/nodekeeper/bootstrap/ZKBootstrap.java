@@ -3,14 +3,32 @@ package at.salzburgresearch.nodekeeper.bootstrap;
 import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
 import at.salzburgresearch.nodekeeper.model.Node;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ...
@@ -21,14 +39,42 @@ public class ZKBootstrap {
 
     private Logger logger = LoggerFactory.getLogger(ZKBootstrap.class);
 
+    private static final String ZOOKEEPER_NODE = "/zookeeper";
+
+    //max number of asynchronous writes that are in flight while importing a snapshot
+    private static final int MAX_PENDING_WRITES = 1000;
+
+    //max number of asynchronous reads that are in flight while computing a diff
+    private static final int MAX_PENDING_READS = 1000;
+
+    //limits of a single multi() transaction when applying a sync plan (zookeeper rejects requests > 1MB)
+    private static final int MAX_BATCH_OPS = 1000;
+    private static final int MAX_BATCH_BYTES = 512 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
     private NodeKeeper nodeKeeper;
 
     public ZKBootstrap(NodeKeeper nodeKeeper) {
         this.nodeKeeper = nodeKeeper;
     }
 
+    /**
+     * loads a bootstrap file; the file can be a properties file or a binary snapshot (detected by the file header)
+     * @param file a properties file or a binary snapshot
+     * @param clean if all nodes should be deleted before loading
+     */
     public void load(File file, boolean clean) throws IOException, NodeKeeperException, InterruptedException {
-        load(new FileInputStream(file),clean);
+        if(SnapshotFormat.isSnapshot(file)) {
+            SnapshotReader reader = SnapshotReader.open(file);
+            try {
+                loadSnapshot(reader, clean);
+            } finally {
+                reader.close();
+            }
+        } else {
+            load(new FileInputStream(file),clean);
+        }
     }
 
     public void load(InputStream is, boolean clean) throws IOException, NodeKeeperException, InterruptedException {
@@ -65,6 +111,365 @@ public class ZKBootstrap {
         out.close();
     }
 
+    /**
+     * loads a binary snapshot from a stream
+     * @param is the snapshot stream
+     * @param clean if all nodes should be deleted before loading
+     */
+    public void loadSnapshot(InputStream is, boolean clean) throws IOException, NodeKeeperException, InterruptedException {
+        SnapshotReader reader = new SnapshotReader(is);
+        try {
+            loadSnapshot(reader, clean);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Streams all entries of the snapshot into zookeeper. The writes are issued asynchronously (with at most
+     * MAX_PENDING_WRITES in flight); this is safe because zookeeper executes the requests of one session in order and
+     * the snapshot contains parents before children. Existing nodes are updated.
+     * @param reader the snapshot reader
+     * @param clean if all nodes should be deleted before loading
+     * @return the number of imported nodes
+     */
+    public long loadSnapshot(SnapshotReader reader, boolean clean) throws IOException, NodeKeeperException, InterruptedException {
+
+        if(clean) {
+            try {
+                nodeKeeper.deleteNode(new Node("/"), true);
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+
+        final ZooKeeper zk = nodeKeeper.getZooKeeper();
+        final Semaphore pending = new Semaphore(MAX_PENDING_WRITES);
+        final AtomicReference<KeeperException> error = new AtomicReference<KeeperException>();
+
+        final AsyncCallback.StatCallback updated = new AsyncCallback.StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                if(rc != KeeperException.Code.OK.intValue()) error.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), path));
+                pending.release();
+            }
+        };
+
+        final AsyncCallback.StringCallback created = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                if(rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                    //update existing node, the permit is released by the update callback
+                    zk.setData(path, (byte[]) ctx, -1, updated, null);
+                    return;
+                }
+                if(rc != KeeperException.Code.OK.intValue()) error.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), path));
+                pending.release();
+            }
+        };
+
+        //the ancestors of the current entry that are known to exist
+        Deque<String> chain = new ArrayDeque<String>();
+        long count = 0;
+
+        SnapshotEntry entry;
+        while((entry = reader.next()) != null && error.get() == null) {
+            String path = entry.getPath();
+            String parent = path.substring(0, path.lastIndexOf('/'));
+
+            while(!chain.isEmpty() && !isAncestorOrSelf(chain.peek(), parent)) chain.pop();
+            if(!parent.isEmpty() && (chain.isEmpty() || !chain.peek().equals(parent))) {
+                //parent is not part of the snapshot, make sure it exists
+                drain(pending);
+                if(nodeKeeper.readNode(parent, byte[].class) == null) {
+                    nodeKeeper.writeNode(new Node<byte[]>(parent, new byte[0]), byte[].class);
+                }
+                chain.push(parent);
+            }
+
+            byte[] data = entry.getData() == null ? new byte[0] : entry.getData();
+            pending.acquire();
+            zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, created, data);
+            chain.push(path);
+            count++;
+        }
+
+        drain(pending);
+        if(error.get() != null) throw new NodeKeeperException("cannot load snapshot", error.get());
+
+        logger.info("loaded {} nodes from snapshot", count);
+        return count;
+    }
+
+    private void drain(Semaphore pending) throws InterruptedException {
+        drain(pending, MAX_PENDING_WRITES);
+    }
+
+    private void drain(Semaphore pending, int permits) throws InterruptedException {
+        pending.acquire(permits);
+        pending.release(permits);
+    }
+
+    private static String parentOf(String path) {
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+
+    /**
+     * synchronizes the subtree root with a bootstrap file (properties or binary snapshot): only nodes that are missing or
+     * have different data are written.
+     * @param file a properties file or a binary snapshot
+     * @param root only nodes of this subtree are taken into account
+     * @param deletes if nodes of the subtree that are not in the file should be deleted
+     * @param dryRun if true, the changes are just computed but not applied
+     * @return the applied (or in case of a dry run the computed) changes
+     */
+    public SyncPlan sync(File file, String root, boolean deletes, boolean dryRun) throws IOException, NodeKeeperException, InterruptedException {
+        SyncPlan plan = diff(file, root, deletes);
+        if(!dryRun) apply(plan);
+        return plan;
+    }
+
+    /**
+     * computes the changes that are necessary to bring the subtree root in line with the bootstrap file. The live nodes
+     * are read with parallel asynchronous requests and compared byte by byte with the file content.
+     * @param file a properties file or a binary snapshot
+     * @param root only nodes of this subtree are taken into account
+     * @param deletes if nodes of the subtree that are not in the file should be deleted
+     * @return the change set
+     */
+    public SyncPlan diff(File file, String root, boolean deletes) throws IOException, NodeKeeperException, InterruptedException {
+        if(SnapshotFormat.isSnapshot(file)) {
+            final SnapshotReader reader = SnapshotReader.open(file);
+            try {
+                return diff(new Entries() {
+                    @Override
+                    public SnapshotEntry next() throws IOException {
+                        return reader.next();
+                    }
+                }, root, deletes);
+            } finally {
+                reader.close();
+            }
+        } else {
+            Properties properties = new Properties();
+            InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+            //sorted, so parents come before children
+            TreeMap<String,String> sorted = new TreeMap<String, String>();
+            for(String key : properties.stringPropertyNames()) {
+                sorted.put(key, properties.getProperty(key));
+            }
+            final Iterator<Map.Entry<String,String>> iterator = sorted.entrySet().iterator();
+            return diff(new Entries() {
+                @Override
+                public SnapshotEntry next() {
+                    if(!iterator.hasNext()) return null;
+                    Map.Entry<String,String> entry = iterator.next();
+                    return new SnapshotEntry(entry.getKey(), entry.getValue().getBytes());
+                }
+            }, root, deletes);
+        }
+    }
+
+    private SyncPlan diff(Entries entries, String root, boolean deletes) throws IOException, NodeKeeperException, InterruptedException {
+        final ZooKeeper zk = nodeKeeper.getZooKeeper();
+        final SyncPlan plan = new SyncPlan();
+        final Semaphore pending = new Semaphore(MAX_PENDING_READS);
+        final AtomicReference<KeeperException> error = new AtomicReference<KeeperException>();
+
+        final AsyncCallback.DataCallback compare = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                byte[] expected = (byte[]) ctx;
+                synchronized (plan) {
+                    if(rc == KeeperException.Code.OK.intValue()) {
+                        if(Arrays.equals(data == null ? EMPTY : data, expected)) plan.unchanged();
+                        else plan.update(path, expected, stat.getVersion());
+                    } else if(rc == KeeperException.Code.NONODE.intValue()) {
+                        plan.create(path, expected);
+                    } else {
+                        error.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), path));
+                    }
+                }
+                pending.release();
+            }
+        };
+
+        //compare all nodes of the file with the live nodes
+        Set<String> desired = new HashSet<String>();
+        SnapshotEntry entry;
+        while((entry = entries.next()) != null && error.get() == null) {
+            String path = entry.getPath();
+            if(!isAncestorOrSelf(root, path) || isAncestorOrSelf(ZOOKEEPER_NODE, path)) continue;
+            if(!desired.add(path)) continue;
+            byte[] data = entry.getData() == null ? EMPTY : entry.getData();
+            pending.acquire();
+            zk.getData(path, false, compare, data);
+        }
+        drain(pending, MAX_PENDING_READS);
+        if(error.get() != null) throw new NodeKeeperException(String.format("cannot read subtree '%s'", root), error.get());
+
+        try {
+            //create missing parents that are not part of the file
+            Set<String> checked = new HashSet<String>();
+            for(SyncPlan.Change change : plan.getChanges()) {
+                if(change.getType() != SyncPlan.Type.create) continue;
+                String parent = parentOf(change.getPath());
+                while(!parent.isEmpty() && !desired.contains(parent) && checked.add(parent)) {
+                    if(zk.exists(parent, false) != null) break;
+                    plan.create(parent, EMPTY);
+                    parent = parentOf(parent);
+                }
+            }
+
+            if(deletes) deleteUnknown(zk, plan, root, desired);
+        } catch (KeeperException e) {
+            throw new NodeKeeperException(String.format("cannot read subtree '%s'", root), e);
+        }
+
+        plan.sort();
+        return plan;
+    }
+
+    /**
+     * walks the live subtree with parallel asynchronous requests and adds deletes for all nodes that are neither in the
+     * file nor parents of nodes in the file
+     */
+    private void deleteUnknown(final ZooKeeper zk, final SyncPlan plan, String root, Set<String> desired) throws KeeperException, InterruptedException {
+        final Set<String> keep = new HashSet<String>(desired);
+        for(String path : desired) {
+            for(String parent = parentOf(path); !parent.isEmpty() && keep.add(parent); parent = parentOf(parent));
+        }
+
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<KeeperException> error = new AtomicReference<KeeperException>();
+
+        zk.getChildren(root, false, new AsyncCallback.ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                if(rc == KeeperException.Code.OK.intValue()) {
+                    for(String child : children) {
+                        String childPath = path.equals("/") ? "/" + child : path + "/" + child;
+                        if(childPath.equals(ZOOKEEPER_NODE)) continue;
+                        if(!keep.contains(childPath)) {
+                            synchronized (plan) {
+                                plan.delete(childPath);
+                            }
+                        }
+                        outstanding.incrementAndGet();
+                        zk.getChildren(childPath, false, this, null);
+                    }
+                } else if(rc != KeeperException.Code.NONODE.intValue()) {
+                    error.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), path));
+                }
+                if(outstanding.decrementAndGet() == 0) done.countDown();
+            }
+        }, null);
+
+        done.await();
+        if(error.get() != null) throw error.get();
+    }
+
+    /**
+     * applies the changes in multi() transactions of at most MAX_BATCH_OPS operations. Updates are conditional on the
+     * version that was read by the diff, so a concurrent modification fails the transaction instead of being overwritten.
+     * @param plan the change set
+     * @throws NodeKeeperException if a transaction fails; all earlier transactions stay applied
+     */
+    public void apply(SyncPlan plan) throws NodeKeeperException, InterruptedException {
+        ZooKeeper zk = nodeKeeper.getZooKeeper();
+        List<Op> batch = new ArrayList<Op>();
+        int bytes = 0;
+        for(SyncPlan.Change change : plan.getChanges()) {
+            switch (change.getType()) {
+                case create:
+                    batch.add(Op.create(change.getPath(), change.getData(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                    bytes += change.getData().length;
+                    break;
+                case update:
+                    batch.add(Op.setData(change.getPath(), change.getData(), change.getVersion()));
+                    bytes += change.getData().length;
+                    break;
+                case delete:
+                    batch.add(Op.delete(change.getPath(), -1));
+                    break;
+            }
+            bytes += change.getPath().length();
+            if(batch.size() >= MAX_BATCH_OPS || bytes >= MAX_BATCH_BYTES) {
+                commit(zk, batch);
+                batch.clear();
+                bytes = 0;
+            }
+        }
+        if(!batch.isEmpty()) commit(zk, batch);
+        logger.info("applied sync plan: {}", plan);
+    }
+
+    private void commit(ZooKeeper zk, List<Op> batch) throws NodeKeeperException, InterruptedException {
+        try {
+            zk.multi(batch);
+        } catch (KeeperException e) {
+            throw new NodeKeeperException(String.format("cannot apply changes (%s)", e.getMessage()), e);
+        }
+    }
+
+    private interface Entries {
+        SnapshotEntry next() throws IOException;
+    }
+
+    private static boolean isAncestorOrSelf(String ancestor, String path) {
+        //the root is the ancestor of all paths, "/" + "/" would be no prefix of any path
+        if(ancestor.equals("/")) return path.startsWith("/");
+        return path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+
+    /**
+     * writes a binary snapshot of all subnodes of start (start itself is not included). The zookeeper system node
+     * '/zookeeper' is skipped.
+     * @param os the output stream, is closed at the end
+     * @param start the root node of the export
+     * @param includeStat if the stat of every node should be stored in the snapshot
+     * @return the number of exported nodes
+     */
+    public long writeSnapshot(OutputStream os, String start, boolean includeStat) throws NodeKeeperException, InterruptedException, IOException {
+        SnapshotWriter writer = new SnapshotWriter(os, includeStat);
+        try {
+            snapshotChildren(nodeKeeper.getZooKeeper(), writer, start);
+        } catch (KeeperException e) {
+            throw new NodeKeeperException(String.format("cannot write snapshot of '%s'", start), e);
+        } finally {
+            writer.close();
+        }
+        return writer.getWritten();
+    }
+
+    private void snapshotChildren(ZooKeeper zk, SnapshotWriter writer, String path) throws KeeperException, InterruptedException, IOException {
+        List<String> children;
+        try {
+            children = zk.getChildren(path, false);
+        } catch (KeeperException.NoNodeException e) {
+            return; //removed in the meantime
+        }
+        for(String child : children) {
+            String childPath = path.equals("/") ? "/" + child : path + "/" + child;
+            if(childPath.equals(ZOOKEEPER_NODE)) continue;
+            Stat stat = new Stat();
+            byte[] data;
+            try {
+                data = zk.getData(childPath, false, stat);
+            } catch (KeeperException.NoNodeException e) {
+                continue; //removed in the meantime
+            }
+            writer.write(childPath, data, stat);
+            if(stat.getNumChildren() > 0) snapshotChildren(zk, writer, childPath);
+        }
+    }
+
     private void stringifyChildren( BufferedWriter out, String path ) throws NodeKeeperException, InterruptedException, IOException {
         Set<Node<String>> nodes = nodeKeeper.listChildrenNodes(path,String.class);
         for(Node<String> node : nodes) {
@@ -1,12 +1,17 @@
 package at.salzburgresearch.nodekeeper.bootstrap;
 
 import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.bench.Benchmark;
+import at.salzburgresearch.nodekeeper.bench.EmbeddedServer;
+import at.salzburgresearch.nodekeeper.bench.RuleBenchmark;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
 import org.apache.commons.cli.*;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -20,10 +25,26 @@ public class ZKBootstrapCli {
     private String connection;
 
     private Boolean type_is_import = true;
+    private boolean type_is_sync = false;
     private String root = "/";
 
     private boolean clean = false;
 
+    private boolean snapshot = false;
+    private boolean includeStat = false;
+
+    private boolean delete = false;
+    private boolean dryRun = false;
+
+    //connection value that starts an in-process zookeeper for benchmarks
+    private static final String EMBEDDED = "embedded";
+    private static final String[] BENCH_OPTIONS = new String[]{"threads", "keys", "size", "mix", "listeners", "warmup", "duration",
+            "rules", "patterns", "depth", "fanout", "actions", "events", "rate"};
+
+    private boolean type_is_bench = false;
+    private boolean type_is_rulebench = false;
+    private Properties benchOptions = new Properties();
+
     public static void main(String[] args) throws ParseException, InterruptedException, NodeKeeperException, IOException {
         new ZKBootstrapCli(args).exec();
     }
@@ -40,6 +61,17 @@ public class ZKBootstrapCli {
 
         if(line.hasOption("help")) {
             displayUsage();
+        } else if(line.hasOption("type") && (line.getOptionValue("type").equals("bench") || line.getOptionValue("type").equals("rulebench"))) {
+            type_is_bench = true;
+            type_is_rulebench = line.getOptionValue("type").equals("rulebench");
+            for(String option : BENCH_OPTIONS) {
+                if(line.hasOption(option)) benchOptions.setProperty(option, line.getOptionValue(option));
+            }
+            if (line.hasOption("connection")) {
+                connection = line.getOptionValue("connection");
+            } else {
+                connection = "localhost:2181";
+            }
         } else {
             if(line.hasOption("file")) {
                String path = line.getOptionValue("file");
@@ -47,7 +79,9 @@ public class ZKBootstrapCli {
                if(line.hasOption("type"))  {
                    if(line.getOptionValue("type").equals("export")) {
                        type_is_import = false;
-                   };
+                   } else if(line.getOptionValue("type").equals("sync")) {
+                       type_is_sync = true;
+                   }
                }
 
                file = new File(path);
@@ -60,10 +94,25 @@ public class ZKBootstrapCli {
                         System.err.println("Bootstrap file '" + file.getAbsolutePath() + " not found!");
                         displayUsage();
                     }
+                    if(type_is_sync) {
+                        if(line.hasOption("root"))  {
+                            root = line.getOptionValue("root");
+                        }
+                        if(line.hasOption("delete"))  {
+                            delete = Boolean.parseBoolean(line.getOptionValue("delete"));
+                        }
+                        dryRun = line.hasOption("dryrun");
+                    }
                 } else {
                     if(line.hasOption("root"))  {
                         root = line.getOptionValue("root");
                     }
+                    if(line.hasOption("format")) {
+                        snapshot = line.getOptionValue("format").equals("snapshot");
+                    }
+                    if(line.hasOption("stat")) {
+                        includeStat = Boolean.parseBoolean(line.getOptionValue("stat"));
+                    }
                 }
 
                 if (line.hasOption("connection")) {
@@ -79,21 +128,102 @@ public class ZKBootstrapCli {
     }
 
     public void exec() throws InterruptedException, IOException, NodeKeeperException {
+        if(type_is_bench) {
+            bench();
+            return;
+        }
         NodeKeeper nodeKeeper = new NodeKeeper(connection, 10000, new Properties());
         ZKBootstrap zkBootstrap = new ZKBootstrap(nodeKeeper);
-        if(type_is_import) {
+        if(type_is_sync) {
+            SyncPlan plan = zkBootstrap.sync(file, root, delete, dryRun);
+            if(dryRun) {
+                plan.print(System.out);
+            } else {
+                System.out.println("Successfully synchronized zookeeper at " + connection + " with data from " + file.getAbsolutePath() + " (" + plan + ") !");
+            }
+        } else if(type_is_import) {
             zkBootstrap.load(file, clean);
             System.out.println("Successfully bootstrapped zookeeper at " + connection + " with data from " + file.getAbsolutePath() + " !");
         } else {
             FileOutputStream out = new FileOutputStream(file);
-            zkBootstrap.write(out,root);
-            out.flush();
-            out.close();
+            if(snapshot) {
+                zkBootstrap.writeSnapshot(out,root,includeStat);
+            } else {
+                zkBootstrap.write(out,root);
+                out.flush();
+                out.close();
+            }
             System.out.println("Successfully stored zookeeper at " + connection + " in " + file.getAbsolutePath() + " !");
         }
 
     }
 
+    private void bench() throws InterruptedException, IOException, NodeKeeperException {
+        EmbeddedServer server = null;
+        String connectionString = connection;
+        if(connection.equals(EMBEDDED)) {
+            server = new EmbeddedServer();
+            connectionString = server.start();
+        }
+        try {
+            NodeKeeper nodeKeeper = new NodeKeeper(connectionString, 10000, new Properties(), Benchmark.BASE_PATH);
+            try {
+                if(type_is_rulebench) {
+                    ruleBench(nodeKeeper);
+                    return;
+                }
+                Benchmark benchmark = new Benchmark(nodeKeeper);
+                if(benchOptions.containsKey("threads")) benchmark.setThreads(Integer.parseInt(benchOptions.getProperty("threads")));
+                if(benchOptions.containsKey("keys")) benchmark.setKeys(Integer.parseInt(benchOptions.getProperty("keys")));
+                if(benchOptions.containsKey("size")) benchmark.setValueSize(Integer.parseInt(benchOptions.getProperty("size")));
+                if(benchOptions.containsKey("mix")) benchmark.setMix(benchOptions.getProperty("mix"));
+                if(benchOptions.containsKey("listeners")) benchmark.setListeners(Integer.parseInt(benchOptions.getProperty("listeners")));
+                if(benchOptions.containsKey("warmup")) benchmark.setWarmup(Integer.parseInt(benchOptions.getProperty("warmup")));
+                if(benchOptions.containsKey("duration")) benchmark.setDuration(Integer.parseInt(benchOptions.getProperty("duration")));
+
+                System.out.println("Benchmark zookeeper at " + connection + " ...");
+                benchmark.run().print(System.out);
+            } finally {
+                nodeKeeper.shutdown();
+            }
+        } finally {
+            if(server != null) server.stop();
+        }
+    }
+
+    private void ruleBench(NodeKeeper nodeKeeper) throws InterruptedException, IOException, NodeKeeperException {
+        RuleBenchmark benchmark = new RuleBenchmark(nodeKeeper);
+        if(benchOptions.containsKey("events")) benchmark.setEvents(Integer.parseInt(benchOptions.getProperty("events")));
+        if(benchOptions.containsKey("warmup")) benchmark.setWarmup(Integer.parseInt(benchOptions.getProperty("warmup")));
+        if(benchOptions.containsKey("rate")) benchmark.setRate(Integer.parseInt(benchOptions.getProperty("rate")));
+
+        //every combination of the listed values is one shape
+        List<RuleBenchmark.Shape> shapes = new ArrayList<RuleBenchmark.Shape>();
+        for(int rules : values("rules", "10,1000,10000")) {
+            for(int patterns : values("patterns", "10")) {
+                for(int depth : values("depth", "1")) {
+                    for(int fanOut : values("fanout", "1")) {
+                        for(int actions : values("actions", "1")) {
+                            shapes.add(new RuleBenchmark.Shape(rules, patterns, depth, fanOut, actions));
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println("Benchmark rule engine at " + connection + " ...");
+        benchmark.run(shapes, System.out);
+    }
+
+    private int[] values(String option, String defaults) {
+        String[] parts = benchOptions.getProperty(option, defaults).split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
     private Options buildOptions() {
         Option help = OptionBuilder.withDescription("display help message")
                                         .withLongOpt("help")
@@ -101,29 +231,29 @@ public class ZKBootstrapCli {
 
         Option file = OptionBuilder.withArgName("file")
                                         .hasArg()
-                                        .isRequired()
-                                        .withDescription("path to file")
+                                        .isRequired(false)
+                                        .withDescription("path to file (required for import, export and sync)")
                                         .withLongOpt("file")
                                         .create("f");
 
         Option type = OptionBuilder.withArgName("type")
                 .hasArg()
                 .isRequired(false)
-                .withDescription("type import or export (default is import)")
+                .withDescription("type import, export, sync, bench or rulebench (default is import)")
                 .withLongOpt("type")
                 .create("t");
 
         Option connection = OptionBuilder.withArgName("connection")
                                         .hasArg()
                                         .isRequired(false)
-                                        .withDescription("connection string to zookeeper (default localhost:2181)")
+                                        .withDescription("connection string to zookeeper (default localhost:2181); bench also supports 'embedded'")
                                         .withLongOpt("connection")
                                         .create("c");
 
         Option root = OptionBuilder.withArgName("root")
                 .hasArg()
                 .isRequired(false)
-                .withDescription("root-node for export, default is /")
+                .withDescription("root-node for export and sync, default is /")
                 .withLongOpt("root")
                 .create("r");
 
@@ -134,6 +264,100 @@ public class ZKBootstrapCli {
                 .withLongOpt("clean")
                 .create("e");
 
+        Option delete = OptionBuilder.withArgName("delete")
+                .hasArg()
+                .isRequired(false)
+                .withDescription("if sync should delete nodes that are not in the file (default is false)")
+                .withLongOpt("delete")
+                .create("d");
+
+        Option dryRun = OptionBuilder.withDescription("sync prints the changes instead of applying them")
+                .withLongOpt("dryrun")
+                .create("n");
+
+        Option format = OptionBuilder.withArgName("format")
+                .hasArg()
+                .isRequired(false)
+                .withDescription("export format properties or snapshot (default is properties); imports detect the format")
+                .withLongOpt("format")
+                .create("m");
+
+        Option stat = OptionBuilder.withArgName("stat")
+                .hasArg()
+                .isRequired(false)
+                .withDescription("if node stats should be stored in snapshot exports (default is false)")
+                .withLongOpt("stat")
+                .create("s");
+
+        Option threads = OptionBuilder.withArgName("threads").hasArg()
+                .withDescription("bench: number of client threads (default 4)")
+                .withLongOpt("threads")
+                .create();
+
+        Option keys = OptionBuilder.withArgName("keys").hasArg()
+                .withDescription("bench: number of nodes in the key space (default 1000)")
+                .withLongOpt("keys")
+                .create();
+
+        Option size = OptionBuilder.withArgName("bytes").hasArg()
+                .withDescription("bench: size of written values (default 100)")
+                .withLongOpt("size")
+                .create();
+
+        Option mix = OptionBuilder.withArgName("read:write:list").hasArg()
+                .withDescription("bench: operation mix (default 80:20:0)")
+                .withLongOpt("mix")
+                .create();
+
+        Option listeners = OptionBuilder.withArgName("listeners").hasArg()
+                .withDescription("bench: listeners on the key space, measure write to callback latency (default 0)")
+                .withLongOpt("listeners")
+                .create();
+
+        Option warmup = OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("bench: warmup (default 5); rulebench: warmup events (default 100)")
+                .withLongOpt("warmup")
+                .create();
+
+        Option duration = OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("bench: measurement duration (default 30)")
+                .withLongOpt("duration")
+                .create();
+
+        Option rules = OptionBuilder.withArgName("n,n,..").hasArg()
+                .withDescription("rulebench: numbers of rules (default 10,1000,10000)")
+                .withLongOpt("rules")
+                .create();
+
+        Option patterns = OptionBuilder.withArgName("n,n,..").hasArg()
+                .withDescription("rulebench: numbers of distinct event patterns the rules are spread over (default 10)")
+                .withLongOpt("patterns")
+                .create();
+
+        Option depth = OptionBuilder.withArgName("n,n,..").hasArg()
+                .withDescription("rulebench: nesting depths of the computed binding (default 1)")
+                .withLongOpt("depth")
+                .create();
+
+        Option fanOut = OptionBuilder.withArgName("n,n,..").hasArg()
+                .withDescription("rulebench: numbers of nodeData bindings per rule (default 1)")
+                .withLongOpt("fanout")
+                .create();
+
+        Option actions = OptionBuilder.withArgName("n,n,..").hasArg()
+                .withDescription("rulebench: numbers of actions per rule (default 1)")
+                .withLongOpt("actions")
+                .create();
+
+        Option events = OptionBuilder.withArgName("events").hasArg()
+                .withDescription("rulebench: measured events per shape (default 1000)")
+                .withLongOpt("events")
+                .create();
+
+        Option rate = OptionBuilder.withArgName("events/s").hasArg()
+                .withDescription("rulebench: event rate, 0 writes as fast as possible (default 0)")
+                .withLongOpt("rate")
+                .create();
 
         Options options = new Options();
         options.addOption(help);
@@ -142,6 +366,24 @@ public class ZKBootstrapCli {
         options.addOption(type);
         options.addOption(root);
         options.addOption(clean);
+        options.addOption(format);
+        options.addOption(stat);
+        options.addOption(delete);
+        options.addOption(dryRun);
+        options.addOption(threads);
+        options.addOption(keys);
+        options.addOption(size);
+        options.addOption(mix);
+        options.addOption(listeners);
+        options.addOption(warmup);
+        options.addOption(duration);
+        options.addOption(rules);
+        options.addOption(patterns);
+        options.addOption(depth);
+        options.addOption(fanOut);
+        options.addOption(actions);
+        options.addOption(events);
+        options.addOption(rate);
         return options;
     }
 
@@ -4,14 +4,15 @@ import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.ActionException;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
-import at.salzburgresearch.nodekeeper.model.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * ...
@@ -23,56 +24,69 @@ public class Action {
     private Logger logger = LoggerFactory.getLogger(Action.class);
 
     public enum Type {
-        createUpdateNode,deleteNode
+        createUpdateNode,deleteNode,
+        /**
+         * sets the time to live of a node (the arguments are the path and the time to live in milliseconds), see
+         * {@link NodeKeeper#expire(String, long)}
+         */
+        expireNode
     }
 
     public Type type;
     public String[] args;
 
+    //the arguments, parsed once
+    Template[] templates;
+
     public Action(Type type, String... args) {
         this.type = type;
         this.args = args;
-    }
-
-    public void execute(NodeKeeper nodeKeeper,HashMap<String,Object> bindings) throws InterruptedException, NodeKeeperException, IOException, ActionException {
-        try {
-            switch(type) {
-                case createUpdateNode: createUpdateNode(nodeKeeper, bindings); break;
-                case deleteNode: deleteNode(nodeKeeper, bindings);
-            }
-        } catch (BindingException e) {
-            throw new ActionException(String.format("Action of type %s is not executed because: %s", type, e.getMessage()),e);
+        this.templates = new Template[args.length];
+        for(int i = 0; i < args.length; i++) {
+            templates[i] = Template.compile(args[i]);
         }
     }
 
-    private void createUpdateNode(NodeKeeper nodeKeeper,HashMap<String,Object> bindings) throws InterruptedException, IOException, NodeKeeperException, BindingException {
-        nodeKeeper.writeNode(prepareNode(nodeKeeper,bindings),String.class);
+    /**
+     * @return the names of the bindings the action references
+     */
+    public Set<String> getReferencedBindings() {
+        Set<String> names = new LinkedHashSet<String>();
+        for(Template template : templates) {
+            names.addAll(template.getSlots());
+        }
+        return names;
     }
 
-    private void deleteNode(NodeKeeper nodeKeeper,HashMap<String,Object> bindings) throws NodeKeeperException, InterruptedException, BindingException {
-        nodeKeeper.deleteNode(prepareNode(nodeKeeper, bindings));
+    /**
+     * executes the action on its own, see {@link ActionPlan} to execute several actions in one transaction
+     */
+    public void execute(NodeKeeper nodeKeeper,Map<String,Object> bindings) throws InterruptedException, NodeKeeperException, IOException, ActionException {
+        ActionPlan plan = new ActionPlan();
+        plan.add(this, bindings);
+        plan.execute(nodeKeeper);
     }
 
-    private Node prepareNode(NodeKeeper nodeKeeper,HashMap<String,Object> bindings) throws BindingException {
-        String data = args.length > 1 ? args[1] : "";
-        String label = args[0];
-        for(String name : bindings.keySet()) {
-            String value;
-            if(bindings.get(name) instanceof BindingException) {
-                BindingException e = (BindingException) bindings.get(name);
-                if(e.isStrict()) {
-                    throw e;
-                } else {
-                    value = Binding.DEFAULT_BINDING;
+    /**
+     * renders the arguments
+     */
+    ActionPlan.Step prepare(Map<String,Object> bindings) throws ActionException {
+        try {
+            String label = templates[0].render(bindings);
+            String data = templates.length > 1 ? templates[1].render(bindings) : "";
+            if(type == Type.expireNode) {
+                long ttl;
+                try {
+                    ttl = Long.parseLong(data.trim());
+                } catch (NumberFormatException e) {
+                    ttl = -1;
                 }
-            } else {
-                value = (String)bindings.get(name);
+                if(ttl <= 0) throw new ActionException(String.format("Action of type %s is not executed because the time to live '%s' of node %s is not a positive number", type, data, label));
             }
-            data = data.replaceAll("\\{"+name+"\\}", value);
-            label = label.replaceAll("\\{"+name+"\\}", value);
+            return new ActionPlan.Step(type, label, data);
+        } catch (BindingException e) {
+            throw new ActionException(String.format("Action of type %s is not executed because: %s", type, e.getMessage()),e);
         }
-        Node<String> node = new Node<String>(label,data);
-        return node;
     }
 
     public Element toElement(Document doc) {
@@ -0,0 +1,365 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.eca.exception.ActionException;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.handlers.DataHandler;
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The actions of a rule firing (or of all rules firing on one event), executed as one multi() transaction: either all
+ * actions are applied or none. The existence of the target nodes and their parents is read with pipelined asynchronous
+ * requests (one by one on the zookeeper event thread, which delivers the callbacks), missing parents are created once,
+ * updates and deletes are conditional on the version that was read. If a concurrent modification fails the
+ * transaction, the state is read again and the transaction is retried. The time to live of an expireNode action is set
+ * once the transaction has been committed.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ActionPlan {
+
+    private static final Logger log = LoggerFactory.getLogger(ActionPlan.class);
+
+    /**
+     * the actions that are executed in one transaction
+     */
+    public enum Scope {
+        rule, event
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    //marks a node that does not exist in the planned state
+    private static final int MISSING = -1;
+
+    //marks an expireNode step that is applied after the transaction
+    private static final int EXPIRE = -2;
+
+    private static final String PATH_SEPARATOR = "/";
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    //true if the last execution committed its transaction
+    private boolean committed = false;
+
+    /**
+     * renders the arguments of an action and adds it to the plan
+     * @throws ActionException if the arguments cannot be rendered; the action is not added
+     */
+    public void add(Action action, Map<String,Object> bindings) throws ActionException {
+        add(action, bindings, null);
+    }
+
+    /**
+     * @param cascade the firing the action belongs to, the events of its write are part of the cascade
+     */
+    void add(Action action, Map<String,Object> bindings, Cascade cascade) throws ActionException {
+        Step step = action.prepare(bindings);
+        step.cascade = cascade;
+        steps.add(step);
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * @return the cascades by the paths the last execution wrote, empty if it did not commit; expireNode actions and
+     * skipped deletes write nothing
+     */
+    Map<String,Cascade> getWrites() {
+        Map<String,Cascade> writes = new HashMap<String, Cascade>();
+        if(!committed) return writes;
+        for(Step step : steps) {
+            if(step.op >= 0 && step.cascade != null) writes.put(step.path, step.cascade);
+        }
+        return writes;
+    }
+
+    /**
+     * @return the result of every action of the last execution, e.g. <i>createUpdateNode /a/b: created</i>
+     */
+    public List<String> getResults() {
+        List<String> results = new ArrayList<String>(steps.size());
+        for(Step step : steps) {
+            results.add(step.toString());
+        }
+        return results;
+    }
+
+    /**
+     * executes all actions in one transaction
+     * @return the number of zookeeper operations of the transaction
+     * @throws NodeKeeperException if the transaction fails; no action is applied
+     */
+    public int execute(NodeKeeper nodeKeeper) throws InterruptedException, NodeKeeperException, IOException {
+        if(steps.isEmpty()) return 0;
+
+        DataHandler handler = nodeKeeper.getDataHandler(String.class);
+        if(handler == null) throw new NodeKeeperException(String.format("cannot find handler for '%s'", String.class.getName()));
+        byte[] parentData = String.format("created by %s", NodeKeeper.class.getName()).getBytes();
+
+        ZooKeeper zk = nodeKeeper.getZooKeeper();
+        EventTracer tracer = nodeKeeper.getTracer();
+        Span span = tracer.start("transaction");
+        if(span != null) span.tag("actions", steps.size());
+        try {
+            int count = execute(zk, nodeKeeper.isEventThread(), handler, parentData, tracer);
+            //the time to live is applied once the nodes have been written
+            for(Step step : steps) {
+                if(step.type == Action.Type.expireNode && step.op == EXPIRE) {
+                    nodeKeeper.expire(step.path, Long.parseLong(step.data.trim()));
+                }
+            }
+            return count;
+        } finally {
+            tracer.finish(span);
+        }
+    }
+
+    private int execute(ZooKeeper zk, boolean eventThread, DataHandler handler, byte[] parentData, EventTracer tracer) throws InterruptedException, NodeKeeperException, IOException {
+        committed = false;
+        for(int attempt = 1; ; attempt++) {
+            Span read = tracer.start("versions");
+            Map<String,Integer> versions;
+            try {
+                versions = eventThread ? readVersionsSync(zk) : readVersions(zk);
+            } finally {
+                tracer.finish(read);
+            }
+
+            List<Op> ops = new ArrayList<Op>();
+            for(Step step : steps) {
+                step.op = -1;
+                switch (step.type) {
+                    case createUpdateNode:
+                        byte[] data = handler.serialize(step.data);
+                        int version = versions.get(step.path);
+                        if(version != MISSING) {
+                            step.result = "updated";
+                            step.op = ops.size();
+                            ops.add(Op.setData(step.path, data, version));
+                            versions.put(step.path, version + 1);
+                        } else {
+                            for(String parent : parents(step.path)) {
+                                if(versions.get(parent) == MISSING) {
+                                    ops.add(Op.create(parent, parentData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                                    versions.put(parent, 0);
+                                }
+                            }
+                            step.result = "created";
+                            step.op = ops.size();
+                            ops.add(Op.create(step.path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                            versions.put(step.path, 0);
+                        }
+                        break;
+                    case deleteNode:
+                        if(versions.get(step.path) != MISSING) {
+                            step.result = "deleted";
+                            step.op = ops.size();
+                            ops.add(Op.delete(step.path, versions.get(step.path)));
+                            versions.put(step.path, MISSING);
+                        } else {
+                            step.result = "skipped, the node does not exist";
+                        }
+                        break;
+                    case expireNode:
+                        if(versions.get(step.path) != MISSING) {
+                            step.result = String.format("expires after %sms", step.data.trim());
+                            step.op = EXPIRE;
+                        } else {
+                            step.result = "skipped, the node does not exist";
+                        }
+                        break;
+                }
+            }
+
+            if(ops.isEmpty()) {
+                logResults();
+                return 0;
+            }
+
+            Span multi = tracer.start("multi");
+            if(multi != null) multi.tag("attempt", attempt).tag("ops", ops.size());
+            //one span per write, the cause of the event the write triggers
+            for(Step step : steps) {
+                if(step.op >= 0) step.span = tracer.child("write");
+            }
+            try {
+                zk.multi(ops);
+                committed = true;
+                for(Step step : steps) {
+                    tracer.caused(step.path, step.span);
+                }
+                logResults();
+                return ops.size();
+            } catch (KeeperException e) {
+                KeeperException.Code code = e.code();
+                boolean concurrent = code == KeeperException.Code.NODEEXISTS || code == KeeperException.Code.NONODE
+                        || code == KeeperException.Code.BADVERSION;
+                if(concurrent && attempt < MAX_ATTEMPTS) {
+                    log.debug("transaction of {} actions failed because of a concurrent modification ({}), retry", steps.size(), code);
+                    continue;
+                }
+                for(Step step : steps) {
+                    if(step.op == EXPIRE) step.op = -1;
+                }
+                failed(e.getResults());
+                logResults();
+                throw new NodeKeeperException(String.format("cannot execute %s actions (%s)", steps.size(), e.getMessage()), e);
+            } finally {
+                for(Step step : steps) {
+                    if(step.span == null) continue;
+                    step.span.tag("action", step.type).tag("path", step.path).tag("result", step.result);
+                    tracer.finish(step.span);
+                    step.span = null;
+                }
+                tracer.finish(multi);
+            }
+        }
+    }
+
+    //the target nodes and the parents of created nodes
+    private Set<String> readPaths() {
+        Set<String> paths = new LinkedHashSet<String>();
+        for(Step step : steps) {
+            paths.add(step.path);
+            if(step.type == Action.Type.createUpdateNode) paths.addAll(parents(step.path));
+        }
+        return paths;
+    }
+
+    /**
+     * reads the versions of all target nodes and of the parents of created nodes with pipelined requests
+     */
+    private Map<String,Integer> readVersions(ZooKeeper zk) throws InterruptedException, NodeKeeperException {
+        Set<String> paths = readPaths();
+
+        final Map<String,Integer> versions = new ConcurrentHashMap<String, Integer>();
+        final Map<String,KeeperException.Code> errors = new ConcurrentHashMap<String, KeeperException.Code>();
+        final CountDownLatch done = new CountDownLatch(paths.size());
+        for(String path : paths) {
+            zk.exists(path, false, new AsyncCallback.StatCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    if(rc == KeeperException.Code.OK.intValue()) versions.put(path, stat.getVersion());
+                    else if(rc == KeeperException.Code.NONODE.intValue()) versions.put(path, MISSING);
+                    else errors.put(path, KeeperException.Code.get(rc));
+                    done.countDown();
+                }
+            }, null);
+        }
+        if(!done.await(zk.getSessionTimeout(), TimeUnit.MILLISECONDS)) {
+            throw new NodeKeeperException(String.format("cannot read %s nodes within %sms", paths.size(), zk.getSessionTimeout()));
+        }
+
+        if(!errors.isEmpty()) {
+            Map.Entry<String,KeeperException.Code> error = errors.entrySet().iterator().next();
+            throw new NodeKeeperException(String.format("cannot read node '%s' (%s)", error.getKey(), error.getValue()));
+        }
+        return new HashMap<String, Integer>(versions);
+    }
+
+    /**
+     * reads the versions one by one; used on the event thread, which would deliver the callbacks of pipelined requests
+     * only after the rule that waits for them has returned
+     */
+    private Map<String,Integer> readVersionsSync(ZooKeeper zk) throws InterruptedException, NodeKeeperException {
+        Map<String,Integer> versions = new HashMap<String, Integer>();
+        for(String path : readPaths()) {
+            try {
+                Stat stat = zk.exists(path, false);
+                versions.put(path, stat != null ? stat.getVersion() : MISSING);
+            } catch (KeeperException e) {
+                throw new NodeKeeperException(String.format("cannot read node '%s' (%s)", path, e.code()), e);
+            }
+        }
+        return versions;
+    }
+
+    private void failed(List<OpResult> results) {
+        for(Step step : steps) {
+            if(step.op < 0) continue;
+            if(results == null || step.op >= results.size() || !(results.get(step.op) instanceof OpResult.ErrorResult)) {
+                step.result = "rolled back";
+                continue;
+            }
+            int err = ((OpResult.ErrorResult) results.get(step.op)).getErr();
+            if(err == KeeperException.Code.OK.intValue() || err == KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()) {
+                step.result = "rolled back";
+            } else {
+                step.result = "failed, " + KeeperException.Code.get(err);
+            }
+        }
+    }
+
+    private void logResults() {
+        for(Step step : steps) {
+            log.debug("  action {}", step);
+        }
+    }
+
+    //the parents of a path, shallow first and without the root
+    private static List<String> parents(String path) {
+        List<String> parents = new ArrayList<String>();
+        int i = path.indexOf(PATH_SEPARATOR, 1);
+        while(i > 0) {
+            parents.add(path.substring(0, i));
+            i = path.indexOf(PATH_SEPARATOR, i + 1);
+        }
+        return parents;
+    }
+
+    /**
+     * an action with rendered arguments
+     */
+    static class Step {
+
+        final Action.Type type;
+        final String path;
+        final String data;
+
+        //the index of the operation in the transaction, -1 if the action needs none
+        int op = -1;
+        String result = "not executed";
+        Span span;
+        Cascade cascade;
+
+        Step(Action.Type type, String path, String data) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %s", type, path, result);
+        }
+    }
+}
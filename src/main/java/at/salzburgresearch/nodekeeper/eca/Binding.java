@@ -2,6 +2,7 @@ package at.salzburgresearch.nodekeeper.eca;
 
 import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
 import at.salzburgresearch.nodekeeper.eca.function.Function;
 import at.salzburgresearch.nodekeeper.eca.function.StaticValueFunction;
 import at.salzburgresearch.nodekeeper.model.Node;
@@ -30,14 +31,32 @@ public class Binding {
     }
 
     public Object execute(NodeKeeper nodeKeeper, Node current) {
+        return execute(new EvaluationContext(nodeKeeper, current));
+    }
+
+    public Object execute(EvaluationContext context) {
         try {
-            return function.execute(nodeKeeper,current);
+            return context.evaluate(function);
         } catch (BindingException e) {
-            e.setStrict(strict);
-            return e;
+            //the exception may be shared with bindings of other rules that differ in strictness
+            BindingException exception = new BindingException(e.getMessage(), e.getCause());
+            exception.setStrict(strict);
+            return exception;
         }
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    public boolean isStrict() {
+        return strict;
+    }
+
     public Element toElement(Document doc) {
         Element element = doc.createElement("binding");
         element.setAttribute("name",name);
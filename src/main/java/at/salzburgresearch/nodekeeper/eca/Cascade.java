@@ -0,0 +1,48 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+/**
+ * The chain of rule firings that caused a write: the rule and the event path of the firing and the cascade of that
+ * event, if it has been caused by an action itself.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class Cascade {
+
+    final Cascade cause;
+    final String rule;
+    final String path;
+    final int depth;
+    final long created = System.nanoTime();
+
+    /**
+     * @param cause the cascade of the event that fired the rule, null for an event that has not been caused by a rule
+     * @param rule the id of the rule
+     * @param path the path of the event
+     */
+    Cascade(Cascade cause, String rule, String path) {
+        this.cause = cause;
+        this.rule = rule;
+        this.path = path;
+        this.depth = cause == null ? 1 : cause.depth + 1;
+    }
+
+    /**
+     * @return true if the rule has fired on the path before in this cascade, so firing it again closes a loop
+     */
+    boolean contains(String rule, String path) {
+        for(Cascade c = this; c != null; c = c.cause) {
+            if(c.rule.equals(rule) && c.path.equals(path)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for(Cascade c = this; c != null; c = c.cause) {
+            if(b.length() > 0) b.append(" <- ");
+            b.append(c.rule).append("@").append(c.path);
+        }
+        return b.toString();
+    }
+}
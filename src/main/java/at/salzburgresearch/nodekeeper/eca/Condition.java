@@ -6,10 +6,18 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * ...
+ * A condition of a rule: a comparison of two arguments or a composition of conditions with <i>and</i>, <i>or</i> and
+ * <i>not</i>. Compositions are evaluated with short-circuit; see {@link #order(List, Map)} for the evaluation order.
  * <p/>
  * Author: Thomas Kurz (tkurz@apache.org)
  */
@@ -19,71 +27,202 @@ public class Condition {
 
     String arg1, arg2;
 
+    //the terms of a composition
+    List<Condition> terms;
+
+    //the arguments, parsed once
+    Template template1, template2;
+
+    //the typed arguments without placeholders, typed once
+    Value literal1, literal2;
+
     Logger log = LoggerFactory.getLogger(Condition.class);
 
     public Condition(Type type, String arg1, String arg2) {
         this.type = type;
         this.arg1 = arg1;
         this.arg2 = arg2;
+        this.template1 = Template.compile(arg1);
+        this.template2 = Template.compile(arg2);
+        this.literal1 = template1.isConstant() ? Value.parse(arg1) : null;
+        this.literal2 = template2.isConstant() ? Value.parse(arg2) : null;
+    }
+
+    /**
+     * @param type and, or or not
+     * @param terms the terms; <i>not</i> takes exactly one term
+     */
+    public Condition(Type type, List<Condition> terms) {
+        if(!type.isComposite()) throw new IllegalArgumentException(String.format("%s is not a composition", type));
+        if(type == Type.not ? terms.size() != 1 : terms.isEmpty()) {
+            throw new IllegalArgumentException(String.format("%s does not support %s terms", type, terms.size()));
+        }
+        this.type = type;
+        this.terms = new ArrayList<Condition>(terms);
     }
 
     public enum Type {
-        equals, notEquals, lowerThan, greaterThan, lowerThanEquals, greaterThanEquals
+        equals, notEquals, lowerThan, greaterThan, lowerThanEquals, greaterThanEquals, and, or, not;
+
+        public boolean isComposite() {
+            return this == and || this == or || this == not;
+        }
     }
 
-    public boolean execute(HashMap<String,Object> bindings) {
+    public Type getType() {
+        return type;
+    }
 
-        String _arg1 = arg1;
-        String _arg2 = arg2;
+    /**
+     * @return the terms of a composition or an empty list
+     */
+    public List<Condition> getTerms() {
+        return terms != null ? Collections.unmodifiableList(terms) : Collections.<Condition>emptyList();
+    }
 
-        for(String name : bindings.keySet()) {
-            if(bindings.get(name) instanceof BindingException) {
-                if(((BindingException)bindings.get(name)).isStrict()) {
-                    log.warn("Exception in bindings found. Condition failed", ((BindingException)bindings.get(name)));
-                    return false;
-                } else {
-                    _arg1 = _arg1.replaceAll("\\{"+name+"\\}",Binding.DEFAULT_BINDING);
-                    _arg2 = _arg2.replaceAll("\\{"+name+"\\}",Binding.DEFAULT_BINDING);
-                }
+    /**
+     * @return the names of the bindings the condition references
+     */
+    public Set<String> getReferencedBindings() {
+        if(terms != null) {
+            Set<String> names = new LinkedHashSet<String>();
+            for(Condition term : terms) {
+                names.addAll(term.getReferencedBindings());
+            }
+            return names;
+        }
+        Set<String> names = template1.getSlots();
+        names.addAll(template2.getSlots());
+        return names;
+    }
+
+    /**
+     * estimates the cost of the condition from the functions of the bindings it references
+     * @param bindings the bindings of the rule by name
+     * @return the sum of the costs of the referenced bindings, 0 for comparisons of literals
+     */
+    public int getCost(Map<String,Binding> bindings) {
+        int cost = 0;
+        for(String name : getReferencedBindings()) {
+            Binding binding = bindings.get(name);
+            if(binding != null) cost += binding.getFunction().getCost();
+        }
+        return cost;
+    }
 
-            } else {
-                _arg1 = _arg1.replaceAll("\\{"+name+"\\}",(String)bindings.get(name));
-                _arg2 = _arg2.replaceAll("\\{"+name+"\\}",(String)bindings.get(name));
+    /**
+     * returns the conditions in evaluation order: the terms of the implicit <i>and</i> of a rule and of every
+     * composition are stably sorted cheapest first, so a cheap test of the event path rejects an event before a
+     * condition reads nodes. Terms are free of side effects, so the order does not change the result.
+     * @param conditions the conditions of a rule
+     * @param bindings the bindings of the rule by name
+     * @return a reordered copy, the conditions are not modified
+     */
+    public static List<Condition> order(List<Condition> conditions, final Map<String,Binding> bindings) {
+        List<Condition> ordered = new ArrayList<Condition>(conditions.size());
+        for(Condition condition : conditions) {
+            ordered.add(condition.terms != null ? new Condition(condition.type, order(condition.terms, bindings)) : condition);
+        }
+        //costs are computed once per condition, not per comparison
+        final Map<Condition,Integer> costs = new IdentityHashMap<Condition, Integer>();
+        for(Condition condition : ordered) {
+            costs.put(condition, condition.getCost(bindings));
+        }
+        Collections.sort(ordered, new Comparator<Condition>() {
+            @Override
+            public int compare(Condition c1, Condition c2) {
+                return costs.get(c1).compareTo(costs.get(c2));
             }
+        });
+        return ordered;
+    }
+
+    public boolean execute(Map<String,Object> bindings) {
 
+        switch(type) {
+            case and:
+                for(Condition term : terms) {
+                    if(!term.execute(bindings)) return false;
+                }
+                return true;
+            case or:
+                for(Condition term : terms) {
+                    if(term.execute(bindings)) return true;
+                }
+                return false;
+            case not:
+                return !terms.get(0).execute(bindings);
         }
 
-        //test
+        Value v1;
+        Value v2;
+
         try {
-            int i1 = Integer.parseInt(_arg1);
-            int i2 = Integer.parseInt(_arg2);
+            v1 = value(template1, literal1, bindings);
+            v2 = value(template2, literal2, bindings);
+        } catch (BindingException e) {
+            log.warn("Exception in bindings found. Condition failed", e);
+            return false;
+        }
 
-            switch(type) {
-                case equals: return i1 == i2;
-                case notEquals: return i1 != i2;
-                case lowerThan: return i1 < i2;
-                case greaterThan: return i1 > i2;
-                case lowerThanEquals: return i1 <= i2;
-                case greaterThanEquals: return i1 >= i2;
-                default: return false;
-            }
-        } catch(NumberFormatException e) {
-            switch(type) {
-                case equals: return _arg1.equals(_arg2);
-                case notEquals: return !_arg1.equals(_arg2);
-                case lowerThan: return _arg1.length() < _arg2.length();
-                case greaterThan: return _arg1.length() > _arg2.length();
-                case lowerThanEquals: return _arg1.length() <= _arg2.length();
-                case greaterThanEquals: return _arg1.length() >= _arg2.length();
-                default: return false;
+        //test
+        switch(type) {
+            case equals: return Value.isEqual(v1, v2);
+            case notEquals: return !Value.isEqual(v1, v2);
+            case lowerThan: return Value.compare(v1, v2) < 0;
+            case greaterThan: return Value.compare(v1, v2) > 0;
+            case lowerThanEquals: return Value.compare(v1, v2) <= 0;
+            case greaterThanEquals: return Value.compare(v1, v2) >= 0;
+            default: return false;
+        }
+    }
+
+    /**
+     * returns the typed value of an argument: the literal, the typed binding of a single placeholder or the typed
+     * rendered string
+     */
+    private static Value value(Template template, Value literal, Map<String,Object> bindings) throws BindingException {
+        if(literal != null) return literal;
+        String slot = template.getSlot();
+        if(slot != null) {
+            Object value = bindings.get(slot);
+            if(value instanceof BindingException) return Value.parse(Template.toString(value));
+            if(value != null) return Value.of(value);
+        }
+        return Value.parse(template.render(bindings));
+    }
+
+    /**
+     * @return a structural key of the condition, e.g. <i>or(equals('{a}','b'),not(...))</i>
+     */
+    public String getSignature() {
+        StringBuilder b = new StringBuilder(type.name()).append('(');
+        if(terms != null) {
+            for(int i = 0; i < terms.size(); i++) {
+                if(i > 0) b.append(',');
+                b.append(terms.get(i).getSignature());
             }
+        } else {
+            b.append(quote(arg1)).append(',').append(quote(arg2));
         }
+        return b.append(')').toString();
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
     }
 
     public Element toElement(Document doc) {
         Element element = doc.createElement("condition");
         element.setAttribute("type", type.toString());
 
+        if(terms != null) {
+            for(Condition term : terms) {
+                element.appendChild(term.toElement(doc));
+            }
+            return element;
+        }
+
         Element param1 = doc.createElement("param");
         param1.setTextContent(arg1);
         Element param2 = doc.createElement("param");
@@ -98,6 +237,19 @@ public class Condition {
     public String getDescription() {
         StringBuffer b = new StringBuffer();
 
+        if(terms != null) {
+            switch(type) {
+                case and: b.append("all of:<ul>");break;
+                case or: b.append("any of:<ul>");break;
+                case not: b.append("none of:<ul>");break;
+            }
+            for(Condition term : terms) {
+                b.append("<li>" + term.getDescription() + "</li>");
+            }
+            b.append("</ul>");
+            return b.toString();
+        }
+
         b.append("<span>" + arg1 + "<span>");
 
         switch(type) {
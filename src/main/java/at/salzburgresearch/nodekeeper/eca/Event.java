@@ -4,6 +4,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.util.regex.Pattern;
+
 /**
  * ...
  * <p/>
@@ -12,21 +14,62 @@ import org.w3c.dom.Node;
 public class Event {
 
     public enum Type {
-        nodeCreated, nodeCreatedUpdated, nodeUpdated, nodeDeleted
+        nodeCreated, nodeCreatedUpdated, nodeUpdated, nodeDeleted,
+        /**
+         * a node has not been modified for the timeout since its last creation or update
+         */
+        nodeIdle,
+        /**
+         * the count, sum, min or max over the children of a node changed, the event node is the parent; see
+         * {@link at.salzburgresearch.nodekeeper.eca.function.ChildAggregates}
+         */
+        childrenChanged
     }
 
     public Class nodeType = String.class;
     public Type type;
     public String pattern;
+    //the idle time in milliseconds of a nodeIdle event
+    public long timeout;
+
+    //the pattern, compiled on first use
+    private Pattern regex;
+    private PathTemplate template;
 
     public Event(Type type, String pattern) {
         this.type = type;
         this.pattern = pattern;
     }
 
+    /**
+     * @param type the delivered event type (nodeCreated, nodeUpdated, nodeDeleted, ...)
+     * @return true if an event of the type on the path is an event of this kind
+     */
+    public boolean matches(Type type, String path) {
+        if(this.type != type && !(this.type == Type.nodeCreatedUpdated && (type == Type.nodeCreated || type == Type.nodeUpdated))) {
+            return false;
+        }
+        if(getTemplate() != null) return template.matches(path);
+        if(regex == null) regex = Pattern.compile(pattern);
+        return regex.matcher(path).matches();
+    }
+
+    /**
+     * @return the compiled pattern if it is a path template, null if it is a regex
+     */
+    public PathTemplate getTemplate() {
+        if(template == null && PathTemplate.isTemplate(pattern)) template = PathTemplate.compile(pattern);
+        return template;
+    }
+
     public Element toElement(Document doc) {
-        Element element = doc.createElement("event");
+        return toElement(doc, "event");
+    }
+
+    Element toElement(Document doc, String name) {
+        Element element = doc.createElement(name);
         element.setAttribute("type",type.name());
+        if(type == Type.nodeIdle) element.setAttribute("timeout",String.valueOf(timeout));
         Element p = doc.createElement("param");
         p.setTextContent(pattern);
         element.appendChild(p);
@@ -0,0 +1,100 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pattern over several node events, e.g. <i>node A created, then B updated within 30s</i> or <i>service node
+ * deleted and not recreated within 10s</i>. The events of the sequence must occur in order within the time window that
+ * starts with the first event; an absent event must not occur after the sequence until the window ends. Events are
+ * correlated by a key, a template over the bindings of each event (e.g. <i>{name}</i> with a currentNodeLabel binding);
+ * without a key all events of the rule are correlated.
+ * <p/>
+ * The rule fires with the bindings of the event that completes the pattern: the last event of the sequence or, with an
+ * absent event, the last event of the sequence when the window ends.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class EventSequence {
+
+    public final List<Event> events;
+    //null if the pattern has no absent event
+    public final Event absent;
+    public final long within;
+    public final String key;
+
+    //the key, parsed once
+    private final Template template;
+
+    /**
+     * @param events the events in the order they must occur, at least one
+     * @param absent the event that must not occur after the sequence within the window, or null
+     * @param within the time window in milliseconds
+     * @param key the template of the correlation key or null
+     */
+    public EventSequence(List<Event> events, Event absent, long within, String key) {
+        if(events.isEmpty()) throw new IllegalArgumentException("a sequence needs at least one event");
+        if(within <= 0) throw new IllegalArgumentException(String.format("the window of a sequence must be positive, found %s", within));
+        if(events.size() == 1 && absent == null) throw new IllegalArgumentException("a sequence needs two events or an absent event");
+        this.events = Collections.unmodifiableList(new ArrayList<Event>(events));
+        this.absent = absent;
+        this.within = within;
+        this.key = key;
+        this.template = key != null ? Template.compile(key) : null;
+    }
+
+    /**
+     * @return all events the pattern listens to, the events of the sequence and the absent event
+     */
+    public List<Event> getAllEvents() {
+        List<Event> all = new ArrayList<Event>(events);
+        if(absent != null) all.add(absent);
+        return all;
+    }
+
+    /**
+     * @return the names of the bindings the key references
+     */
+    public Set<String> getReferencedBindings() {
+        return template != null ? template.getSlots() : Collections.<String>emptySet();
+    }
+
+    /**
+     * renders the correlation key
+     */
+    String getKey(Map<String,Object> bindings) throws BindingException {
+        return template != null ? template.render(bindings) : "";
+    }
+
+    String getSignature() {
+        StringBuilder b = new StringBuilder("sequence(").append(within).append(',').append(key != null ? key : "");
+        for(Event event : events) {
+            b.append(',').append(event.type).append(':').append(event.nodeType.getName()).append(':').append(event.pattern);
+        }
+        if(absent != null) b.append(",!").append(absent.type).append(':').append(absent.nodeType.getName()).append(':').append(absent.pattern);
+        return b.append(')').toString();
+    }
+
+    public Element toElement(Document doc) {
+        Element element = doc.createElement("sequence");
+        element.setAttribute("within", String.valueOf(within));
+        if(key != null) element.setAttribute("key", key);
+        for(Event event : events) {
+            element.appendChild(event.toElement(doc));
+        }
+        if(absent != null) element.appendChild(absent.toElement(doc, "absent"));
+        return element;
+    }
+
+    @Override
+    public String toString() {
+        return getSignature();
+    }
+}
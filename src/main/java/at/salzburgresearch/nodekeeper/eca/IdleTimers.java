@@ -0,0 +1,126 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.timer.TimingWheel;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The pending timers of the rules with a nodeIdle event, one per rule and node. A timer is armed when the node is
+ * created or updated and checks the modification time of the node when it expires: if the node has been modified in
+ * the meantime, the timer is armed again, otherwise the rule fires once for the idle period. The check runs on the
+ * event thread of zookeeper, so idle firings are serialized with the node events.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class IdleTimers {
+
+    private static final Logger log = LoggerFactory.getLogger(IdleTimers.class);
+
+    /**
+     * fires a rule for an idle node
+     */
+    interface Callback {
+        void idle(RuleNetwork.RuleNode match, String path);
+    }
+
+    private final ConcurrentHashMap<String,Check> timers = new ConcurrentHashMap<String, Check>();
+    private final NodeKeeper nodeKeeper;
+    private final Callback callback;
+
+    IdleTimers(NodeKeeper nodeKeeper, Callback callback) {
+        this.nodeKeeper = nodeKeeper;
+        this.callback = callback;
+    }
+
+    /**
+     * arms the timer of a rule for a node; an armed timer is kept unless the deadline is earlier
+     * @param deadline the time of the check in milliseconds since the epoch
+     */
+    synchronized void arm(RuleNetwork.RuleNode match, String path, long deadline) {
+        String id = match.rule.id + '\n' + path;
+        Check armed = timers.get(id);
+        if(armed != null && armed.timeout.getDeadline() <= deadline) return;
+        schedule(new Check(match, path, id), deadline);
+    }
+
+    /**
+     * cancels the timer of a rule for a node, e.g. because the node has been deleted
+     */
+    synchronized void cancel(String ruleId, String path) {
+        Check armed = timers.remove(ruleId + '\n' + path);
+        if(armed != null) nodeKeeper.getTimers().cancel(armed.timeout);
+    }
+
+    /**
+     * cancels all timers of a rule
+     */
+    synchronized void cancel(String ruleId) {
+        for(Map.Entry<String,Check> entry : timers.entrySet()) {
+            if(!entry.getValue().match.rule.id.equals(ruleId)) continue;
+            timers.remove(entry.getKey());
+            nodeKeeper.getTimers().cancel(entry.getValue().timeout);
+        }
+    }
+
+    /**
+     * @return the number of armed timers
+     */
+    int size() {
+        return timers.size();
+    }
+
+    private void schedule(Check check, long deadline) {
+        Check armed = timers.put(check.id, check);
+        if(armed != null) nodeKeeper.getTimers().cancel(armed.timeout);
+        check.timeout = nodeKeeper.getTimers().scheduleAt(check, deadline);
+    }
+
+    /**
+     * reads the modification time of the node when the timer expires
+     */
+    private class Check implements Runnable, AsyncCallback.StatCallback {
+
+        final RuleNetwork.RuleNode match;
+        final String path;
+        final String id;
+        TimingWheel.Timeout timeout;
+
+        Check(RuleNetwork.RuleNode match, String path, String id) {
+            this.match = match;
+            this.path = path;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            nodeKeeper.getZooKeeper().exists(path, false, this, null);
+        }
+
+        @Override
+        public void processResult(int rc, String p, Object ctx, Stat stat) {
+            synchronized (IdleTimers.this) {
+                //cancelled or replaced in the meantime
+                if(timers.get(id) != this) return;
+                if(rc == KeeperException.Code.OK.intValue()) {
+                    long deadline = stat.getMtime() + match.rule.event.timeout;
+                    if(deadline > System.currentTimeMillis()) {
+                        schedule(new Check(match, path, id), deadline);
+                        return;
+                    }
+                } else if(rc != KeeperException.Code.NONODE.intValue()) {
+                    log.warn(String.format("cannot check if node %s is idle for rule %s: %s", path, match.rule.id, KeeperException.Code.get(rc)));
+                }
+                timers.remove(id, this);
+                if(rc != KeeperException.Code.OK.intValue()) return;
+            }
+            callback.idle(match, path);
+        }
+    }
+}
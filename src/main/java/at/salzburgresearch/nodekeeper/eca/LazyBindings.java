@@ -0,0 +1,114 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
+import at.salzburgresearch.nodekeeper.model.Node;
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The bindings of one rule firing. A binding is evaluated when a condition or action reads it for the first time and
+ * memoized for the rest of the firing, so bindings that are never referenced (or only referenced by actions of a rule
+ * whose conditions fail) are never evaluated.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class LazyBindings extends AbstractMap<String,Object> {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyBindings.class);
+
+    //marks a binding whose evaluation failed with a runtime exception; it is handled as not bound
+    private static final Object MISSING = new Object();
+
+    private Map<String,Binding> bindings;
+    private EvaluationContext context;
+    private RuleProfiler.RuleProfile profile;
+
+    private HashMap<String,Object> values = new HashMap<String, Object>();
+    private int preset;
+
+    /**
+     * @param bindings the bindings of the rule by name
+     * @param context the context of the event that triggered the firing
+     * @param profile the profile of the rule, gets the time and errors of the evaluations
+     */
+    LazyBindings(Map<String,Binding> bindings, EvaluationContext context, RuleProfiler.RuleProfile profile) {
+        this.bindings = bindings;
+        this.context = context;
+        this.profile = profile;
+    }
+
+    @Override
+    public Object get(Object name) {
+        Object value = values.get(name);
+        if(value == null && !values.containsKey(name)) {
+            Binding binding = bindings.get(name);
+            if(binding == null) return null;
+            value = evaluate(binding);
+            values.put(binding.name, value);
+        }
+        return value == MISSING ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return get(name) != null || (values.containsKey(name) && values.get(name) != MISSING);
+    }
+
+    private Object evaluate(Binding binding) {
+        EventTracer tracer = context.getNodeKeeper().getTracer();
+        Span span = tracer.start("binding");
+        if(span != null) span.tag("binding", binding.name);
+        long start = System.nanoTime();
+        try {
+            Object result = binding.execute(context);
+            log.debug("    {}: {}", binding.name, result);
+            if(result instanceof BindingException) profile.error();
+            return result;
+        } catch (RuntimeException e) {               //TODO should not happen anymore
+            Node node = context.getCurrent();
+            log.warn("Unable to execute Binding '" + binding.name
+                    + "' on node '" + (node != null ? node.getPath() : null)
+                    + "'! Binding will be missing. ", e);
+            profile.error();
+            return MISSING;
+        } finally {
+            profile.binding(binding.name, System.nanoTime() - start);
+            tracer.finish(span);
+        }
+    }
+
+    /**
+     * sets a value that is not computed by a binding, e.g. the event count of a window
+     */
+    void set(String name, Object value) {
+        if(values.put(name, value) == null) preset++;
+    }
+
+    /**
+     * @return the number of bindings that have been evaluated so far
+     */
+    int getEvaluated() {
+        return values.size() - preset;
+    }
+
+    /**
+     * evaluates all bindings
+     */
+    @Override
+    public Set<Entry<String,Object>> entrySet() {
+        Set<Entry<String,Object>> entries = new HashSet<Entry<String, Object>>();
+        for(String name : bindings.keySet()) {
+            if(containsKey(name)) entries.add(new SimpleImmutableEntry<String, Object>(name, get(name)));
+        }
+        return entries;
+    }
+}
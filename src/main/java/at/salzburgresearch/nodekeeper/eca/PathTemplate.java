@@ -0,0 +1,172 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An event pattern like <i>/devices/{id}/sensors/{sensor}/**</i> that is matched segment by segment instead of as a
+ * regex. <i>{name}</i> matches one segment and binds it to <i>name</i>, <i>*</i> matches one segment, a trailing
+ * <i>**</i> matches any number of segments; all other segments are literals. The captures are set as bindings of the
+ * rule when it fires, so no path has to be split by a binding function.
+ * <p/>
+ * A pattern is a template if it starts with '/' and one of its segments is a capture or <i>**</i>. Such a pattern is no
+ * valid regex, so every existing regex pattern keeps its meaning. A <i>*</i> segment alone does not make a template:
+ * <i>/devices/*&#47;state</i> is a valid regex and stays one.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class PathTemplate {
+
+    private static final int LITERAL = 0;
+    private static final int CAPTURE = 1;
+    private static final int WILDCARD = 2;
+    private static final int GLOBSTAR = 3;
+
+    private final String source;
+
+    //the literal or the capture name of each segment
+    private final String[] segments;
+    private final int[] kinds;
+    private final List<String> captures;
+
+    private PathTemplate(String source, String[] segments, int[] kinds, List<String> captures) {
+        this.source = source;
+        this.segments = segments;
+        this.kinds = kinds;
+        this.captures = Collections.unmodifiableList(captures);
+    }
+
+    /**
+     * @return true if the pattern is a path template and not a regex, i.e. it has a capture or a <i>**</i> segment
+     */
+    public static boolean isTemplate(String pattern) {
+        if(pattern == null || !pattern.startsWith("/")) return false;
+        int start = 1;
+        while(start <= pattern.length()) {
+            int end = pattern.indexOf('/', start);
+            if(end < 0) end = pattern.length();
+            int kind = kind(pattern, start, end);
+            if(kind == CAPTURE || kind == GLOBSTAR) return true;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the template is invalid, e.g. a capture name is used twice
+     */
+    public static PathTemplate compile(String pattern) {
+        if(!isTemplate(pattern)) throw new IllegalArgumentException(String.format("%s is no path template", pattern));
+        String[] parts = pattern.substring(1).split("/", -1);
+        String[] segments = new String[parts.length];
+        int[] kinds = new int[parts.length];
+        List<String> captures = new ArrayList<String>();
+        Set<String> names = new HashSet<String>();
+        for(int i = 0; i < parts.length; i++) {
+            kinds[i] = kind(parts[i], 0, parts[i].length());
+            switch (kinds[i]) {
+                case CAPTURE:
+                    segments[i] = parts[i].substring(1, parts[i].length() - 1);
+                    if(!names.add(segments[i])) {
+                        throw new IllegalArgumentException(String.format("capture {%s} is used twice in %s", segments[i], pattern));
+                    }
+                    captures.add(segments[i]);
+                    break;
+                case GLOBSTAR:
+                    if(i < parts.length - 1) throw new IllegalArgumentException(String.format("** must be the last segment of %s", pattern));
+                    //fall through
+                default:
+                    segments[i] = parts[i];
+            }
+        }
+        return new PathTemplate(pattern, segments, kinds, captures);
+    }
+
+    //the kind of the segment between start (inclusive) and end (exclusive)
+    private static int kind(String s, int start, int end) {
+        int length = end - start;
+        if(length == 1 && s.charAt(start) == '*') return WILDCARD;
+        if(length == 2 && s.charAt(start) == '*' && s.charAt(start + 1) == '*') return GLOBSTAR;
+        if(length < 3 || s.charAt(start) != '{' || s.charAt(end - 1) != '}') return LITERAL;
+        char first = s.charAt(start + 1);
+        if(!Character.isLetter(first) && first != '_') return LITERAL;
+        for(int i = start + 2; i < end - 1; i++) {
+            char c = s.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '_') return LITERAL;
+        }
+        return CAPTURE;
+    }
+
+    public boolean matches(String path) {
+        return match(path, null);
+    }
+
+    /**
+     * sets the captures of a matching path as bindings
+     * @return false if the path does not match, nothing is set then
+     */
+    boolean bind(String path, LazyBindings bindings) {
+        if(captures.isEmpty()) return matches(path);
+        String[] values = new String[captures.size()];
+        if(!match(path, values)) return false;
+        for(int i = 0; i < values.length; i++) {
+            bindings.set(captures.get(i), values[i]);
+        }
+        return true;
+    }
+
+    //scans the path once, the captured segments are only copied if values is set
+    private boolean match(String path, String[] values) {
+        int n = path.length();
+        int position = 0;
+        int capture = 0;
+        for(int i = 0; i < segments.length; i++) {
+            //the previous segment ended at a '/' or at the end of the path
+            if(kinds[i] == GLOBSTAR) return true;
+            if(position >= n || path.charAt(position) != '/') return false;
+            int start = position + 1;
+            int end = path.indexOf('/', start);
+            if(end < 0) end = n;
+            switch (kinds[i]) {
+                case LITERAL:
+                    if(end - start != segments[i].length() || !path.regionMatches(start, segments[i], 0, end - start)) return false;
+                    break;
+                case CAPTURE:
+                    if(end == start) return false;
+                    if(values != null) values[capture] = path.substring(start, end);
+                    capture++;
+                    break;
+                default:
+                    if(end == start) return false;
+            }
+            position = end;
+        }
+        return position == n;
+    }
+
+    /**
+     * @return the names of the captures in the order of the segments
+     */
+    public List<String> getCaptures() {
+        return captures;
+    }
+
+    /**
+     * @return the literal segments before the first placeholder or wildcard
+     */
+    public List<String> getConstantSegments() {
+        List<String> constant = new ArrayList<String>();
+        for(int i = 0; i < segments.length && kinds[i] == LITERAL && !segments[i].isEmpty(); i++) {
+            constant.add(segments[i]);
+        }
+        return constant;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -4,6 +4,9 @@ import at.salzburgresearch.nodekeeper.NodeListener;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -20,6 +23,10 @@ public class Rule {
     public List<Binding> bindings;
     public List<Condition> conditions;
     public List<Action> actions;
+    //null if the rule fires on every event
+    public TriggerPolicy trigger;
+    //null if the rule fires on single events, otherwise event is the first event of the sequence
+    public EventSequence sequence;
 
     public Rule() {
         id = UUID.randomUUID().toString();
@@ -43,7 +50,8 @@ public class Rule {
         Element rule = doc.createElement("rule");
         rule.setAttribute("name",id);
 
-        rule.appendChild(event.toElement(doc));
+        rule.appendChild(sequence != null ? sequence.toElement(doc) : event.toElement(doc));
+        if(trigger != null) rule.appendChild(trigger.toElement(doc));
 
         Element bs = doc.createElement("bindings");
         for(Binding binding : bindings) {
@@ -66,6 +74,57 @@ public class Rule {
         return rule;
     }
 
+    /**
+     * returns a hash over the structure of the rule (event, bindings, conditions and actions, but not the id). Rules
+     * with the same fingerprint behave the same.
+     * @return the fingerprint as hex string
+     */
+    public String getFingerprint() {
+        StringBuilder b = new StringBuilder();
+        append(b, event.type.name());
+        append(b, event.nodeType.getName());
+        append(b, event.pattern);
+        if(event.type == Event.Type.nodeIdle) append(b, "timeout:" + event.timeout);
+        if(trigger != null) append(b, "trigger:" + trigger.getSignature());
+        if(sequence != null) append(b, "sequence:" + sequence.getSignature());
+        append(b, "bindings:" + bindings.size());
+        for(Binding binding : bindings) {
+            append(b, binding.getName());
+            append(b, String.valueOf(binding.isStrict()));
+            append(b, binding.getFunction().getSignature());
+        }
+        append(b, "conditions:" + conditions.size());
+        for(Condition condition : conditions) {
+            append(b, condition.getSignature());
+        }
+        append(b, "actions:" + actions.size());
+        for(Action action : actions) {
+            append(b, action.type.name());
+            append(b, String.valueOf(action.args.length));
+            for(String arg : action.args) {
+                append(b, arg);
+            }
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(b.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte d : digest) {
+                hex.append(Character.forDigit((d >> 4) & 0xF, 16)).append(Character.forDigit(d & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    //length prefixed, so the concatenation is unambiguous
+    private static void append(StringBuilder b, String value) {
+        b.append(value.length()).append(':').append(value).append(';');
+    }
+
     public String getDescription() {
         StringBuilder b = new StringBuilder();
         b.append("<b>Rule '" + id + "' says</b></br>");
@@ -75,20 +134,34 @@ public class Rule {
             case nodeUpdated: b.append("updated");break;
             case nodeDeleted: b.append("deleted");break;
             case nodeCreatedUpdated: b.append("created or updated");break;
+            case nodeIdle: b.append("not modified for " + event.timeout + "ms");break;
+            case childrenChanged: b.append("a parent whose count, sum, min or max of the children changed");break;
         }
         b.append(" that follows the pattern <b>");
         b.append(event.pattern);
-        b.append("</b>, then:<ul>");
+        b.append("</b>");
+        if(sequence != null) {
+            for(int i = 1; i < sequence.events.size(); i++) {
+                b.append(", followed by a " + sequence.events.get(i).type + " event on <b>" + sequence.events.get(i).pattern + "</b>");
+            }
+            if(sequence.absent != null) {
+                b.append(" and not followed by a " + sequence.absent.type + " event on <b>" + sequence.absent.pattern + "</b>");
+            }
+            b.append(" within " + sequence.within + "ms");
+            if(sequence.key != null) b.append(" for the same <b>" + sequence.key + "</b>");
+        }
+        b.append(", then:<ul>");
         for(Action action : actions) {
             b.append("<li>");
             switch(action.type) {
                 case createUpdateNode: b.append("<b>create or update</b>");break;
                 case deleteNode: b.append("<b>delete</b>");break;
+                case expireNode: b.append("<b>expire</b>");break;
             }
             b.append(" node <b>");
             b.append(action.args[0]);
             b.append("</b>");
-            if(action.args.length > 1) b.append(" with data <b>" + action.args[1]);
+            if(action.args.length > 1) b.append((action.type == Action.Type.expireNode ? " after <b>" : " with data <b>") + action.args[1]);
             b.append("</b></li>");
         }
 
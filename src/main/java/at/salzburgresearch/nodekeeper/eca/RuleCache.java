@@ -0,0 +1,345 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.eca.function.StaticValueFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of compiled rule sets. A rule set is stored in a compact binary form under the SHA-256 hash of its
+ * xml content, so loading an unchanged rule set (e.g. on restart) skips xml parsing completely. Invalid or outdated
+ * cache files are ignored and overwritten.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RuleCache.class);
+
+    private static final int MAGIC = 0x4E4B5243; //NKRC
+    private static final int VERSION = 5;
+
+    private static final String SUFFIX = ".rules";
+
+    private File directory;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public RuleCache(File directory) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create rule cache directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * returns the rules of a rule set, from the cache if the same content has been loaded before
+     * @param stream the rule set in xml format
+     * @return the rules
+     * @throws IOException if the rule set cannot be read or parsed
+     */
+    public List<Rule> load(InputStream stream) throws IOException {
+        byte[] content = readFully(stream);
+        File file = new File(directory, hash(content) + SUFFIX);
+
+        if(file.isFile()) {
+            try {
+                List<Rule> rules = read(file);
+                hits.incrementAndGet();
+                return rules;
+            } catch (IOException e) {
+                log.warn("compiled rule set {} is invalid and will be replaced: {}", file.getName(), e.getMessage());
+            }
+        }
+
+        misses.incrementAndGet();
+        List<Rule> rules = RuleParser.parse(new ByteArrayInputStream(content));
+        try {
+            write(rules, file);
+        } catch (IOException e) {
+            log.warn("cannot write compiled rule set {}: {}", file.getName(), e.getMessage());
+        }
+        return rules;
+    }
+
+    /**
+     * @return the number of rule sets that have been loaded from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of rule sets that have been parsed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private List<Rule> read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != MAGIC) throw new IOException("not a compiled rule set");
+            int version = in.readInt();
+            if(version != VERSION) throw new IOException(String.format("version %s is not supported", version));
+
+            int size = in.readInt();
+            List<Rule> rules = new ArrayList<Rule>(size);
+            for(int i = 0; i < size; i++) {
+                rules.add(readRule(in));
+            }
+            return rules;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown node type", e);
+        } catch (RuntimeException e) {
+            throw new IOException("unknown type or function", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(List<Rule> rules, File file) throws IOException {
+        //write to a temporary file first, so readers never see a partial file
+        File tmp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rules.size());
+            for(Rule rule : rules) {
+                writeRule(rule, out);
+            }
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp.getName());
+        }
+    }
+
+    private static void writeRule(Rule rule, DataOutputStream out) throws IOException {
+        writeString(rule.id, out);
+        writeString(rule.event.type.name(), out);
+        writeString(rule.event.nodeType.getName(), out);
+        writeString(rule.event.pattern, out);
+        out.writeLong(rule.event.timeout);
+
+        out.writeBoolean(rule.trigger != null);
+        if(rule.trigger != null) {
+            writeString(rule.trigger.type.name(), out);
+            out.writeLong(rule.trigger.interval);
+            writeString(rule.trigger.key, out);
+        }
+
+        out.writeBoolean(rule.sequence != null);
+        if(rule.sequence != null) {
+            out.writeLong(rule.sequence.within);
+            writeString(rule.sequence.key, out);
+            out.writeInt(rule.sequence.events.size());
+            for(Event event : rule.sequence.events) {
+                writeEvent(event, out);
+            }
+            out.writeBoolean(rule.sequence.absent != null);
+            if(rule.sequence.absent != null) writeEvent(rule.sequence.absent, out);
+        }
+
+        out.writeInt(rule.bindings.size());
+        for(Binding binding : rule.bindings) {
+            writeString(binding.getName(), out);
+            out.writeBoolean(binding.isStrict());
+            writeFunction(binding.getFunction(), out);
+        }
+
+        out.writeInt(rule.conditions.size());
+        for(Condition condition : rule.conditions) {
+            writeCondition(condition, out);
+        }
+
+        out.writeInt(rule.actions.size());
+        for(Action action : rule.actions) {
+            writeString(action.type.name(), out);
+            out.writeInt(action.args.length);
+            for(String arg : action.args) {
+                writeString(arg, out);
+            }
+        }
+    }
+
+    private static Rule readRule(DataInputStream in) throws IOException, ClassNotFoundException {
+        Rule rule = new Rule();
+        rule.id = readString(in);
+        rule.event = new Event(Event.Type.valueOf(readString(in)), null);
+        rule.event.nodeType = Class.forName(readString(in));
+        rule.event.pattern = readString(in);
+        rule.event.timeout = in.readLong();
+
+        if(in.readBoolean()) {
+            TriggerPolicy.Type type = TriggerPolicy.Type.valueOf(readString(in));
+            rule.trigger = new TriggerPolicy(type, in.readLong(), readString(in));
+        }
+
+        if(in.readBoolean()) {
+            long within = in.readLong();
+            String key = readString(in);
+            int size = in.readInt();
+            List<Event> events = new ArrayList<Event>(size);
+            for(int i = 0; i < size; i++) {
+                events.add(readEvent(in));
+            }
+            Event absent = in.readBoolean() ? readEvent(in) : null;
+            rule.sequence = new EventSequence(events, absent, within, key);
+            rule.event = rule.sequence.events.get(0);
+        }
+
+        int bindings = in.readInt();
+        for(int i = 0; i < bindings; i++) {
+            String name = readString(in);
+            boolean strict = in.readBoolean();
+            rule.bindings.add(new Binding(name, readFunction(in), strict));
+        }
+
+        int conditions = in.readInt();
+        for(int i = 0; i < conditions; i++) {
+            rule.conditions.add(readCondition(in));
+        }
+
+        int actions = in.readInt();
+        for(int i = 0; i < actions; i++) {
+            Action.Type type = Action.Type.valueOf(readString(in));
+            String[] args = new String[in.readInt()];
+            for(int j = 0; j < args.length; j++) {
+                args[j] = readString(in);
+            }
+            rule.actions.add(new Action(type, args));
+        }
+        return rule;
+    }
+
+    private static void writeCondition(Condition condition, DataOutputStream out) throws IOException {
+        writeString(condition.type.name(), out);
+        if(condition.type.isComposite()) {
+            out.writeInt(condition.terms.size());
+            for(Condition term : condition.terms) {
+                writeCondition(term, out);
+            }
+        } else {
+            writeString(condition.arg1, out);
+            writeString(condition.arg2, out);
+        }
+    }
+
+    private static Condition readCondition(DataInputStream in) throws IOException {
+        Condition.Type type = Condition.Type.valueOf(readString(in));
+        if(type.isComposite()) {
+            List<Condition> terms = new ArrayList<Condition>();
+            int size = in.readInt();
+            for(int i = 0; i < size; i++) {
+                terms.add(readCondition(in));
+            }
+            return new Condition(type, terms);
+        }
+        return new Condition(type, readString(in), readString(in));
+    }
+
+    private static void writeFunction(Function function, DataOutputStream out) throws IOException {
+        writeString(function.getName(), out);
+        if(function instanceof StaticValueFunction) {
+            writeString((String) function.params[0], out);
+        } else {
+            out.writeInt(function.params.length);
+            for(Object param : function.params) {
+                writeFunction((Function) param, out);
+            }
+        }
+    }
+
+    private static Function readFunction(DataInputStream in) throws IOException {
+        Function function = FunctionFactory.createFunction(readString(in));
+        if(function instanceof StaticValueFunction) {
+            function.init(readString(in));
+        } else {
+            Object[] params = new Object[in.readInt()];
+            for(int i = 0; i < params.length; i++) {
+                params[i] = readFunction(in);
+            }
+            function.init(params);
+        }
+        return function;
+    }
+
+    private static void writeEvent(Event event, DataOutputStream out) throws IOException {
+        writeString(event.type.name(), out);
+        writeString(event.nodeType.getName(), out);
+        writeString(event.pattern, out);
+        out.writeLong(event.timeout);
+    }
+
+    private static Event readEvent(DataInputStream in) throws IOException, ClassNotFoundException {
+        Event event = new Event(Event.Type.valueOf(readString(in)), null);
+        event.nodeType = Class.forName(readString(in));
+        event.pattern = readString(in);
+        event.timeout = in.readLong();
+        return event;
+    }
+
+    private static void writeString(String value, DataOutputStream out) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = stream.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte d : digest) {
+                hex.append(Character.forDigit((d >> 4) & 0xF, 16)).append(Character.forDigit(d & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
@@ -3,17 +3,19 @@ package at.salzburgresearch.nodekeeper.eca;
 import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.NodeListener;
 import at.salzburgresearch.nodekeeper.eca.exception.ActionException;
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.eca.function.ChildAggregateFunction;
+import at.salzburgresearch.nodekeeper.eca.function.ChildAggregates;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
 import at.salzburgresearch.nodekeeper.eca.function.Function;
-import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
-import at.salzburgresearch.nodekeeper.eca.function.StaticValueFunction;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
 import at.salzburgresearch.nodekeeper.model.Node;
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -23,13 +25,24 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * ...
@@ -40,309 +53,1136 @@ public class RuleHandler {
     
     private static final Logger log = LoggerFactory.getLogger(RuleHandler.class);
 
-    HashMap<String,Rule> rules = new HashMap<String, Rule>();
+    private static final String DISPATCH_PATTERN = ".*";
+
+    private static final int DEFAULT_MAX_CASCADE_DEPTH = 32;
+
+    //a cascade whose write did not produce an event within this time is forgotten
+    private static final long CASCADE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    private static final int MAX_CASCADES = 10000;
+
+    //read on the event and timer threads, written under the lock of the handler
+    ConcurrentHashMap<String,Rule> rules = new ConcurrentHashMap<String, Rule>();
     NodeKeeper nodeKeeper;
 
+    private AtomicLong bindingEvaluations = new AtomicLong();
+    private AtomicLong skippedBindingEvaluations = new AtomicLong();
+    private AtomicLong events = new AtomicLong();
+    private AtomicLong nodeReads = new AtomicLong();
+    private AtomicLong cachedNodeReads = new AtomicLong();
+
+    private AtomicLong sharedBindingEvaluations = new AtomicLong();
+    private AtomicLong replayedEvents = new AtomicLong();
+    private AtomicLong transactions = new AtomicLong();
+    private AtomicLong firings = new AtomicLong();
+    private AtomicLong prefetchedReads = new AtomicLong();
+    private AtomicLong throttledActions = new AtomicLong();
+    private AtomicLong droppedActions = new AtomicLong();
+    private AtomicLong cascadeLimits = new AtomicLong();
+    private AtomicLong loops = new AtomicLong();
+    private AtomicLong windowedEvents = new AtomicLong();
+    private AtomicLong windowFirings = new AtomicLong();
+    private AtomicLong idleEvents = new AtomicLong();
+    private AtomicLong childrenEvents = new AtomicLong();
+    private AtomicLong sequenceMatches = new AtomicLong();
+
+    //all rules are dispatched by one listener through the rule network
+    private RuleNetwork network = new RuleNetwork();
+    private NodeListener<byte[]> dispatcher;
+
+    private RuleCache ruleCache;
+
+    private RuleProfiler profiler = new RuleProfiler();
+
+    private ActionPlan.Scope actionScope = ActionPlan.Scope.rule;
+
+    private boolean prefetch = true;
+
+    //the rule firings that caused the pending action writes, by target path
+    private ConcurrentHashMap<String,Cascade> cascades = new ConcurrentHashMap<String, Cascade>();
+    private int maxCascadeDepth = DEFAULT_MAX_CASCADE_DEPTH;
+
+    //admission control of actions, no limit by default
+    private volatile TokenBucket globalBucket;
+    private ConcurrentHashMap<String,TokenBucket> ruleBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private volatile double ruleRate;
+    private volatile int ruleBurst;
+    private long maxThrottleWait = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * the upper bound of {@link #setMaxThrottleWait(long, TimeUnit)}; the throttled firings block the zookeeper event
+     * thread, which must keep delivering events and pings far within the session timeout
+     */
+    public static final long MAX_THROTTLE_WAIT = TimeUnit.MILLISECONDS.toNanos(500);
+
+    //the open windows of rules with a trigger policy, closed windows fire on the timer thread
+    private TriggerWindows windows = new TriggerWindows(new TriggerWindows.Callback() {
+        @Override
+        public void fire(RuleNetwork.RuleNode match, TriggerWindows.Batch batch) {
+            fireWindow(match, batch);
+        }
+    });
+
+    //the timers of the rules with a nodeIdle event, idle nodes fire on the zookeeper event thread
+    private IdleTimers idleTimers;
+    private volatile int idleRules;
+
+    //the partial matches of the rules with an event sequence, patterns with an absent event complete on the timer
+    private SequenceMatcher sequences;
+
+    //the aggregates over children while a rule needs them, changes are delivered to the childrenChanged rules
+    private volatile ChildAggregates aggregates;
+    private volatile int childrenRules;
+    private final ChildAggregates.ChangeListener aggregatesListener = new ChildAggregates.ChangeListener() {
+        @Override
+        public void aggregateChanged(String parent, String child) {
+            fireChildrenChanged(parent, child);
+        }
+    };
+
+    //the watched rule set node
+    private String rulesPath;
+    private NodeListener<byte[]> rulesListener;
+
     public RuleHandler(NodeKeeper nodeKeeper) {
         this.nodeKeeper = nodeKeeper;
+        this.idleTimers = new IdleTimers(nodeKeeper, new IdleTimers.Callback() {
+            @Override
+            public void idle(RuleNetwork.RuleNode match, String path) {
+                fireIdle(match, path);
+            }
+        });
+        this.sequences = new SequenceMatcher(nodeKeeper, new SequenceMatcher.Callback() {
+            @Override
+            public void complete(RuleNetwork.RuleNode match, Node node, Cascade cause) {
+                fireSequence(match, node, cause);
+            }
+        });
     }
 
     public void readRules(InputStream stream) throws NodeKeeperException, IOException, InterruptedException {
-        //remove old rules
-        List<Rule> rs = InputOutputHandler.parseRules(stream);
-        ArrayList<String> keys = new ArrayList<String>(rules.keySet());
-        for(String ruleid : keys) {
-            removeRule(rules.get(ruleid));
+        reloadRules(stream);
+    }
+
+    /**
+     * replaces the active rules with the rules of the stream, see {@link #reloadRules(java.util.Collection)}
+     */
+    public RuleSetDiff reloadRules(InputStream stream) throws NodeKeeperException, IOException, InterruptedException {
+        List<Rule> rules = ruleCache != null ? ruleCache.load(stream) : InputOutputHandler.parseRules(stream);
+        return reloadRules(rules);
+    }
+
+    /**
+     * Loads the rule set that is stored in a node (in the xml format of {@link #readRules(java.io.InputStream)}) and
+     * reloads it whenever the node changes. A rule set that cannot be parsed or a deleted node keeps the active rules.
+     * The node must be below the start node of nodekeeper.
+     * @param path the path of the rule set node
+     */
+    public synchronized void watchRules(final String path) throws NodeKeeperException, IOException, InterruptedException {
+        unwatchRules();
+
+        rulesPath = path;
+        rulesListener = new NodeListener<byte[]>() {
+            @Override
+            public void onNodeCreated(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                reload(node);
+            }
+
+            @Override
+            public void onNodeUpdated(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                reload(node);
+            }
+
+            @Override
+            public void onNodeDeleted(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                log.warn("rule set {} has been deleted, the active rules are kept", node.getPath());
+            }
+
+            private void reload(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                try {
+                    reloadRules(new ByteArrayInputStream(node.getData()));
+                } catch (IOException e) {
+                    log.error(String.format("cannot reload rule set %s",node.getPath()), e);
+                }
+            }
+
+            @Override
+            public Class<byte[]> getType() {
+                return byte[].class;
+            }
+        };
+        nodeKeeper.addListener(Pattern.quote(path), rulesListener);
+
+        if(nodeKeeper.isListening()) {
+            Node<byte[]> node = nodeKeeper.readNode(path, byte[].class);
+            if(node != null) reloadRules(new ByteArrayInputStream(node.getData()));
+        } else {
+            nodeKeeper.startListeners();
         }
-        for(Rule rule : rs) {
-            addRule(rule);
+    }
+
+    /**
+     * stops watching the rule set node, the active rules are kept
+     */
+    public synchronized void unwatchRules() {
+        if(rulesListener != null) {
+            nodeKeeper.removeListener(Pattern.quote(rulesPath), rulesListener);
+            rulesListener = null;
+            rulesPath = null;
         }
     }
 
-    public void writeRules(OutputStream stream) throws ParserConfigurationException, TransformerException, IOException {
-        List<Rule> r = new ArrayList<Rule>();
-        for(String ruleid : rules.keySet()) {
-            r.add(rules.get(ruleid));
+    /**
+     * Replaces the active rules with the given rule set. The sets are compared by rule id and fingerprint
+     * ({@link Rule#getFingerprint()}): unchanged rules stay active as they are, changed rules are replaced, rules that
+     * are not part of the set anymore are removed. The rule network is swapped at once, so every event sees either
+     * the old or the new rule set.
+     * @param rules the new rule set
+     * @return the differences to the former rule set
+     */
+    public synchronized RuleSetDiff reloadRules(Collection<Rule> rules) throws NodeKeeperException, IOException, InterruptedException {
+        LinkedHashMap<String,Rule> desired = new LinkedHashMap<String, Rule>();
+        for(Rule rule : rules) {
+            desired.put(rule.id, rule);
+        }
+
+        RuleSetDiff diff = new RuleSetDiff();
+        List<Rule> removed = new ArrayList<Rule>();
+        List<Rule> activated = new ArrayList<Rule>();
+        for(Rule active : this.rules.values()) {
+            if(!desired.containsKey(active.id)) {
+                removed.add(active);
+                diff.removed.add(active.id);
+            }
+        }
+        for(Rule rule : desired.values()) {
+            Rule active = this.rules.get(rule.id);
+            if(active == null) {
+                activated.add(rule);
+                diff.added.add(rule.id);
+            } else if(!active.getFingerprint().equals(rule.getFingerprint())) {
+                activated.add(rule);
+                diff.replaced.add(rule.id);
+            } else {
+                diff.unchanged.add(rule.id);
+            }
+        }
+
+        apply(removed, activated);
+        log.info("reloaded rules: {}", diff);
+        return diff;
+    }
+
+    /**
+     * sets a cache for compiled rule sets that is used by {@link #readRules(java.io.InputStream)},
+     * {@link #reloadRules(java.io.InputStream)} and {@link #watchRules(String)}
+     */
+    public void setRuleCache(RuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
+    /**
+     * sets which actions are executed in one transaction: the actions of a rule firing (the default) or the actions of
+     * all rules firing on the same event. If a transaction fails, none of its actions is applied.
+     */
+    public void setActionScope(ActionPlan.Scope actionScope) {
+        this.actionScope = actionScope;
+    }
+
+    /**
+     * enables or disables the prefetch of node reads (enabled by default). With prefetch, the node reads of the bindings
+     * of all rules firing on an event whose paths only depend on the event are sent asynchronously before the first
+     * rule is fired, so independent reads cost about one round trip. Rules that fire on the zookeeper event thread
+     * read synchronously, see {@link EvaluationContext#prefetch(String, Class)}.
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Sets the maximum length of a cascade: a rule that fires on an event that has been caused by an action of a rule,
+     * which fired on an event caused by an action, and so on. A rule is not fired if the event is at the maximum depth
+     * (32 by default) or if the same rule fired on the same path before in the cascade (a loop).
+     */
+    public void setMaxCascadeDepth(int maxCascadeDepth) {
+        this.maxCascadeDepth = maxCascadeDepth;
+    }
+
+    /**
+     * limits the actions of all rules together
+     * @param rate the actions per second, 0 for no limit
+     * @param burst the number of actions that may be executed at once
+     */
+    public void setGlobalActionRate(double rate, int burst) {
+        globalBucket = rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    /**
+     * limits the actions of every rule
+     * @param rate the actions per second of a rule, 0 for no limit
+     * @param burst the number of actions of a rule that may be executed at once
+     */
+    public void setRuleActionRate(double rate, int burst) {
+        ruleBuckets.clear();
+        ruleRate = rate;
+        ruleBurst = burst;
+    }
+
+    /**
+     * limits the actions of one rule, overrides {@link #setRuleActionRate(double, int)}
+     */
+    public void setRuleActionRate(String ruleId, double rate, int burst) {
+        ruleBuckets.put(ruleId, new TokenBucket(rate, burst));
+    }
+
+    /**
+     * sets the maximum time a rule firing waits for the tokens of its actions; firings that would wait longer are
+     * dropped. <b>Waiting blocks the zookeeper event thread</b>: no other event is delivered meanwhile, and the waits of
+     * all firings of an event add up. It slows down the cascade that causes the load, but a long wait delays every
+     * listener of the nodekeeper, so the wait is limited to {@link #MAX_THROTTLE_WAIT}.
+     * @throws IllegalArgumentException if the time is negative or exceeds {@link #MAX_THROTTLE_WAIT}
+     */
+    public void setMaxThrottleWait(long time, TimeUnit unit) {
+        long wait = unit.toNanos(time);
+        if(wait < 0 || wait > MAX_THROTTLE_WAIT) {
+            throw new IllegalArgumentException(String.format("the maximum throttle wait must be between 0 and %sms", TimeUnit.NANOSECONDS.toMillis(MAX_THROTTLE_WAIT)));
         }
-        InputOutputHandler.serializeRules(r,stream);
+        this.maxThrottleWait = wait;
+    }
+
+    public void writeRules(OutputStream stream) throws ParserConfigurationException, TransformerException, IOException {
+        InputOutputHandler.serializeRules(new ArrayList<Rule>(rules.values()),stream);
     }
 
     public void addRule(Rule rule) throws NodeKeeperException, IOException, InterruptedException {
-        deactivateRule(rule);
-        activateRule(rule);
-        rules.put(rule.id,rule);
+        addRules(Collections.singletonList(rule));
+    }
+
+    /**
+     * Adds several rules at once. All rules are activated before the listeners are started, so the tree is traversed
+     * at most once. If the listeners are already running, the initial events of the new rules are replayed from the
+     * node paths nodekeeper knows, without another traversal. Rules that replace an active rule with the same id are
+     * not replayed.
+     * @param rules the rules to add
+     */
+    public synchronized void addRules(Collection<Rule> rules) throws NodeKeeperException, IOException, InterruptedException {
+        apply(Collections.<Rule>emptyList(), new ArrayList<Rule>(rules));
     }
 
     public Rule getRule(String id) {
         return rules.get(id);
     }
 
+    /**
+     * @return a copy of the ids of the active rules
+     */
     public Set<String> getRuleIds() {
-        return rules.keySet();
+        return new HashSet<String>(rules.keySet());
     }
 
-    public void removeRule(Rule rule) {
-        deactivateRule(rule);
-        rules.remove(rule.id);
+    public synchronized void removeRule(Rule rule) {
+        if(!rules.containsKey(rule.id)) return;
+        Rule removed = rules.remove(rule.id);
+        network.swap(Collections.singletonList(removed), Collections.<Rule>emptyList());
+        profiler.remove(removed);
+        windows.cancel(removed.id);
+        idleTimers.cancel(removed.id);
+        sequences.cancel(removed.id);
+        idleRules = countRules(Event.Type.nodeIdle);
+        childrenRules = countRules(Event.Type.childrenChanged);
+        if(!needsAggregates()) releaseAggregates();
+        if(network.isEmpty()) releaseDispatcher();
+        //reverting actions is not possible at the moment
     }
 
-    private void activateRule(final Rule rule) throws NodeKeeperException, IOException, InterruptedException {
+    /**
+     * @return the number of binding evaluations since the last reset
+     */
+    public long getBindingEvaluations() {
+        return bindingEvaluations.get();
+    }
 
-        //handle event
-        rule.setNodeListener(new NodeListener() {
+    /**
+     * @return the number of binding evaluations that have been skipped since the last reset, because no condition or
+     * action of the firing needed the binding
+     */
+    public long getSkippedBindingEvaluations() {
+        return skippedBindingEvaluations.get();
+    }
 
-            private void execute(Node node) throws InterruptedException, IOException, NodeKeeperException {
-                HashMap<String,Object> bindings = bindVariables(node);
-                if(checkConditions(bindings)) {
-                    for(Action action : rule.actions) {
-                        try {
-                            action.execute(nodekeeper,bindings);
-                        } catch (ActionException e) {
-                            log.warn(e.getMessage(),e);
-                        }
-                    }
-                }
+    /**
+     * @return the number of events that fired at least one rule since the last reset
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * @return the number of initial events that have been replayed to added rules since the last reset
+     */
+    public long getReplayedEvents() {
+        return replayedEvents.get();
+    }
+
+    /**
+     * @return the number of node reads (zookeeper round trips) of bindings since the last reset
+     */
+    public long getNodeReads() {
+        return nodeReads.get();
+    }
+
+    /**
+     * @return the number of node reads since the last reset that have been sent asynchronously before they were needed
+     */
+    public long getPrefetchedReads() {
+        return prefetchedReads.get();
+    }
+
+    /**
+     * @return the number of node reads of bindings since the last reset that have been served by the read cache of
+     * the event, because another binding of the same event read the node before
+     */
+    public long getCachedNodeReads() {
+        return cachedNodeReads.get();
+    }
+
+    /**
+     * @return the number of binding evaluations since the last reset that have been served by a structurally equal
+     * binding of another rule firing on the same event
+     */
+    public long getSharedBindingEvaluations() {
+        return sharedBindingEvaluations.get();
+    }
+
+    /**
+     * @return the number of rule firings whose conditions were fulfilled since the last reset
+     */
+    public long getFirings() {
+        return firings.get();
+    }
+
+    /**
+     * @return the number of action transactions since the last reset
+     */
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * @return the number of actions since the last reset that waited for a token of the rate limits
+     */
+    public long getThrottledActions() {
+        return throttledActions.get();
+    }
+
+    /**
+     * @return the number of actions since the last reset that have been dropped by the rate limits, the cascade depth
+     * limit or the loop detection
+     */
+    public long getDroppedActions() {
+        return droppedActions.get();
+    }
+
+    /**
+     * @return the number of rule firings since the last reset that have been stopped by the cascade depth limit
+     */
+    public long getCascadeLimits() {
+        return cascadeLimits.get();
+    }
+
+    /**
+     * @return the number of rule firings since the last reset that have been stopped because they closed a loop
+     */
+    public long getLoops() {
+        return loops.get();
+    }
+
+    /**
+     * @return the number of events since the last reset that have been added to a window of a rule with a trigger policy
+     */
+    public long getWindowedEvents() {
+        return windowedEvents.get();
+    }
+
+    /**
+     * @return the number of rule firings since the last reset for a closed window
+     */
+    public long getWindowFirings() {
+        return windowFirings.get();
+    }
+
+    /**
+     * @return the number of nodeIdle events since the last reset
+     */
+    public long getIdleEvents() {
+        return idleEvents.get();
+    }
+
+    /**
+     * @return the number of childrenChanged events since the last reset
+     */
+    public long getChildrenEvents() {
+        return childrenEvents.get();
+    }
+
+    /**
+     * @return the number of completed event sequences since the last reset
+     */
+    public long getSequenceMatches() {
+        return sequenceMatches.get();
+    }
+
+    /**
+     * @return the number of partial matches of the rules with an event sequence
+     */
+    public int getPartialMatches() {
+        return sequences.size();
+    }
+
+    /**
+     * @return the number of armed timers of the rules with a nodeIdle event
+     */
+    public int getIdleTimers() {
+        return idleTimers.size();
+    }
+
+    /**
+     * @return the number of event pattern tests since the last reset
+     */
+    public long getPatternTests() {
+        return network.getPatternTests();
+    }
+
+    /**
+     * @return the number of distinct event patterns of the active rules
+     */
+    public int getPatternCount() {
+        return network.getPatternNodes();
+    }
+
+    /**
+     * @return the number of distinct bindings of the active rules
+     */
+    public int getBindingCount() {
+        return network.getBindingNodes();
+    }
+
+    /**
+     * @return the profiler with the counters and times of every active rule; the counters of a rule start when it is
+     * added or replaced
+     */
+    public RuleProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void resetStatistics() {
+        bindingEvaluations.set(0);
+        skippedBindingEvaluations.set(0);
+        events.set(0);
+        nodeReads.set(0);
+        cachedNodeReads.set(0);
+        sharedBindingEvaluations.set(0);
+        replayedEvents.set(0);
+        transactions.set(0);
+        firings.set(0);
+        prefetchedReads.set(0);
+        throttledActions.set(0);
+        droppedActions.set(0);
+        cascadeLimits.set(0);
+        loops.set(0);
+        windowedEvents.set(0);
+        windowFirings.set(0);
+        idleEvents.set(0);
+        childrenEvents.set(0);
+        sequenceMatches.set(0);
+        network.resetStatistics();
+        profiler.reset();
+    }
+
+    /**
+     * removes and (re)activates rules in one step; new rules get their initial events
+     */
+    private void apply(List<Rule> removed, List<Rule> activated) throws NodeKeeperException, IOException, InterruptedException {
+        for(Rule rule : activated) {
+            if(nodeKeeper.getDataHandler(rule.event.nodeType) == null) {
+                throw new NodeKeeperException(String.format("cannot handle type %s",rule.event.nodeType));
             }
+        }
 
-            private HashMap<String,Object> bindVariables(Node node) {
-                HashMap<String,Object> bindings = new HashMap<>();
-                log.debug(" - bindVariables for node {}", node != null ? node.getPath() : node);
-                for(Binding binding : rule.bindings) {
-                    try {
-                        Object result = binding.execute(nodekeeper,node);
-                        bindings.put(binding.name,result);
-                        log.debug("    {}: {}", binding.name,result);
-                    } catch (RuntimeException e){               //TODO should not happen anymore
-                        log.warn("Unable to execute Binding '" + binding.name
-                            +"' on node '"+node != null ? node.getPath() : node 
-                            + "'! Binding will be missing in returned map. ", e);
-                    }
-                }
-                return bindings;
+        List<Rule> added = new ArrayList<Rule>();
+        for(Rule rule : activated) {
+            if(!rules.containsKey(rule.id)) added.add(rule);
+        }
+
+        network.swap(removed, activated);
+        for(Rule rule : removed) {
+            rules.remove(rule.id);
+            profiler.remove(rule);
+            windows.cancel(rule.id);
+            idleTimers.cancel(rule.id);
+            sequences.cancel(rule.id);
+        }
+        for(Rule rule : activated) {
+            if(rules.put(rule.id, rule) != null) {
+                windows.cancel(rule.id);
+                idleTimers.cancel(rule.id);
+                sequences.cancel(rule.id);
             }
+            profiler.activate(rule);
+        }
+        idleRules = countRules(Event.Type.nodeIdle);
+        childrenRules = countRules(Event.Type.childrenChanged);
+        if(needsAggregates()) acquireAggregates();
+        else releaseAggregates();
+        if(network.isEmpty()) releaseDispatcher();
+        else appendDispatcher();
 
-            private boolean checkConditions(HashMap<String,Object> bindings) {
-                for(Condition condition : rule.conditions) {
-                    if(!condition.execute(bindings)) return false;
-                }
-                return true;
+        if(activated.isEmpty()) return;
+        if(nodeKeeper.isListening()) {
+            if(!added.isEmpty()) replay(added);
+        } else {
+            nodeKeeper.startListeners();
+        }
+        armIdleTimers(activated);
+        trackChildren(activated);
+    }
+
+    private int countRules(Event.Type type) {
+        int count = 0;
+        for(Rule rule : rules.values()) {
+            if(rule.event.type == type) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if an active rule fires on childrenChanged events or evaluates an aggregate over children
+     */
+    private boolean needsAggregates() {
+        for(Rule rule : rules.values()) {
+            if(rule.event.type == Event.Type.childrenChanged) return true;
+            for(Binding binding : rule.bindings) {
+                if(usesAggregates(binding.getFunction())) return true;
             }
+        }
+        return false;
+    }
 
-            @Override
-            public void onNodeCreated(Node node) throws InterruptedException, NodeKeeperException {
-                if(rule.event.type == Event.Type.nodeCreated || rule.event.type == Event.Type.nodeCreatedUpdated) try {
-                    execute(node);
-                } catch (IOException e) {
-                    log.error(String.format("Error on node created for %s",node), e);
-                }
+    private static boolean usesAggregates(Function function) {
+        if(function instanceof ChildAggregateFunction) return true;
+        for(Object param : function.params) {
+            if(param instanceof Function && usesAggregates((Function) param)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * keeps the aggregates up to date from now on, the dispatcher is appended again after them
+     */
+    private void acquireAggregates() throws NodeKeeperException {
+        if(aggregates != null) return;
+        ChildAggregates acquired = ChildAggregates.acquire(nodeKeeper);
+        acquired.addChangeListener(aggregatesListener);
+        //the aggregates listen before the dispatcher, so rules see the aggregates after the event
+        releaseDispatcher();
+        aggregates = acquired;
+    }
+
+    private void releaseAggregates() {
+        ChildAggregates released = aggregates;
+        if(released == null) return;
+        aggregates = null;
+        released.removeChangeListener(aggregatesListener);
+        released.release();
+    }
+
+    /**
+     * tracks the aggregates of the known nodes that match an activated childrenChanged rule
+     */
+    private void trackChildren(Collection<Rule> activated) throws NodeKeeperException, InterruptedException {
+        RuleNetwork children = new RuleNetwork();
+        for(Rule rule : activated) {
+            if(rule.event.type == Event.Type.childrenChanged) children.add(rule);
+        }
+        if(children.isEmpty()) return;
+        for(String path : nodeKeeper.getKnownPaths()) {
+            if(!children.match(Event.Type.childrenChanged, path).isEmpty()) aggregates.get(path);
+        }
+    }
+
+    /**
+     * arms the timers of activated nodeIdle rules for all known nodes; the timers check at once, so nodes that are
+     * idle for longer than the timeout already fire right away
+     */
+    private void armIdleTimers(Collection<Rule> activated) {
+        RuleNetwork idle = new RuleNetwork();
+        for(Rule rule : activated) {
+            if(rule.event.type == Event.Type.nodeIdle) idle.add(rule);
+        }
+        if(idle.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for(String path : nodeKeeper.getKnownPaths()) {
+            for(RuleNetwork.RuleNode match : idle.match(Event.Type.nodeIdle, path)) {
+                idleTimers.arm(match, path, now);
             }
+        }
+    }
 
-            @Override
-            public void onNodeUpdated(Node node) throws InterruptedException, NodeKeeperException {
-                if(rule.event.type == Event.Type.nodeUpdated || rule.event.type == Event.Type.nodeCreatedUpdated) try {
-                    execute(node);
-                } catch (IOException e) {
-                    log.error(String.format("Error on node updated for %s",node), e);
+    private void releaseDispatcher() {
+        if(dispatcher != null) {
+            nodeKeeper.removeListener(DISPATCH_PATTERN, dispatcher);
+            dispatcher = null;
+        }
+    }
+
+    /**
+     * appends the dispatcher, which is the only listener of the rule handler, if it is not appended yet
+     */
+    private void appendDispatcher() throws NodeKeeperException {
+        if(dispatcher == null) {
+            dispatcher = new NodeListener<byte[]>() {
+                @Override
+                public void onNodeCreated(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                    dispatch(Event.Type.nodeCreated, node);
                 }
-            }
 
-            @Override
-            public void onNodeDeleted(Node node) throws InterruptedException, NodeKeeperException {
-                if(rule.event.type == Event.Type.nodeDeleted) try {
-                    execute(node);
-                } catch (IOException e) {
-                    log.error(String.format("Error on node deleted for %s",node), e);
+                @Override
+                public void onNodeUpdated(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                    dispatch(Event.Type.nodeUpdated, node);
                 }
-            }
 
-            @Override
-            public Class getType() {
-                return rule.event.nodeType;
-            }
-        });
+                @Override
+                public void onNodeDeleted(Node<byte[]> node) throws InterruptedException, NodeKeeperException {
+                    dispatch(Event.Type.nodeDeleted, node);
+                }
 
-        nodeKeeper.addListener(rule.event.pattern, rule.getNodeListener());
-        nodeKeeper.startListeners();
+                @Override
+                public Class<byte[]> getType() {
+                    return byte[].class;
+                }
+
+                //the data of nodes no rule listens to is never read
+                @Override
+                public boolean accepts(String path) {
+                    if(network.listensTo(path)) return true;
+                    //the cascade of a write no rule listens to ends here
+                    if(!cascades.isEmpty()) cascades.remove(path);
+                    return false;
+                }
+            };
+            nodeKeeper.addListener(DISPATCH_PATTERN, dispatcher);
+        }
     }
 
-    private void deactivateRule(Rule rule) {
-        if(rules.containsKey(rule.id)) {
-            Rule r = rules.get(rule.id);
-            nodeKeeper.removeListener(r.event.pattern, r.getNodeListener());
+    /**
+     * delivers a created event for every known node that matches one of the rules to these rules only
+     */
+    private void replay(Collection<Rule> rules) throws NodeKeeperException, IOException, InterruptedException {
+        RuleNetwork added = new RuleNetwork();
+        for(Rule rule : rules) {
+            //a sequence starts with live events only
+            if(rule.sequence == null) added.add(rule);
+        }
+        if(added.isEmpty()) return;
+        for(String path : new TreeSet<String>(nodeKeeper.getKnownPaths())) {
+            List<RuleNetwork.RuleNode> matches = added.match(Event.Type.nodeCreated, path);
+            if(matches.isEmpty()) continue;
+            Node<byte[]> node = nodeKeeper.readNode(path, byte[].class);
+            if(node == null) continue;
+            replayedEvents.incrementAndGet();
+            dispatch(Event.Type.nodeCreated, node, matches, null);
         }
-        //reverting actions is not possible at the moment
     }
 
-    public static class InputOutputHandler {
+    /**
+     * fires all rules that listen to the event. The rules of an event share one evaluation context per node type, so
+     * the node is parsed once per type and node reads and shared bindings are evaluated once.
+     */
+    private void dispatch(Event.Type type, Node<byte[]> raw) throws InterruptedException, NodeKeeperException {
+        if(idleRules > 0) touch(type, raw.getPath());
+        //a created parent of a childrenChanged rule is tracked from its first child on
+        ChildAggregates aggregates = this.aggregates;
+        if(childrenRules > 0 && aggregates != null && type == Event.Type.nodeCreated && !aggregates.isTracked(raw.getPath())
+                && !network.match(Event.Type.childrenChanged, raw.getPath()).isEmpty()) {
+            aggregates.get(raw.getPath());
+        }
+        Cascade cause = cascades.isEmpty() ? null : takeCascade(raw.getPath());
+        dispatch(type, raw, network.match(type, raw.getPath()), cause);
+    }
 
-        public static List<Rule> parseRules(InputStream inputStream) throws IOException {
-            try {
-                List<Rule> rules = new ArrayList<Rule>();
+    /**
+     * (re)arms the idle timers of a created or updated node, cancels them for a deleted node
+     */
+    private void touch(Event.Type type, String path) {
+        long now = System.currentTimeMillis();
+        for(RuleNetwork.RuleNode match : network.match(Event.Type.nodeIdle, path)) {
+            if(type == Event.Type.nodeDeleted) idleTimers.cancel(match.rule.id, path);
+            else idleTimers.arm(match, path, now + match.rule.event.timeout);
+        }
+    }
 
-                DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-                Document doc = dBuilder.parse(inputStream);
+    /**
+     * fires a nodeIdle rule; runs on the zookeeper event thread
+     */
+    private void fireIdle(RuleNetwork.RuleNode match, String path) {
+        //removed or replaced in the meantime
+        if(rules.get(match.rule.id) != match.rule) return;
+        try {
+            Node<byte[]> raw = nodeKeeper.readNode(path, byte[].class);
+            if(raw == null) return;
+            idleEvents.incrementAndGet();
+            dispatch(Event.Type.nodeIdle, raw, Collections.singletonList(match), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error(String.format("cannot fire rule %s for idle node %s", match.rule.id, path), e);
+        } catch (NodeKeeperException e) {
+            log.error(String.format("cannot fire rule %s for idle node %s", match.rule.id, path), e);
+        }
+    }
 
-                //get rules
-                NodeList rulesNodes = doc.getDocumentElement().getChildNodes();
+    /**
+     * fires the childrenChanged rules of a parent whose aggregates changed; runs on the event thread before the event
+     * of the child is dispatched, so the firing belongs to the cascade of the child event
+     */
+    private void fireChildrenChanged(String parent, String child) {
+        if(childrenRules == 0) return;
+        List<RuleNetwork.RuleNode> matches = network.match(Event.Type.childrenChanged, parent);
+        if(matches.isEmpty()) return;
+        try {
+            Node<byte[]> raw = nodeKeeper.readNode(parent, byte[].class);
+            if(raw == null) return;
+            childrenEvents.incrementAndGet();
+            Cascade cause = cascades.isEmpty() ? null : peekCascade(child);
+            dispatch(Event.Type.childrenChanged, raw, matches, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error(String.format("cannot fire the childrenChanged rules of %s", parent), e);
+        } catch (NodeKeeperException e) {
+            log.error(String.format("cannot fire the childrenChanged rules of %s", parent), e);
+        }
+    }
 
-                for(int i = 0; i < rulesNodes.getLength(); i++) {
-                    org.w3c.dom.Node ruleNode = rulesNodes.item(i);
+    /**
+     * @param cause the cascade of the action that caused the event or null
+     */
+    private void dispatch(Event.Type type, Node<byte[]> raw, List<RuleNetwork.RuleNode> matches, Cascade cause) throws InterruptedException, NodeKeeperException {
+        if(matches.isEmpty()) return;
 
-                    if (ruleNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                        Element ruleElement = (Element)ruleNode;
+        events.incrementAndGet();
+        EventTracer tracer = nodeKeeper.getTracer();
+        Span prepare = tracer.start("prepare");
+        if(prepare != null) prepare.tag("rules", matches.size());
+        ActionPlan plan = actionScope == ActionPlan.Scope.event ? new ActionPlan() : null;
+        HashMap<Class,EvaluationContext> contexts = new HashMap<Class, EvaluationContext>();
+        List<EvaluationContext> matchContexts = new ArrayList<EvaluationContext>(matches.size());
+        for(RuleNetwork.RuleNode match : matches) {
+            Class nodeType = match.rule.event.nodeType;
+            EvaluationContext context = contexts.get(nodeType);
+            try {
+                if(context == null) {
+                    Node node = type == Event.Type.nodeDeleted
+                            ? new Node(raw.getPath())
+                            : new Node(raw.getPath(), nodeKeeper.getDataHandler(nodeType).parse(raw.getData()), raw.getVersion());
+                    context = new EvaluationContext(nodeKeeper, node);
+                    contexts.put(nodeType, context);
+                }
+            } catch (IOException e) {
+                log.error(String.format("Error on %s for %s",type,raw.getPath()), e);
+                context = null;
+            }
+            matchContexts.add(context);
+            //the reads of all rules are sent before the first rule waits for one
+            if(context != null && prefetch) {
+                for(Function function : match.prefetched) {
+                    function.prefetch(context);
+                }
+            }
+        }
+        tracer.finish(prepare);
 
-                        Rule rule = new Rule();
-                        if(ruleElement.getAttribute("name") != null) rule.id = ruleElement.getAttribute("name");
+        for(int i = 0; i < matches.size(); i++) {
+            if(matchContexts.get(i) == null) continue;
+            try {
+                RuleNetwork.RuleNode match = matches.get(i);
+                if(match.rule.trigger != null) collect(match, matchContexts.get(i), plan, cause);
+                else if(match.rule.sequence != null) sequence(match, type, matchContexts.get(i), plan, cause);
+                else fire(match, matchContexts.get(i), plan, cause, null);
+            } catch (IOException e) {
+                log.error(String.format("Error on %s for %s",type,raw.getPath()), e);
+            }
+        }
+        for(EvaluationContext context : contexts.values()) {
+            prefetchedReads.addAndGet(context.getPrefetches());
+        }
+        if(plan != null) execute(plan, raw.getPath());
+    }
 
-                        //get event
-                        NodeList events = ruleElement.getElementsByTagName("event");
-                        NodeList bindings = ruleElement.getElementsByTagName("bindings");
-                        NodeList conditions = ruleElement.getElementsByTagName("conditions");
-                        NodeList actions = ruleElement.getElementsByTagName("actions");
+    /**
+     * adds the event to the window of a rule with a trigger policy; only the bindings of the window key are evaluated
+     */
+    private void collect(RuleNetwork.RuleNode match, EvaluationContext context, ActionPlan eventPlan, Cascade cause) throws InterruptedException, IOException, NodeKeeperException {
+        Node node = context.getCurrent();
+        String key;
+        try {
+            key = match.rule.trigger.getKey(bind(match, context, profiler.profile(match.rule)));
+        } catch (BindingException e) {
+            log.warn("event {} is not added to a window of rule {}, the key cannot be rendered: {}", node.getPath(), match.rule.id, e.getMessage());
+            return;
+        }
+        windowedEvents.incrementAndGet();
+        if(windows.offer(match, key, node, cause)) {
+            fire(match, context, eventPlan, cause, new TriggerWindows.Batch(node, cause));
+        }
+    }
 
-                        for(int j = 0; j < events.getLength(); j++) {
-                            org.w3c.dom.Node eventNode = events.item(j);
-                            if (eventNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                Element eventElement = (Element)eventNode;
-                                String typeString  = eventElement.getAttribute("type");
+    /**
+     * offers the event to the partial matches of a rule with an event sequence; only the bindings of the correlation
+     * key are evaluated unless the event completes the sequence
+     */
+    private void sequence(RuleNetwork.RuleNode match, Event.Type type, EvaluationContext context, ActionPlan eventPlan, Cascade cause) throws InterruptedException, IOException, NodeKeeperException {
+        Node node = context.getCurrent();
+        String key;
+        try {
+            key = match.rule.sequence.getKey(bind(match, context, profiler.profile(match.rule)));
+        } catch (BindingException e) {
+            log.warn("event {} is not correlated by rule {}, the key cannot be rendered: {}", node.getPath(), match.rule.id, e.getMessage());
+            return;
+        }
+        if(sequences.offer(match, key, type, node, cause)) {
+            sequenceMatches.incrementAndGet();
+            fire(match, context, eventPlan, cause, null);
+        }
+    }
 
-                                if(typeString == null) throw new IOException(String.format("Type of event #$s in rule #%s must be set", j, i));
-                                if(eventElement.getElementsByTagName("params").getLength()<0) throw new IOException(String.format("Type of event #$s in rule #%s must have a param", j, i));
+    /**
+     * fires a rule whose sequence completed because the absent event did not occur within the window; runs on the
+     * zookeeper event thread
+     */
+    private void fireSequence(RuleNetwork.RuleNode match, Node node, Cascade cause) {
+        //removed or replaced in the meantime
+        if(rules.get(match.rule.id) != match.rule) return;
+        sequenceMatches.incrementAndGet();
+        try {
+            fire(match, new EvaluationContext(nodeKeeper, node), null, cause, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error(String.format("cannot fire rule %s for the sequence ending with %s", match.rule.id, node.getPath()), e);
+        } catch (NodeKeeperException e) {
+            log.error(String.format("cannot fire rule %s for the sequence ending with %s", match.rule.id, node.getPath()), e);
+        }
+    }
 
-                                Event.Type type = Event.Type.valueOf(typeString);
-                                if(type == null) throw new IOException(String.format("Type %s of event #$s in rule #%s is not supported", typeString, j, i));
+    /**
+     * fires a rule for a closed window with the node of the latest event; runs on the timer thread of the windows
+     */
+    private void fireWindow(RuleNetwork.RuleNode match, TriggerWindows.Batch batch) {
+        windowFirings.incrementAndGet();
+        try {
+            fire(match, new EvaluationContext(nodeKeeper, batch.latest), null, batch.cause, batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error(String.format("cannot fire rule %s for a window of %s events", match.rule.id, batch.count), e);
+        } catch (NodeKeeperException e) {
+            log.error(String.format("cannot fire rule %s for a window of %s events", match.rule.id, batch.count), e);
+        }
+    }
 
-                                rule.event = new Event(type,eventElement.getElementsByTagName("param").item(0).getTextContent().trim());
-                            }
-                        }
-                        if(rule.event == null) throw new IOException(String.format("Rule #%s must contain an event element",i));
-
-                        if(bindings.getLength()>0) {
-                            NodeList bindingList = bindings.item(0).getChildNodes();
-                            for(int j = 0; j < bindingList.getLength(); j++) {
-                                org.w3c.dom.Node bindingNode = bindingList.item(j);
-                                if (bindingNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                    Element bindingElement = (Element)bindingNode;
-
-                                    String name  = bindingElement.getAttribute("name");
-                                    String type  = bindingElement.getAttribute("type");
-                                    Boolean strict  = bindingElement.hasAttribute("strict") ? Boolean.valueOf(bindingElement.getAttribute("strict")) : false;
-
-                                    if(type==null || type.equals("")) {
-                                        Function f = new StaticValueFunction();
-                                        f.init(bindingElement.getTextContent().trim());
-                                        rule.bindings.add(new Binding(name,f,strict));
-                                    } else {
-                                        Function f = createFunction(type,bindingElement.getChildNodes());
-                                        rule.bindings.add(new Binding(name,f,strict));
-                                    }
-                                }
-                            }
-                        }
+    /**
+     * creates the bindings of a firing, the captures of the path template of the event are set directly
+     */
+    private LazyBindings bind(RuleNetwork.RuleNode match, EvaluationContext context, RuleProfiler.RuleProfile profile) {
+        LazyBindings bindings = new LazyBindings(match.bindings, context, profile);
+        if(!match.templates.isEmpty() && context.getCurrent() != null) {
+            String path = context.getCurrent().getPath();
+            for(PathTemplate template : match.templates) {
+                if(template.bind(path, bindings)) break;
+            }
+        }
+        return bindings;
+    }
 
-                        if (conditions.getLength() > 0) {
-                            NodeList conditionList = conditions.item(0).getChildNodes();
-                            for (int j = 0; j < conditionList.getLength(); j++) {
-                                org.w3c.dom.Node conditionNode = conditionList.item(j);
-                                if (conditionNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                    Element conditionElement = (Element) conditionNode;
-                                    String typeString = conditionElement.getAttribute("type");
-
-                                    if (typeString == null)
-                                        throw new IOException(String.format("Type of condition #$s in rule #%s must be set", j, i));
-
-                                    Condition.Type type = Condition.Type.valueOf(typeString);
-                                    if (type == null)
-                                        throw new IOException(String.format("Type %s of event #$s in rule #%s is not supported", typeString, j, i));
-
-                                    NodeList paramNodes = conditionElement.getElementsByTagName("param");
-
-                                    if(paramNodes.getLength() != 2) {
-                                        throw new IOException(String.format("Conditions only support two and only two parameters (condition #$s in rule #%s)", j, i));
-                                    }
-
-                                    org.w3c.dom.Node paramNode1 = paramNodes.item(0);
-                                    org.w3c.dom.Node paramNode2 = paramNodes.item(1);
-                                    if (paramNode1.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE && paramNode2.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                        Element param1 = (Element) paramNode1;
-                                        Element param2 = (Element) paramNode2;
-                                        rule.conditions.add(new Condition(type,param1.getTextContent().trim(),param2.getTextContent().trim()));
-                                    }
-                                }
+    /**
+     * fires a rule; the actions are added to the plan of the event or, without one, executed in a plan of the firing
+     * @param batch the events of the window if the rule has a trigger policy, otherwise null
+     */
+    private void fire(RuleNetwork.RuleNode match, EvaluationContext context, ActionPlan eventPlan, Cascade cause, TriggerWindows.Batch batch) throws InterruptedException, IOException, NodeKeeperException {
+        Node node = context.getCurrent();
+        if(cause != null) {
+            if(cause.depth >= maxCascadeDepth) {
+                cascadeLimits.incrementAndGet();
+                droppedActions.addAndGet(match.rule.actions.size());
+                log.warn("rule {} is not fired on {}, the cascade exceeds the maximum depth {}: {}", match.rule.id, node.getPath(), maxCascadeDepth, cause);
+                return;
+            }
+            if(cause.contains(match.rule.id, node.getPath())) {
+                loops.incrementAndGet();
+                droppedActions.addAndGet(match.rule.actions.size());
+                log.warn("rule {} is not fired on {}, the cascade is a loop: {}", match.rule.id, node.getPath(), cause);
+                return;
+            }
+        }
+        log.debug(" - bind variables lazily for node {}", node != null ? node.getPath() : node);
+        int reads = context.getReads();
+        int cacheHits = context.getCacheHits();
+        int sharedEvaluations = context.getSharedEvaluations();
+        RuleProfiler.RuleProfile profile = profiler.profile(match.rule);
+        profile.matched();
+        LazyBindings bindings = bind(match, context, profile);
+        if(batch != null) {
+            bindings.set(TriggerPolicy.COUNT_BINDING, batch.count);
+            bindings.set(TriggerPolicy.PATHS_BINDING, batch.getPaths());
+        }
+        EventTracer tracer = nodeKeeper.getTracer();
+        Span span = tracer.start("rule");
+        if(span != null) span.tag("rule", match.rule.id);
+        try {
+            Span conditions = tracer.start("conditions");
+            long start = System.nanoTime();
+            boolean passed;
+            try {
+                passed = checkConditions(match.conditions, bindings);
+            } finally {
+                tracer.finish(conditions);
+            }
+            profile.conditions(passed, System.nanoTime() - start);
+            if(conditions != null) conditions.tag("passed", passed);
+            if(passed) {
+                Span actions = tracer.start("actions");
+                start = System.nanoTime();
+                try {
+                    ActionPlan plan = eventPlan != null ? eventPlan : new ActionPlan();
+                    //all actions of the firing are admitted or none, so the transaction is never applied in part
+                    //the events of the writes know the firing that caused them
+                    Cascade cascade = new Cascade(cause, match.rule.id, node.getPath());
+                    if(match.rule.actions.isEmpty() || admit(match.rule, match.rule.actions.size())) {
+                        for(Action action : match.rule.actions) {
+                            try {
+                                plan.add(action, bindings, cascade);
+                            } catch (ActionException e) {
+                                log.warn(e.getMessage(),e);
+                                profile.error();
                             }
                         }
+                    }
+                    if(eventPlan == null && !execute(plan, node != null ? node.getPath() : null)) profile.error();
+                } finally {
+                    tracer.finish(actions);
+                }
+                profile.actions(System.nanoTime() - start);
+                firings.incrementAndGet();
+            }
+        } finally {
+            tracer.finish(span);
+            bindingEvaluations.addAndGet(bindings.getEvaluated());
+            skippedBindingEvaluations.addAndGet(match.bindings.size() - bindings.getEvaluated());
+            nodeReads.addAndGet(context.getReads() - reads);
+            cachedNodeReads.addAndGet(context.getCacheHits() - cacheHits);
+            sharedBindingEvaluations.addAndGet(context.getSharedEvaluations() - sharedEvaluations);
+        }
+    }
 
+    /**
+     * takes the tokens of all actions of a firing from the rule and the global rate limit, all or none, and waits for
+     * them if necessary. The wait blocks the event thread, it is bounded by {@link #MAX_THROTTLE_WAIT}.
+     * @return false if the actions are dropped
+     */
+    private boolean admit(Rule rule, int actions) throws InterruptedException {
+        TokenBucket ruleBucket = ruleBuckets.get(rule.id);
+        if(ruleBucket == null && ruleRate > 0) {
+            ruleBuckets.putIfAbsent(rule.id, new TokenBucket(ruleRate, ruleBurst));
+            ruleBucket = ruleBuckets.get(rule.id);
+        }
+        TokenBucket globalBucket = this.globalBucket;
 
-                        if (actions.getLength() > 0) {
-                            NodeList actionList = actions.item(0).getChildNodes();
-                            for (int j = 0; j < actionList.getLength(); j++) {
-                                org.w3c.dom.Node actionNode = actionList.item(j);
-                                if (actionNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                    Element actionElement = (Element) actionNode;
-                                    String typeString = actionElement.getAttribute("type");
-
-                                    if (typeString == null)
-                                        throw new IOException(String.format("Type of action #$s in rule #%s must be set", j, i));
-
-                                    Action.Type type = Action.Type.valueOf(typeString);
-                                    if (type == null)
-                                        throw new IOException(String.format("Type %s of event #$s in rule #%s is not supported", typeString, j, i));
-
-                                    NodeList paramNodes = actionElement.getElementsByTagName("param");
-                                    String[] params = new String[paramNodes.getLength()];
-                                    for (int k = 0; k < paramNodes.getLength(); k++) {
-                                        org.w3c.dom.Node paramNode = paramNodes.item(k);
-                                        if (paramNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                                            Element paramElement = (Element) paramNode;
-                                            params[k] = paramElement.getTextContent().trim();
-                                        }
-                                    }
-
-                                    rule.actions.add(new Action(type,params));
-                                }
-                            }
-                        }
+        long wait = 0;
+        if(ruleBucket != null) {
+            wait = ruleBucket.take(actions, maxThrottleWait);
+            if(wait < 0) return drop(rule, actions, "rule");
+        }
+        if(globalBucket != null) {
+            long globalWait = globalBucket.take(actions, maxThrottleWait);
+            if(globalWait < 0) {
+                if(ruleBucket != null) ruleBucket.giveBack(actions);
+                return drop(rule, actions, "global");
+            }
+            wait = Math.max(wait, globalWait);
+        }
+        if(wait > 0) {
+            throttledActions.addAndGet(actions);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return true;
+    }
 
-                        rules.add(rule);
-                    }
+    private boolean drop(Rule rule, int actions, String limit) {
+        droppedActions.addAndGet(actions);
+        log.debug("{} actions of rule {} are dropped by the {} rate limit", actions, rule.id, limit);
+        return false;
+    }
 
-                }
+    private Cascade takeCascade(String path) {
+        Cascade cascade = cascades.remove(path);
+        return cascade != null && System.nanoTime() - cascade.created < CASCADE_TIMEOUT ? cascade : null;
+    }
 
-                return rules;
+    private Cascade peekCascade(String path) {
+        Cascade cascade = cascades.get(path);
+        return cascade != null && System.nanoTime() - cascade.created < CASCADE_TIMEOUT ? cascade : null;
+    }
 
-            } catch (ParserConfigurationException e) {
-                log.error(e.getMessage(),e);
-            } catch (SAXException e) {
-                log.error(e.getMessage(),e);
-            } catch (IOException e) {
-                log.error(e.getMessage(),e);
+    private void putCascade(String path, Cascade cascade) {
+        if(cascades.size() >= MAX_CASCADES) {
+            long now = System.nanoTime();
+            for(Map.Entry<String,Cascade> entry : cascades.entrySet()) {
+                if(now - entry.getValue().created >= CASCADE_TIMEOUT) cascades.remove(entry.getKey(), entry.getValue());
             }
-            return null;
-        }
-
-        private static Function createFunction(String name, NodeList params) {
-            Function f = FunctionFactory.createFunction(name);
-            ArrayList<Object> paramObjects = new ArrayList<Object>();
-            for(int i = 0; i < params.getLength(); i++) {
-                org.w3c.dom.Node paramNode = params.item(i);
-                if(paramNode.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                    Element param = (Element)paramNode;
-                    String pname  = param.getAttribute("name");
-                    String ptype  =param.getAttribute("type");
-
-                    if(ptype==null || ptype.equals("")) {
-                        Function fx = new StaticValueFunction();
-                        fx.init(param.getTextContent());
-                        paramObjects.add(fx);
-                    } else {
-                        Function fx = createFunction(ptype,param.getChildNodes());
-                        paramObjects.add(fx);
-                    }
-                }
+            if(cascades.size() >= MAX_CASCADES) cascades.clear();
+        }
+        cascades.put(path, cascade);
+    }
+
+    /**
+     * executes a plan and registers the cascades of the nodes it wrote. The events of the writes are delivered after
+     * the cascades are registered if the plan runs on the event thread; a plan of a window or a sequence that fires on
+     * the timer thread may see the event of its write first, which then starts a new cascade.
+     * @return false if the transaction failed
+     */
+    private boolean execute(ActionPlan plan, String path) throws InterruptedException {
+        if(plan.isEmpty()) return true;
+        try {
+            plan.execute(nodeKeeper);
+            transactions.incrementAndGet();
+            for(Map.Entry<String,Cascade> write : plan.getWrites().entrySet()) {
+                putCascade(write.getKey(), write.getValue());
             }
-            f.init(paramObjects.toArray());
-            return f;
+            return true;
+        } catch (NodeKeeperException e) {
+            log.warn(String.format("actions for %s are not executed: %s", path, plan.getResults()), e);
+        } catch (IOException e) {
+            log.warn(String.format("actions for %s are not executed: %s", path, plan.getResults()), e);
+        }
+        return false;
+    }
+
+    private boolean checkConditions(List<Condition> conditions, Map<String,Object> bindings) {
+        for(Condition condition : conditions) {
+            if(!condition.execute(bindings)) return false;
+        }
+        return true;
+    }
+
+    public static class InputOutputHandler {
+
+        /**
+         * parses a rule set, see {@link RuleParser}
+         * @throws at.salzburgresearch.nodekeeper.eca.exception.RuleParseException if the rule set is invalid
+         */
+        public static List<Rule> parseRules(InputStream inputStream) throws IOException {
+            return RuleParser.parse(inputStream);
         }
 
         public static void serializeRules(List<Rule> rules, OutputStream stream) throws ParserConfigurationException, TransformerException, IOException  {
@@ -370,8 +1210,8 @@ public class RuleHandler {
 
     public String getDescription() {
         StringBuilder b = new StringBuilder();
-        for(String id: rules.keySet()) {
-            b.append(rules.get(id).getDescription());
+        for(Rule rule : rules.values()) {
+            b.append(rule.getDescription());
         }
         return b.toString();
     }
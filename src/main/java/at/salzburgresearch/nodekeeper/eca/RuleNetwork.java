@@ -0,0 +1,375 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionCompiler;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled network of all active rules. Rules are indexed by event type and by the constant leading segments of
+ * their pattern (e.g. <i>/my/event/.+</i> or the {@link PathTemplate} <i>/my/event/{id}</i> is indexed below
+ * <i>my/event</i>), so an event is only tested against the
+ * patterns that can match its path. Rules with the same pattern share one pattern test, rules with structurally equal
+ * bindings share one binding function that is evaluated once per event. Shared binding functions are compiled by the
+ * {@link FunctionCompiler}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class RuleNetwork {
+
+    private static final String META_CHARACTERS = "\\.[]{}()*+?^$|";
+    private static final String QUANTIFIERS = "?*+{";
+
+    private static final Comparator<RuleNode> ACTIVATION_ORDER = new Comparator<RuleNode>() {
+        @Override
+        public int compare(RuleNode r1, RuleNode r2) {
+            return r1.order < r2.order ? -1 : (r1.order == r2.order ? 0 : 1);
+        }
+    };
+
+    //one index per delivered event type (nodeCreated, nodeUpdated, nodeDeleted, nodeIdle, childrenChanged)
+    private HashMap<Event.Type,SegmentNode> indexes = new HashMap<Event.Type, SegmentNode>();
+
+    private HashMap<String,RuleNode> rules = new HashMap<String, RuleNode>();
+    private HashMap<String,BindingNode> bindings = new HashMap<String, BindingNode>();
+
+    private long sequence = 0;
+    private int patterns = 0;
+
+    private AtomicLong patternTests = new AtomicLong();
+
+    RuleNetwork() {
+        indexes.put(Event.Type.nodeCreated, new SegmentNode());
+        indexes.put(Event.Type.nodeUpdated, new SegmentNode());
+        indexes.put(Event.Type.nodeDeleted, new SegmentNode());
+        indexes.put(Event.Type.nodeIdle, new SegmentNode());
+        indexes.put(Event.Type.childrenChanged, new SegmentNode());
+    }
+
+    /**
+     * adds a rule to the network
+     * @return the rule node
+     */
+    synchronized RuleNode add(Rule rule) {
+        remove(rule);
+
+        RuleNode node = new RuleNode(rule, sequence++);
+        for(Binding binding : rule.bindings) {
+            String signature = binding.getFunction().getSignature();
+            BindingNode shared = bindings.get(signature);
+            if(shared == null) {
+                shared = new BindingNode(FunctionCompiler.compile(binding.getFunction()));
+                bindings.put(signature, shared);
+            }
+            shared.references++;
+            node.signatures.add(signature);
+            node.bindings.put(binding.getName(), new Binding(binding.getName(), shared.function, binding.isStrict()));
+        }
+        node.conditions = Condition.order(rule.conditions, node.bindings);
+
+        for(Event event : rule.sequence != null ? rule.sequence.getAllEvents() : Collections.singletonList(rule.event)) {
+            PathTemplate template = event.getTemplate();
+            if(template != null && !template.getCaptures().isEmpty()) node.templates.add(template);
+        }
+
+        //bindings that are referenced by a condition or an action are prefetched; a rule with a trigger policy only
+        //needs the bindings of the window key on the event, the rest is evaluated when the window closes
+        Set<String> referenced = new HashSet<String>();
+        if(rule.trigger != null) {
+            referenced.addAll(rule.trigger.getReferencedBindings());
+        } else if(rule.sequence != null) {
+            //only the key is needed on every event of a sequence, the rest when the pattern completes
+            referenced.addAll(rule.sequence.getReferencedBindings());
+        } else {
+            for(Condition condition : rule.conditions) {
+                referenced.addAll(condition.getReferencedBindings());
+            }
+            for(Action action : rule.actions) {
+                referenced.addAll(action.getReferencedBindings());
+            }
+        }
+        for(String name : referenced) {
+            Binding binding = node.bindings.get(name);
+            if(binding != null) node.prefetched.add(binding.getFunction());
+        }
+
+        for(Map.Entry<Event.Type,String> entry : getIndexKeys(rule)) {
+            SegmentNode segment = indexes.get(entry.getKey());
+            for(String s : getConstantSegments(entry.getValue())) {
+                SegmentNode child = segment.children.get(s);
+                if(child == null) {
+                    child = new SegmentNode();
+                    segment.children.put(s, child);
+                }
+                segment = child;
+            }
+            PatternNode pattern = segment.patterns.get(entry.getValue());
+            if(pattern == null) {
+                pattern = new PatternNode(entry.getValue());
+                segment.patterns.put(entry.getValue(), pattern);
+                patterns++;
+            }
+            pattern.rules.add(node);
+        }
+
+        rules.put(rule.id, node);
+        return node;
+    }
+
+    /**
+     * removes and adds rules in one step, so matching never sees a partial change
+     */
+    synchronized void swap(Collection<Rule> removed, Collection<Rule> added) {
+        for(Rule rule : removed) {
+            remove(rule);
+        }
+        for(Rule rule : added) {
+            add(rule);
+        }
+    }
+
+    /**
+     * removes a rule from the network, if it is part of it
+     */
+    synchronized void remove(Rule rule) {
+        RuleNode node = rules.remove(rule.id);
+        if(node == null) return;
+
+        for(String signature : node.signatures) {
+            BindingNode shared = bindings.get(signature);
+            if(--shared.references == 0) bindings.remove(signature);
+        }
+
+        for(Map.Entry<Event.Type,String> entry : getIndexKeys(node.rule)) {
+            remove(indexes.get(entry.getKey()), getConstantSegments(entry.getValue()), 0, entry.getValue(), node);
+        }
+    }
+
+    //returns true if the segment node is empty afterwards
+    private boolean remove(SegmentNode segment, List<String> segments, int i, String key, RuleNode node) {
+        if(i < segments.size()) {
+            SegmentNode child = segment.children.get(segments.get(i));
+            if(child != null && remove(child, segments, i + 1, key, node)) {
+                segment.children.remove(segments.get(i));
+            }
+        } else {
+            PatternNode pattern = segment.patterns.get(key);
+            if(pattern != null) {
+                pattern.rules.remove(node);
+                if(pattern.rules.isEmpty()) {
+                    segment.patterns.remove(key);
+                    patterns--;
+                }
+            }
+        }
+        return segment.children.isEmpty() && segment.patterns.isEmpty();
+    }
+
+    /**
+     * returns the rules that listen to the event
+     * @param type the delivered event type (nodeCreated, nodeUpdated, nodeDeleted, nodeIdle or childrenChanged)
+     * @param path the node path
+     * @return the matching rules in activation order
+     */
+    synchronized List<RuleNode> match(Event.Type type, String path) {
+        List<RuleNode> matches = new ArrayList<RuleNode>();
+        String[] segments = path.split("/", -1);
+
+        SegmentNode segment = indexes.get(type);
+        int matchedPatterns = match(segment, path, matches);
+        for(int i = 1; i < segments.length; i++) {
+            segment = segment.children.get(segments[i]);
+            if(segment == null) break;
+            matchedPatterns += match(segment, path, matches);
+        }
+
+        if(matchedPatterns > 1) {
+            Collections.sort(matches, ACTIVATION_ORDER);
+            //a sequence rule is listed once per matching event pattern
+            for(int i = matches.size() - 1; i > 0; i--) {
+                if(matches.get(i) == matches.get(i - 1)) matches.remove(i);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * tells if a rule of any event type listens to the path, so the events of other nodes are skipped before their data
+     * is read. The tests are not counted as pattern tests.
+     */
+    synchronized boolean listensTo(String path) {
+        String[] segments = path.split("/", -1);
+        for(SegmentNode index : indexes.values()) {
+            SegmentNode segment = index;
+            if(matchesAny(segment, path)) return true;
+            for(int i = 1; i < segments.length; i++) {
+                segment = segment.children.get(segments[i]);
+                if(segment == null) break;
+                if(matchesAny(segment, path)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(SegmentNode segment, String path) {
+        for(PatternNode pattern : segment.patterns.values()) {
+            if(pattern.template != null ? pattern.template.matches(path) : pattern.regex.matcher(path).matches()) return true;
+        }
+        return false;
+    }
+
+    private int match(SegmentNode segment, String path, List<RuleNode> matches) {
+        int matched = 0;
+        for(PatternNode pattern : segment.patterns.values()) {
+            patternTests.incrementAndGet();
+            if(pattern.template != null ? pattern.template.matches(path) : pattern.regex.matcher(path).matches()) {
+                matches.addAll(pattern.rules);
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    synchronized boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return the number of pattern tests of the network, a pattern is counted once per event type it listens to
+     */
+    synchronized int getPatternNodes() {
+        return patterns;
+    }
+
+    /**
+     * @return the number of distinct bindings of the network
+     */
+    synchronized int getBindingNodes() {
+        return bindings.size();
+    }
+
+    /**
+     * @return the number of pattern tests since the last reset
+     */
+    long getPatternTests() {
+        return patternTests.get();
+    }
+
+    void resetStatistics() {
+        patternTests.set(0);
+    }
+
+    /**
+     * returns the delivered event types and patterns a rule is indexed by, each pair once; a sequence rule is indexed
+     * by all events of the sequence
+     */
+    private static Set<Map.Entry<Event.Type,String>> getIndexKeys(Rule rule) {
+        Set<Map.Entry<Event.Type,String>> keys = new LinkedHashSet<Map.Entry<Event.Type, String>>();
+        List<Event> events = rule.sequence != null ? rule.sequence.getAllEvents() : Collections.singletonList(rule.event);
+        for(Event event : events) {
+            for(Event.Type type : getDeliveredTypes(event.type)) {
+                keys.add(new AbstractMap.SimpleImmutableEntry<Event.Type, String>(type, event.pattern));
+            }
+        }
+        return keys;
+    }
+
+    private static Event.Type[] getDeliveredTypes(Event.Type type) {
+        switch (type) {
+            case nodeCreatedUpdated: return new Event.Type[]{Event.Type.nodeCreated, Event.Type.nodeUpdated};
+            default: return new Event.Type[]{type};
+        }
+    }
+
+    /**
+     * returns the leading path segments every path that matches the pattern must start with. The scan stops at the
+     * first segment that contains a regex meta character or is followed by a quantifier; patterns with alternatives
+     * or without a leading '/' have no constant segments. Path templates stop at the first placeholder or wildcard.
+     */
+    static List<String> getConstantSegments(String pattern) {
+        if(PathTemplate.isTemplate(pattern)) return PathTemplate.compile(pattern).getConstantSegments();
+        List<String> segments = new ArrayList<String>();
+        if(!pattern.startsWith("/") || pattern.indexOf('|') >= 0) return segments;
+
+        String[] parts = pattern.split("/", -1);
+        for(int i = 1; i < parts.length; i++) {
+            if(parts[i].isEmpty() || !isLiteral(parts[i])) break;
+            if(i + 1 < parts.length && !parts[i + 1].isEmpty() && QUANTIFIERS.indexOf(parts[i + 1].charAt(0)) >= 0) break;
+            segments.add(parts[i]);
+        }
+        return segments;
+    }
+
+    private static boolean isLiteral(String segment) {
+        for(int i = 0; i < segment.length(); i++) {
+            if(META_CHARACTERS.indexOf(segment.charAt(i)) >= 0) return false;
+        }
+        return true;
+    }
+
+    static class RuleNode {
+
+        final Rule rule;
+        final long order;
+
+        //the bindings of the rule with the shared functions
+        final Map<String,Binding> bindings = new HashMap<String, Binding>();
+        private final List<String> signatures = new ArrayList<String>();
+
+        //the conditions of the rule, cheapest first
+        List<Condition> conditions;
+
+        //the functions of the referenced bindings
+        final List<Function> prefetched = new ArrayList<Function>();
+
+        //the path templates of the events with captures, they are bound before the bindings
+        final List<PathTemplate> templates = new ArrayList<PathTemplate>();
+
+        private RuleNode(Rule rule, long order) {
+            this.rule = rule;
+            this.order = order;
+        }
+    }
+
+    private static class PatternNode {
+
+        //either the template or the regex is set
+        private final PathTemplate template;
+        private final Pattern regex;
+        private final List<RuleNode> rules = new ArrayList<RuleNode>();
+
+        private PatternNode(String pattern) {
+            this.template = PathTemplate.isTemplate(pattern) ? PathTemplate.compile(pattern) : null;
+            this.regex = template == null ? Pattern.compile(pattern) : null;
+        }
+    }
+
+    private static class SegmentNode {
+
+        private final HashMap<String,SegmentNode> children = new HashMap<String, SegmentNode>();
+        private final LinkedHashMap<String,PatternNode> patterns = new LinkedHashMap<String, PatternNode>();
+    }
+
+    private static class BindingNode {
+
+        private final Function function;
+        private int references = 0;
+
+        private BindingNode(Function function) {
+            this.function = function;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.exception.RuleParseException;
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.eca.function.StaticValueFunction;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses rule sets in one pass with a streaming (StAX) reader, so the document is never held in memory. Errors are
+ * reported as {@link RuleParseException} with the line and column of the element that caused them.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleParser {
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private XMLStreamReader reader;
+
+    private RuleParser(XMLStreamReader reader) {
+        this.reader = reader;
+    }
+
+    public static List<Rule> parse(InputStream stream) throws RuleParseException {
+        XMLStreamReader reader = null;
+        try {
+            synchronized (factory) {
+                reader = factory.createXMLStreamReader(stream);
+            }
+            return new RuleParser(reader).parseRules();
+        } catch (XMLStreamException e) {
+            Location location = e.getLocation();
+            throw new RuleParseException("invalid xml: " + e.getMessage(),
+                    location != null ? location.getLineNumber() : -1,
+                    location != null ? location.getColumnNumber() : -1, e);
+        } finally {
+            if(reader != null) try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                //ignore
+            }
+        }
+    }
+
+    private List<Rule> parseRules() throws XMLStreamException, RuleParseException {
+        List<Rule> rules = new ArrayList<Rule>();
+        if(nextElement() != XMLStreamConstants.START_ELEMENT) throw error("the rule set must have a root element");
+        //every child of the root element is a rule
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            rules.add(parseRule(rules.size()));
+        }
+        return rules;
+    }
+
+    private Rule parseRule(int index) throws XMLStreamException, RuleParseException {
+        int[] start = position();
+        Rule rule = new Rule();
+        String name = reader.getAttributeValue(null, "name");
+        if(name != null) rule.id = name;
+
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            if(element.equals("event")) {
+                rule.event = parseEvent();
+            } else if(element.equals("sequence")) {
+                rule.sequence = parseSequence();
+                rule.event = rule.sequence.events.get(0);
+            } else if(element.equals("trigger")) {
+                rule.trigger = parseTrigger();
+            } else if(element.equals("bindings")) {
+                while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+                    rule.bindings.add(parseBinding());
+                }
+            } else if(element.equals("conditions")) {
+                while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+                    rule.conditions.add(parseCondition());
+                }
+            } else if(element.equals("actions")) {
+                while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+                    rule.actions.add(parseAction());
+                }
+            } else {
+                skipElement();
+            }
+        }
+
+        if(rule.event == null) {
+            throw error(String.format("rule #%s (%s) must contain an event element", index, rule.id), start);
+        }
+        //the captures of a path template are bindings as well
+        for(Event event : rule.sequence != null ? rule.sequence.getAllEvents() : Collections.singletonList(rule.event)) {
+            if(event.getTemplate() == null) continue;
+            for(Binding binding : rule.bindings) {
+                if(event.getTemplate().getCaptures().contains(binding.getName())) {
+                    throw error(String.format("rule #%s (%s) binds %s twice, by the pattern %s and by a binding", index, rule.id, binding.getName(), event.pattern), start);
+                }
+            }
+        }
+        if(rule.sequence != null && rule.trigger != null) {
+            throw error(String.format("rule #%s (%s) cannot have both a sequence and a trigger", index, rule.id), start);
+        }
+        return rule;
+    }
+
+    private Event parseEvent() throws XMLStreamException, RuleParseException {
+        int[] start = position();
+        Event.Type type = type(Event.Type.class, "event");
+        String timeout = reader.getAttributeValue(null, "timeout");
+        long millis = -1;
+        if(type == Event.Type.nodeIdle) {
+            try {
+                millis = timeout != null ? Long.parseLong(timeout.trim()) : -1;
+            } catch (NumberFormatException e) {
+                millis = -1;
+            }
+            if(millis <= 0) throw error(String.format("the timeout of a nodeIdle event must be a positive number of milliseconds, found %s", timeout));
+        }
+        String pattern = null;
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            if(pattern == null && reader.getLocalName().equals("param")) pattern = readText().trim();
+            else skipElement();
+        }
+        if(pattern == null) throw error("the event must have a param", start);
+        Event event = new Event(type, pattern);
+        if(type == Event.Type.nodeIdle) event.timeout = millis;
+        try {
+            event.getTemplate();
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage(), start);
+        }
+        return event;
+    }
+
+    private EventSequence parseSequence() throws XMLStreamException, RuleParseException {
+        int[] start = position();
+        String within = reader.getAttributeValue(null, "within");
+        String key = reader.getAttributeValue(null, "key");
+        long millis;
+        try {
+            millis = within != null ? Long.parseLong(within.trim()) : -1;
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if(millis <= 0) throw error(String.format("the window of the sequence must be a positive number of milliseconds, found %s", within));
+
+        List<Event> events = new ArrayList<Event>();
+        Event absent = null;
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            if(element.equals("event") || (element.equals("absent") && absent == null)) {
+                Event event = parseEvent();
+                if(event.type == Event.Type.nodeIdle || event.type == Event.Type.childrenChanged) {
+                    throw error(String.format("%s events are not supported in sequences", event.type), start);
+                }
+                if(element.equals("event")) events.add(event);
+                else absent = event;
+            } else {
+                skipElement();
+            }
+        }
+        try {
+            return new EventSequence(events, absent, millis, key == null || key.isEmpty() ? null : key);
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage(), start);
+        }
+    }
+
+    private TriggerPolicy parseTrigger() throws XMLStreamException, RuleParseException {
+        TriggerPolicy.Type type = type(TriggerPolicy.Type.class, "trigger");
+        String interval = reader.getAttributeValue(null, "interval");
+        String key = reader.getAttributeValue(null, "key");
+        long millis;
+        try {
+            millis = interval != null ? Long.parseLong(interval.trim()) : -1;
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if(millis <= 0) throw error(String.format("the interval of the trigger must be a positive number of milliseconds, found %s", interval));
+        skipElement();
+        return new TriggerPolicy(type, millis, key == null || key.isEmpty() ? null : key);
+    }
+
+    private Binding parseBinding() throws XMLStreamException, RuleParseException {
+        String name = reader.getAttributeValue(null, "name");
+        String type = reader.getAttributeValue(null, "type");
+        String strict = reader.getAttributeValue(null, "strict");
+        if(name == null || name.isEmpty()) throw error("the binding must have a name");
+
+        Function function;
+        if(type == null || type.isEmpty()) {
+            function = new StaticValueFunction();
+            function.init(readText().trim());
+        } else {
+            function = parseFunction(type);
+        }
+        return new Binding(name, function, Boolean.valueOf(strict));
+    }
+
+    private Function parseFunction(String type) throws XMLStreamException, RuleParseException {
+        Function function;
+        try {
+            function = FunctionFactory.createFunction(type);
+        } catch (RuntimeException e) {
+            throw error(e.getMessage());
+        }
+
+        List<Object> params = new ArrayList<Object>();
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            String ptype = reader.getAttributeValue(null, "type");
+            if(ptype == null || ptype.isEmpty()) {
+                Function value = new StaticValueFunction();
+                value.init(readText());
+                params.add(value);
+            } else {
+                params.add(parseFunction(ptype));
+            }
+        }
+        function.init(params.toArray());
+        return function;
+    }
+
+    private Condition parseCondition() throws XMLStreamException, RuleParseException {
+        int[] start = position();
+        Condition.Type type = type(Condition.Type.class, "condition");
+        if(type.isComposite()) {
+            //the terms are nested condition elements
+            List<Condition> terms = new ArrayList<Condition>();
+            while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+                if(reader.getLocalName().equals("condition")) terms.add(parseCondition());
+                else skipElement();
+            }
+            if(type == Condition.Type.not ? terms.size() != 1 : terms.isEmpty()) {
+                throw error(String.format("%s conditions need %s, found %s", type,
+                        type == Condition.Type.not ? "exactly one condition" : "at least one condition", terms.size()), start);
+            }
+            return new Condition(type, terms);
+        }
+        List<String> params = readParams();
+        if(params.size() != 2) {
+            throw error(String.format("conditions support two and only two parameters, found %s", params.size()), start);
+        }
+        return new Condition(type, params.get(0), params.get(1));
+    }
+
+    private Action parseAction() throws XMLStreamException, RuleParseException {
+        Action.Type type = type(Action.Type.class, "action");
+        List<String> params = readParams();
+        return new Action(type, params.toArray(new String[params.size()]));
+    }
+
+    //the trimmed text of all param children of the current element
+    private List<String> readParams() throws XMLStreamException {
+        List<String> params = new ArrayList<String>();
+        while(nextElement() == XMLStreamConstants.START_ELEMENT) {
+            if(reader.getLocalName().equals("param")) params.add(readText().trim());
+            else skipElement();
+        }
+        return params;
+    }
+
+    private <E extends Enum<E>> E type(Class<E> clazz, String element) throws RuleParseException {
+        String type = reader.getAttributeValue(null, "type");
+        if(type == null || type.isEmpty()) throw error(String.format("the type of the %s must be set", element));
+        try {
+            return Enum.valueOf(clazz, type);
+        } catch (IllegalArgumentException e) {
+            throw error(String.format("type %s of the %s is not supported", type, element));
+        }
+    }
+
+    /**
+     * moves to the next start element or to the end element of the current element, text is skipped
+     */
+    private int nextElement() throws XMLStreamException {
+        while(reader.hasNext()) {
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT) return event;
+        }
+        return XMLStreamConstants.END_DOCUMENT;
+    }
+
+    /**
+     * reads the text of the current element and all its descendants and moves to its end element
+     */
+    private String readText() throws XMLStreamException {
+        StringBuilder b = new StringBuilder();
+        int depth = 1;
+        while(depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT: depth++; break;
+                case XMLStreamConstants.END_ELEMENT: depth--; break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    b.append(reader.getText());
+                    break;
+            }
+        }
+        return b.toString();
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while(depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT: depth++; break;
+                case XMLStreamConstants.END_ELEMENT: depth--; break;
+            }
+        }
+    }
+
+    //line and column of the current event, copied because locations of some readers are live
+    private int[] position() {
+        Location location = reader.getLocation();
+        return new int[]{location.getLineNumber(), location.getColumnNumber()};
+    }
+
+    private RuleParseException error(String message) {
+        return error(message, position());
+    }
+
+    private RuleParseException error(String message, int[] position) {
+        return new RuleParseException(message, position[0], position[1]);
+    }
+}
@@ -0,0 +1,331 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Profiles the active rules of a rule handler: for every rule the matches, condition passes and failures, the time
+ * spent in conditions, bindings (per binding) and actions and the errors; binding time is also summed up per function
+ * type. Counting is always on and costs a few atomic increments and clock reads per firing. The profiles can be
+ * queried via this class or via JMX, see {@link #registerMBean(String)}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleProfiler implements RuleProfilerMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(RuleProfiler.class);
+
+    private static final String DOMAIN = "at.salzburgresearch.nodekeeper";
+
+    private final ConcurrentHashMap<String,RuleProfile> profiles = new ConcurrentHashMap<String, RuleProfile>();
+    private final ConcurrentHashMap<String,Timer> functions = new ConcurrentHashMap<String, Timer>();
+
+    private ObjectName objectName;
+
+    /**
+     * A counter of executions and the time they took.
+     */
+    public static class Timer {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            this.nanos.addAndGet(nanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        void reset() {
+            count.set(0);
+            nanos.set(0);
+        }
+    }
+
+    /**
+     * The counters of one rule.
+     */
+    public static class RuleProfile {
+
+        private final String id;
+
+        private final AtomicLong matches = new AtomicLong();
+        private final AtomicLong passes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Timer conditions = new Timer();
+        private final Timer actions = new Timer();
+
+        //the bindings and the function types of the bindings, fixed when the rule is activated
+        private final Map<String,Timer> bindings = new LinkedHashMap<String, Timer>();
+        private final Map<String,Timer> bindingFunctions = new LinkedHashMap<String, Timer>();
+
+        private RuleProfile(Rule rule, RuleProfiler profiler) {
+            this.id = rule.id;
+            for(Binding binding : rule.bindings) {
+                bindings.put(binding.getName(), new Timer());
+                bindingFunctions.put(binding.getName(), profiler.function(binding.getFunction().getName()));
+            }
+        }
+
+        void matched() {
+            matches.incrementAndGet();
+        }
+
+        void conditions(boolean passed, long nanos) {
+            (passed ? passes : failures).incrementAndGet();
+            conditions.record(nanos);
+        }
+
+        void actions(long nanos) {
+            actions.record(nanos);
+        }
+
+        void binding(String name, long nanos) {
+            Timer timer = bindings.get(name);
+            if(timer == null) return;
+            timer.record(nanos);
+            bindingFunctions.get(name).record(nanos);
+        }
+
+        void error() {
+            errors.incrementAndGet();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the number of events that matched the event of the rule
+         */
+        public long getMatches() {
+            return matches.get();
+        }
+
+        public long getConditionPasses() {
+            return passes.get();
+        }
+
+        public long getConditionFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return binding and action errors
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the time of condition checks, including the bindings they evaluated
+         */
+        public long getConditionNanos() {
+            return conditions.getNanos();
+        }
+
+        /**
+         * @return the time of actions, including the bindings they evaluated; with {@link ActionPlan.Scope#event} the
+         * transaction is not included
+         */
+        public long getActionNanos() {
+            return actions.getNanos();
+        }
+
+        /**
+         * @return the time of all binding evaluations of the rule
+         */
+        public long getBindingNanos() {
+            long nanos = 0;
+            for(Timer timer : bindings.values()) {
+                nanos += timer.getNanos();
+            }
+            return nanos;
+        }
+
+        /**
+         * @return the time the rule cost, conditions and actions
+         */
+        public long getTotalNanos() {
+            return conditions.getNanos() + actions.getNanos();
+        }
+
+        /**
+         * @return the timers of the bindings by name
+         */
+        public Map<String,Timer> getBindings() {
+            return Collections.unmodifiableMap(bindings);
+        }
+
+        void reset() {
+            matches.set(0);
+            passes.set(0);
+            failures.set(0);
+            errors.set(0);
+            conditions.reset();
+            actions.reset();
+            for(Timer timer : bindings.values()) {
+                timer.reset();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: total %.3f ms, matches %s, passes %s, failures %s, errors %s, conditions %.3f ms, bindings %.3f ms, actions %.3f ms",
+                    id, getTotalNanos() / 1e6, getMatches(), getConditionPasses(), getConditionFailures(), getErrors(),
+                    getConditionNanos() / 1e6, getBindingNanos() / 1e6, getActionNanos() / 1e6);
+        }
+    }
+
+    void activate(Rule rule) {
+        profiles.put(rule.id, new RuleProfile(rule, this));
+    }
+
+    void remove(Rule rule) {
+        profiles.remove(rule.id);
+    }
+
+    RuleProfile profile(Rule rule) {
+        RuleProfile profile = profiles.get(rule.id);
+        if(profile == null) {
+            //e.g. a rule that has been removed while an event is delivered
+            profile = new RuleProfile(rule, this);
+        }
+        return profile;
+    }
+
+    private Timer function(String name) {
+        Timer timer = functions.get(name);
+        if(timer == null) {
+            functions.putIfAbsent(name, new Timer());
+            timer = functions.get(name);
+        }
+        return timer;
+    }
+
+    /**
+     * @return the profile of a rule or null if the rule is not active
+     */
+    public RuleProfile getProfile(String id) {
+        return profiles.get(id);
+    }
+
+    public Collection<RuleProfile> getProfiles() {
+        return Collections.unmodifiableCollection(profiles.values());
+    }
+
+    /**
+     * @return the n rules that cost the most time
+     */
+    public List<RuleProfile> getTopRules(int n) {
+        List<RuleProfile> sorted = new ArrayList<RuleProfile>(profiles.values());
+        Collections.sort(sorted, new Comparator<RuleProfile>() {
+            @Override
+            public int compare(RuleProfile p1, RuleProfile p2) {
+                long t1 = p1.getTotalNanos(), t2 = p2.getTotalNanos();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    /**
+     * @return the binding time by the type of the binding function (e.g. nodeData)
+     */
+    public Map<String,Timer> getFunctions() {
+        return Collections.unmodifiableMap(new TreeMap<String, Timer>(functions));
+    }
+
+    @Override
+    public void reset() {
+        for(RuleProfile profile : profiles.values()) {
+            profile.reset();
+        }
+        for(Timer timer : functions.values()) {
+            timer.reset();
+        }
+    }
+
+    @Override
+    public int getRuleCount() {
+        return profiles.size();
+    }
+
+    @Override
+    public String[] getTopRuleSummaries(int n) {
+        List<RuleProfile> top = getTopRules(n);
+        String[] lines = new String[top.size()];
+        for(int i = 0; i < lines.length; i++) {
+            lines[i] = top.get(i).toString();
+        }
+        return lines;
+    }
+
+    @Override
+    public String[] getFunctionSummaries() {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<String,Timer> function : getFunctions().entrySet()) {
+            lines.add(String.format("%s: %s evaluations, %.3f ms", function.getKey(), function.getValue().getCount(),
+                    function.getValue().getNanos() / 1e6));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String getRuleSummary(String id) {
+        RuleProfile profile = profiles.get(id);
+        if(profile == null) return null;
+        StringBuilder b = new StringBuilder(profile.toString());
+        for(Map.Entry<String,Timer> binding : profile.getBindings().entrySet()) {
+            b.append(String.format("; binding %s: %s evaluations, %.3f ms", binding.getKey(),
+                    binding.getValue().getCount(), binding.getValue().getNanos() / 1e6));
+        }
+        return b.toString();
+    }
+
+    /**
+     * registers the profiler as mbean <i>at.salzburgresearch.nodekeeper:type=RuleProfiler,name=&lt;name&gt;</i> at the
+     * platform mbean server
+     * @param name the name of the rule handler
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=RuleProfiler,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregisterMBean() {
+        if(objectName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("cannot unregister {}: {}", objectName, e.getMessage());
+        }
+        objectName = null;
+    }
+}
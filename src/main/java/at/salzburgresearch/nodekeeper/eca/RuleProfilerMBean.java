@@ -0,0 +1,34 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+/**
+ * The JMX view of the {@link RuleProfiler}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public interface RuleProfilerMBean {
+
+    /**
+     * @return the number of profiled rules
+     */
+    int getRuleCount();
+
+    /**
+     * @return a summary line of each of the n rules that cost the most time
+     */
+    String[] getTopRuleSummaries(int n);
+
+    /**
+     * @return a summary line of the binding time per function type
+     */
+    String[] getFunctionSummaries();
+
+    /**
+     * @return the summary of a rule with the time of each binding, null if the rule is not active
+     */
+    String getRuleSummary(String id);
+
+    /**
+     * resets all counters
+     */
+    void reset();
+}
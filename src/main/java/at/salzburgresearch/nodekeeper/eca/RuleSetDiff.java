@@ -0,0 +1,45 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a rule reload: the ids of the rules that have been added, replaced, removed or kept unchanged.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleSetDiff {
+
+    List<String> added = new ArrayList<String>();
+    List<String> replaced = new ArrayList<String>();
+    List<String> removed = new ArrayList<String>();
+    List<String> unchanged = new ArrayList<String>();
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getReplaced() {
+        return replaced;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public List<String> getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return true if the rule set did not change
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && replaced.isEmpty() && removed.isEmpty();
+    }
+
+    public String toString() {
+        return String.format("%s added, %s replaced, %s removed, %s unchanged",
+                added.size(), replaced.size(), removed.size(), unchanged.size());
+    }
+}
@@ -0,0 +1,178 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.model.Node;
+import at.salzburgresearch.nodekeeper.timer.TimingWheel;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Evaluates the {@link EventSequence} patterns of the rules as nondeterministic automata in memory. The state of an
+ * automaton is the number of sequence events that have been seen; every event that matches the first event of a
+ * sequence starts a run, so overlapping partial matches are followed in parallel. The runs are grouped by rule and
+ * correlation key and expire with the window of the pattern on the timing wheel of nodekeeper; an expired run that
+ * waited for an absent event completes the pattern. Expiries are handed over to the zookeeper event thread, so they
+ * are ordered with the node events.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class SequenceMatcher {
+
+    //the number of runs per rule and key, the oldest run is dropped first
+    private static final int MAX_RUNS = 64;
+
+    /**
+     * fires a rule whose pattern completed when its window ended
+     */
+    interface Callback {
+        void complete(RuleNetwork.RuleNode match, Node node, Cascade cause);
+    }
+
+    private static class Run {
+
+        //the number of sequence events seen, the size of the sequence if the run waits for the absent event
+        int state = 1;
+        Node last;
+        Cascade cause;
+        TimingWheel.Timeout timeout;
+
+        Run(Node node, Cascade cause) {
+            this.last = node;
+            this.cause = cause;
+        }
+    }
+
+    //the runs of one rule and key
+    private static class Partial {
+
+        final RuleNetwork.RuleNode match;
+        final String id;
+        final LinkedList<Run> runs = new LinkedList<Run>();
+
+        Partial(RuleNetwork.RuleNode match, String id) {
+            this.match = match;
+            this.id = id;
+        }
+    }
+
+    private final HashMap<String,Partial> partials = new HashMap<String, Partial>();
+    private final NodeKeeper nodeKeeper;
+    private final Callback callback;
+    private int runs;
+
+    SequenceMatcher(NodeKeeper nodeKeeper, Callback callback) {
+        this.nodeKeeper = nodeKeeper;
+        this.callback = callback;
+    }
+
+    /**
+     * advances the runs of the key with an event and starts a new run if the event is the first of the sequence
+     * @param type the delivered event type
+     * @return true if a run completed the sequence with this event, so the rule fires on it
+     */
+    synchronized boolean offer(RuleNetwork.RuleNode match, String key, Event.Type type, Node node, Cascade cause) {
+        EventSequence sequence = match.rule.sequence;
+        int size = sequence.events.size();
+        String id = match.rule.id + '\n' + key;
+        String path = node.getPath();
+        boolean completed = false;
+
+        Partial partial = partials.get(id);
+        if(partial != null) {
+            Iterator<Run> it = partial.runs.iterator();
+            while(it.hasNext()) {
+                Run run = it.next();
+                if(run.state == size) {
+                    //the absent event occurred, the pattern fails
+                    if(sequence.absent.matches(type, path)) {
+                        it.remove();
+                        drop(run);
+                    }
+                } else if(sequence.events.get(run.state).matches(type, path)) {
+                    run.state++;
+                    run.last = node;
+                    run.cause = cause;
+                    if(run.state == size && sequence.absent == null) {
+                        it.remove();
+                        drop(run);
+                        completed = true;
+                    }
+                }
+            }
+        }
+
+        if(sequence.events.get(0).matches(type, path)) {
+            if(partial == null) {
+                partial = new Partial(match, id);
+                partials.put(id, partial);
+            }
+            if(partial.runs.size() >= MAX_RUNS) drop(partial.runs.removeFirst());
+            Run run = new Run(node, cause);
+            partial.runs.add(run);
+            runs++;
+            schedule(partial, run, System.currentTimeMillis() + sequence.within);
+        }
+
+        if(partial != null && partial.runs.isEmpty()) partials.remove(id);
+        return completed;
+    }
+
+    /**
+     * drops the runs of a rule
+     */
+    synchronized void cancel(String ruleId) {
+        Iterator<Map.Entry<String,Partial>> entries = partials.entrySet().iterator();
+        while(entries.hasNext()) {
+            Partial partial = entries.next().getValue();
+            if(!partial.match.rule.id.equals(ruleId)) continue;
+            for(Run run : partial.runs) {
+                drop(run);
+            }
+            entries.remove();
+        }
+    }
+
+    /**
+     * @return the number of partial matches
+     */
+    synchronized int size() {
+        return runs;
+    }
+
+    //cancels the timer of a run that has been removed from its partial match
+    private void drop(Run run) {
+        if(run.timeout != null) nodeKeeper.getTimers().cancel(run.timeout);
+        runs--;
+    }
+
+    private void schedule(final Partial partial, final Run run, long deadline) {
+        run.timeout = nodeKeeper.getTimers().scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                //any request will do, its callback runs on the event thread after the pending events
+                nodeKeeper.getZooKeeper().exists(run.last.getPath(), false, new AsyncCallback.StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        expire(partial, run);
+                    }
+                }, null);
+            }
+        }, deadline);
+    }
+
+    private void expire(Partial partial, Run run) {
+        synchronized (this) {
+            if(!partial.runs.remove(run)) return;
+            runs--;
+            if(partial.runs.isEmpty() && partials.get(partial.id) == partial) partials.remove(partial.id);
+            EventSequence sequence = partial.match.rule.sequence;
+            if(run.state < sequence.events.size() || sequence.absent == null) return;
+        }
+        callback.complete(partial.match, run.last, run.cause);
+    }
+}
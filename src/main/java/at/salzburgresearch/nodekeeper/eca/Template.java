@@ -0,0 +1,136 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A condition or action argument with placeholders like <i>/my/action/{label}</i>. The argument is parsed once into
+ * literal segments and binding slots, rendering is a single append pass. Values are inserted as they are (no regex
+ * replacement), placeholders without a binding stay untouched.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class Template {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String source;
+
+    //literals[i] is followed by slots[i], the last literal has no slot
+    private String[] literals;
+    private String[] slots;
+
+    private Template(String source, String[] literals, String[] slots) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    public static Template compile(String source) {
+        List<String> literals = new ArrayList<String>();
+        List<String> slots = new ArrayList<String>();
+
+        int start = 0;
+        int open;
+        while((open = source.indexOf('{', start)) >= 0) {
+            int close = source.indexOf('}', open + 1);
+            if(close < 0) break;
+            int nested = source.indexOf('{', open + 1);
+            if(nested >= 0 && nested < close) {
+                //'{' is no placeholder start, keep it as literal
+                literals.add(source.substring(start, nested));
+                slots.add(null);
+                start = nested;
+                continue;
+            }
+            literals.add(source.substring(start, open));
+            slots.add(source.substring(open + 1, close));
+            start = close + 1;
+        }
+        literals.add(source.substring(start));
+
+        //merge literals that are not separated by a slot
+        List<String> l = new ArrayList<String>();
+        List<String> s = new ArrayList<String>();
+        StringBuilder b = new StringBuilder();
+        for(int i = 0; i < slots.size(); i++) {
+            b.append(literals.get(i));
+            if(slots.get(i) != null) {
+                l.add(b.toString());
+                s.add(slots.get(i));
+                b.setLength(0);
+            }
+        }
+        b.append(literals.get(literals.size() - 1));
+        l.add(b.toString());
+
+        return new Template(source, l.toArray(new String[l.size()]), s.toArray(new String[s.size()]));
+    }
+
+    /**
+     * @return the names of the referenced bindings
+     */
+    public Set<String> getSlots() {
+        Set<String> names = new LinkedHashSet<String>();
+        Collections.addAll(names, slots);
+        return names;
+    }
+
+    /**
+     * @return true if the template does not contain any placeholder
+     */
+    public boolean isConstant() {
+        return slots.length == 0;
+    }
+
+    /**
+     * @return the name of the binding if the template consists of exactly one placeholder, otherwise null
+     */
+    public String getSlot() {
+        return slots.length == 1 && literals[0].isEmpty() && literals[1].isEmpty() ? slots[0] : null;
+    }
+
+    /**
+     * replaces the placeholders with the bound values
+     * @param bindings the bound values by name
+     * @return the rendered string
+     * @throws BindingException if a referenced binding failed and is strict; non strict failures are rendered as
+     * {@link Binding#DEFAULT_BINDING}
+     */
+    public String render(Map<String,Object> bindings) throws BindingException {
+        if(slots.length == 0) return literals[0];
+        StringBuilder b = new StringBuilder(source.length() + 16 * slots.length);
+        for(int i = 0; i < slots.length; i++) {
+            b.append(literals[i]);
+            Object value = bindings.get(slots[i]);
+            if(value != null || bindings.containsKey(slots[i])) {
+                b.append(toString(value));
+            } else {
+                b.append('{').append(slots[i]).append('}');
+            }
+        }
+        b.append(literals[slots.length]);
+        return b.toString();
+    }
+
+    static String toString(Object value) throws BindingException {
+        if(value instanceof BindingException) {
+            BindingException e = (BindingException) value;
+            if(e.isStrict()) throw e;
+            return Binding.DEFAULT_BINDING;
+        }
+        if(value instanceof byte[]) return new String((byte[]) value, UTF8);
+        return String.valueOf(value);
+    }
+
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,86 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket for the admission of rule actions: tokens are refilled with a constant rate up to the burst size and
+ * every action takes one; the actions of a rule firing take their tokens together or not at all. A firing that finds
+ * too few tokens may wait for the missing ones up to a maximum time.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private final double burst;
+
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param rate the tokens per second
+     * @param burst the maximum number of tokens, the bucket starts full
+     */
+    public TokenBucket(double rate, int burst) {
+        if(rate <= 0 || burst < 1) throw new IllegalArgumentException(String.format("invalid token bucket (rate %s, burst %s)", rate, burst));
+        this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * takes a token; if there is none, the next token is reserved if it is available within the maximum wait
+     * @param maxWait the maximum wait in nanoseconds
+     * @return the nanoseconds to wait for the token (0 if a token is available) or -1 if no token is taken
+     */
+    public long take(long maxWait) {
+        return take(1, maxWait);
+    }
+
+    /**
+     * takes several tokens at once; if there are too few, the missing tokens are reserved if they are available within
+     * the maximum wait, otherwise no token is taken
+     * @param count the number of tokens
+     * @param maxWait the maximum wait in nanoseconds
+     * @return the nanoseconds to wait for the tokens (0 if they are available) or -1 if no token is taken
+     */
+    public synchronized long take(int count, long maxWait) {
+        refill();
+        if(tokens >= count) {
+            tokens -= count;
+            return 0;
+        }
+        long wait = (long) Math.ceil((count - tokens) / rate);
+        if(wait > maxWait) return -1;
+        tokens -= count;
+        return wait;
+    }
+
+    /**
+     * returns a token that has been taken but not used
+     */
+    public void giveBack() {
+        giveBack(1);
+    }
+
+    /**
+     * returns tokens that have been taken but not used
+     */
+    public synchronized void giveBack(int count) {
+        tokens = Math.min(burst, tokens + count);
+    }
+
+    public double getRate() {
+        return rate * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public int getBurst() {
+        return (int) burst;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate);
+        refilled = now;
+    }
+}
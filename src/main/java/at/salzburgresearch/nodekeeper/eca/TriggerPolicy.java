@@ -0,0 +1,90 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Defines how the events of a rule are collected to windows before the rule fires, e.g. to fire once after a burst of
+ * created nodes instead of once per node. Events are grouped by a key, a template over the bindings (e.g.
+ * <i>{parent}</i> with a parentNode binding); without a key all events of the rule share one window. The rule fires
+ * once per window with the bindings of the latest event and the bindings <i>_count</i> (the number of events) and
+ * <i>_paths</i> (the comma separated paths of the events).
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TriggerPolicy {
+
+    public static final String COUNT_BINDING = "_count";
+    public static final String PATHS_BINDING = "_paths";
+
+    public enum Type {
+        /**
+         * fires when no event arrived for the interval
+         */
+        debounce,
+        /**
+         * fires on the first event and then at most once per interval with the latest event
+         */
+        throttle,
+        /**
+         * fires at the end of a window of the interval that starts with the first event
+         */
+        window
+    }
+
+    public final Type type;
+    public final long interval;
+    public final String key;
+
+    //the key, parsed once
+    private final Template template;
+
+    /**
+     * @param type the type of the policy
+     * @param interval the interval in milliseconds
+     * @param key the template of the window key or null for one window per rule
+     */
+    public TriggerPolicy(Type type, long interval, String key) {
+        if(interval <= 0) throw new IllegalArgumentException(String.format("the interval of a %s trigger must be positive, found %s", type, interval));
+        this.type = type;
+        this.interval = interval;
+        this.key = key;
+        this.template = key != null ? Template.compile(key) : null;
+    }
+
+    /**
+     * @return the names of the bindings the key references
+     */
+    public Set<String> getReferencedBindings() {
+        return template != null ? template.getSlots() : Collections.<String>emptySet();
+    }
+
+    /**
+     * renders the window key
+     */
+    String getKey(Map<String,Object> bindings) throws BindingException {
+        return template != null ? template.render(bindings) : "";
+    }
+
+    String getSignature() {
+        return type + "(" + interval + "," + (key != null ? key : "") + ")";
+    }
+
+    public Element toElement(Document doc) {
+        Element element = doc.createElement("trigger");
+        element.setAttribute("type", type.name());
+        element.setAttribute("interval", String.valueOf(interval));
+        if(key != null) element.setAttribute("key", key);
+        return element;
+    }
+
+    @Override
+    public String toString() {
+        return getSignature();
+    }
+}
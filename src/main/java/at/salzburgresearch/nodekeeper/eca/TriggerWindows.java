@@ -0,0 +1,203 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The open windows of the rules with a {@link TriggerPolicy}. Events are added on the event thread, windows are closed
+ * by a timer thread that fires the rule with the collected {@link Batch}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+class TriggerWindows {
+
+    private static final Logger log = LoggerFactory.getLogger(TriggerWindows.class);
+
+    //the number of paths that are collected per window, further events are only counted
+    private static final int MAX_PATHS = 1000;
+
+    /**
+     * fires a rule with the events of a closed window
+     */
+    interface Callback {
+        void fire(RuleNetwork.RuleNode match, Batch batch);
+    }
+
+    /**
+     * the events of a window
+     */
+    static class Batch {
+
+        Node latest;
+        Cascade cause;
+        int count;
+        List<String> paths = new ArrayList<String>();
+
+        Batch() {
+        }
+
+        Batch(Node node, Cascade cause) {
+            add(node, cause);
+        }
+
+        void add(Node node, Cascade cause) {
+            latest = node;
+            this.cause = cause;
+            count++;
+            if(paths.size() < MAX_PATHS) paths.add(node.getPath());
+        }
+
+        String getPaths() {
+            StringBuilder b = new StringBuilder();
+            for(String path : paths) {
+                if(b.length() > 0) b.append(',');
+                b.append(path);
+            }
+            return b.toString();
+        }
+    }
+
+    private static class Window {
+
+        final RuleNetwork.RuleNode match;
+        final String id;
+
+        Batch batch = new Batch();
+        ScheduledFuture future;
+        //invalidates a scheduled close that has been replaced (debounce)
+        int generation;
+        boolean closed;
+
+        Window(RuleNetwork.RuleNode match, String id) {
+            this.match = match;
+            this.id = id;
+        }
+    }
+
+    private final ConcurrentHashMap<String,Window> windows = new ConcurrentHashMap<String, Window>();
+    private final Callback callback;
+    private ScheduledThreadPoolExecutor executor;
+
+    TriggerWindows(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * adds an event to the window of its key
+     * @return true if the rule fires on the event at once (the first event of a throttle interval)
+     */
+    boolean offer(RuleNetwork.RuleNode match, String key, Node node, Cascade cause) {
+        TriggerPolicy policy = match.rule.trigger;
+        String id = match.rule.id + '\n' + key;
+        while(true) {
+            Window window = windows.get(id);
+            if(window == null) {
+                window = new Window(match, id);
+                Window open = windows.putIfAbsent(id, window);
+                if(open != null) window = open;
+            }
+            synchronized (window) {
+                //closed in the meantime, open a new one
+                if(window.closed) continue;
+                switch (policy.type) {
+                    case debounce:
+                        window.batch.add(node, cause);
+                        if(window.future != null) window.future.cancel(false);
+                        schedule(window, policy.interval);
+                        return false;
+                    case window:
+                        window.batch.add(node, cause);
+                        if(window.future == null) schedule(window, policy.interval);
+                        return false;
+                    case throttle:
+                        if(window.future == null) {
+                            schedule(window, policy.interval);
+                            return true;
+                        }
+                        window.batch.add(node, cause);
+                        return false;
+                }
+                throw new IllegalStateException("unknown trigger " + policy.type);
+            }
+        }
+    }
+
+    /**
+     * drops the open windows of a rule without firing it
+     */
+    void cancel(String ruleId) {
+        for(Map.Entry<String,Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if(!window.match.rule.id.equals(ruleId)) continue;
+            synchronized (window) {
+                window.closed = true;
+                if(window.future != null) window.future.cancel(false);
+            }
+            windows.remove(entry.getKey(), window);
+        }
+    }
+
+    /**
+     * @return the number of open windows
+     */
+    int size() {
+        return windows.size();
+    }
+
+    private void close(Window window, int generation) {
+        Batch batch;
+        synchronized (window) {
+            if(window.closed || window.generation != generation) return;
+            batch = window.batch;
+            window.batch = new Batch();
+            if(window.match.rule.trigger.type == TriggerPolicy.Type.throttle && batch.count > 0) {
+                //the trailing firing starts the next interval
+                schedule(window, window.match.rule.trigger.interval);
+            } else {
+                window.closed = true;
+                windows.remove(window.id, window);
+            }
+        }
+        if(batch.count == 0) return;
+        try {
+            callback.fire(window.match, batch);
+        } catch (RuntimeException e) {
+            log.error(String.format("cannot fire rule %s for a window of %s events", window.match.rule.id, batch.count), e);
+        }
+    }
+
+    private void schedule(final Window window, long interval) {
+        final int generation = ++window.generation;
+        window.future = executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                close(window, generation);
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledThreadPoolExecutor executor() {
+        if(executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "nodekeeper-trigger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,195 @@
+package at.salzburgresearch.nodekeeper.eca;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A typed value of a binding or a condition argument. Strings are typed once when the value is created: integral
+ * numbers become {@link Type#LONG}, decimal numbers {@link Type#DOUBLE} and <i>true</i>/<i>false</i>
+ * {@link Type#BOOLEAN}; the scan does not throw, so untyped strings cost no exception. Values of typed node data
+ * (e.g. Integer or Long data handlers) are used as they are.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public final class Value {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Type {
+        LONG, DOUBLE, BOOLEAN, STRING, BYTES
+    }
+
+    private final Type type;
+    private final long longValue;
+    private final double doubleValue;
+    //the string, the byte[] or the source string of a parsed value
+    private final Object object;
+
+    private Value(Type type, long longValue, double doubleValue, Object object) {
+        this.type = type;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.object = object;
+    }
+
+    public static Value of(long value) {
+        return new Value(Type.LONG, value, value, null);
+    }
+
+    public static Value of(double value) {
+        return new Value(Type.DOUBLE, (long) value, value, null);
+    }
+
+    public static Value of(boolean value) {
+        return new Value(Type.BOOLEAN, value ? 1 : 0, value ? 1 : 0, null);
+    }
+
+    public static Value of(byte[] value) {
+        return new Value(Type.BYTES, 0, 0, value);
+    }
+
+    /**
+     * types a bound object: numbers, booleans and byte arrays keep their type, strings are parsed
+     */
+    public static Value of(Object value) {
+        if(value instanceof Value) return (Value) value;
+        if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return of(((Number) value).longValue());
+        }
+        if(value instanceof Double || value instanceof Float) return of(((Number) value).doubleValue());
+        if(value instanceof Boolean) return of(((Boolean) value).booleanValue());
+        if(value instanceof byte[]) return of((byte[]) value);
+        return parse(String.valueOf(value));
+    }
+
+    /**
+     * types a string without exceptions
+     * @param value the string
+     * @return a long, double, boolean or string value
+     */
+    public static Value parse(String value) {
+        int length = value.length();
+        if(length == 0) return new Value(Type.STRING, 0, 0, value);
+
+        char first = value.charAt(0);
+        if(first == 't' || first == 'f') {
+            if(value.equals("true")) return new Value(Type.BOOLEAN, 1, 1, value);
+            if(value.equals("false")) return new Value(Type.BOOLEAN, 0, 0, value);
+            return new Value(Type.STRING, 0, 0, value);
+        }
+
+        //scan an integral number, accumulated negative to cover Long.MIN_VALUE
+        int i = (first == '-' || first == '+') ? 1 : 0;
+        if(i == length) return new Value(Type.STRING, 0, 0, value);
+        long result = 0;
+        boolean overflow = false;
+        int start = i;
+        for(; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if(digit < 0 || digit > 9) break;
+            if(result < (Long.MIN_VALUE + digit) / 10) overflow = true;
+            result = result * 10 - digit;
+        }
+        if(i == length && !overflow) {
+            if(first != '-') {
+                if(result == Long.MIN_VALUE) return parseDecimal(value);
+                result = -result;
+            }
+            return new Value(Type.LONG, result, result, value);
+        }
+        if(i == start && (i == length || value.charAt(i) != '.')) return new Value(Type.STRING, 0, 0, value);
+        return parseDecimal(value);
+    }
+
+    //[sign] digits [. digits] [e [sign] digits], at least one mantissa digit
+    private static Value parseDecimal(String value) {
+        int length = value.length();
+        int i = 0;
+        if(value.charAt(i) == '-' || value.charAt(i) == '+') i++;
+        int digits = 0;
+        while(i < length && isDigit(value.charAt(i))) { i++; digits++; }
+        if(i < length && value.charAt(i) == '.') {
+            i++;
+            while(i < length && isDigit(value.charAt(i))) { i++; digits++; }
+        }
+        if(digits > 0 && i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if(i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) i++;
+            int exponent = 0;
+            while(i < length && isDigit(value.charAt(i))) { i++; exponent++; }
+            if(exponent == 0) digits = 0;
+        }
+        if(digits == 0 || i != length) return new Value(Type.STRING, 0, 0, value);
+        double d = Double.parseDouble(value);
+        return new Value(Type.DOUBLE, (long) d, d, value);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isNumber() {
+        return type == Type.LONG || type == Type.DOUBLE;
+    }
+
+    public long asLong() {
+        return longValue;
+    }
+
+    public double asDouble() {
+        return doubleValue;
+    }
+
+    public boolean asBoolean() {
+        return longValue != 0;
+    }
+
+    public byte[] asBytes() {
+        return type == Type.BYTES ? (byte[]) object : toString().getBytes(UTF8);
+    }
+
+    /**
+     * compares two values: numbers numerically, booleans with false &lt; true and other values by their length
+     * (the way conditions compared strings before)
+     * @return a negative number, zero or a positive number
+     */
+    public static int compare(Value v1, Value v2) {
+        if(v1.isNumber() && v2.isNumber()) {
+            if(v1.type == Type.LONG && v2.type == Type.LONG) {
+                return v1.longValue < v2.longValue ? -1 : (v1.longValue == v2.longValue ? 0 : 1);
+            }
+            return v1.doubleValue < v2.doubleValue ? -1 : (v1.doubleValue == v2.doubleValue ? 0 : 1);
+        }
+        if(v1.type == Type.BOOLEAN && v2.type == Type.BOOLEAN) {
+            return (int) (v1.longValue - v2.longValue);
+        }
+        int l1 = v1.type == Type.BYTES ? ((byte[]) v1.object).length : v1.toString().length();
+        int l2 = v2.type == Type.BYTES ? ((byte[]) v2.object).length : v2.toString().length();
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    /**
+     * @return true if both values are equal; numbers are compared numerically, other values by content
+     */
+    public static boolean isEqual(Value v1, Value v2) {
+        if(v1.isNumber() && v2.isNumber()) return compare(v1, v2) == 0;
+        if(v1.type == Type.BOOLEAN && v2.type == Type.BOOLEAN) return v1.longValue == v2.longValue;
+        if(v1.type == Type.BYTES && v2.type == Type.BYTES) return Arrays.equals((byte[]) v1.object, (byte[]) v2.object);
+        return v1.toString().equals(v2.toString());
+    }
+
+    public String toString() {
+        if(object instanceof String) return (String) object;
+        switch (type) {
+            case LONG: return String.valueOf(longValue);
+            case DOUBLE: return String.valueOf(doubleValue);
+            case BOOLEAN: return String.valueOf(asBoolean());
+            case BYTES: return new String((byte[]) object, UTF8);
+            default: return String.valueOf(object);
+        }
+    }
+}
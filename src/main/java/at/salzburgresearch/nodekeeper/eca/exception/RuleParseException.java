@@ -0,0 +1,33 @@
+package at.salzburgresearch.nodekeeper.eca.exception;
+
+import java.io.IOException;
+
+/**
+ * A rule set that cannot be parsed. The message contains the line and column of the error.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleParseException extends IOException {
+
+    private int line;
+    private int column;
+
+    public RuleParseException(String message, int line, int column) {
+        super(String.format("%s (line %s, column %s)", message, line, column));
+        this.line = line;
+        this.column = column;
+    }
+
+    public RuleParseException(String message, int line, int column, Throwable cause) {
+        this(message, line, column);
+        initCause(cause);
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+}
@@ -0,0 +1,34 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+
+/**
+ * The base of the functions that return an aggregate over the children of the node with the path of the first
+ * parameter (e.g. <i>parentNode</i>). The aggregates are kept up to date by {@link ChildAggregates}, so an evaluation
+ * reads the children only the first time a node is used.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public abstract class ChildAggregateFunction extends Function {
+
+    @Override
+    public Object execute(EvaluationContext context) throws BindingException {
+        if(params.length != 1) throw new BindingException(String.format("function %s needs the path of the parent, found %s parameters", getName(), params.length));
+        String parent = String.valueOf(((Function)params[0]).execute(context));
+        try {
+            Object value = aggregate(ChildAggregates.get(context.getNodeKeeper()).get(parent));
+            return value != null ? value : "";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BindingException(String.format("interrupted while reading the children of %s", parent), e);
+        } catch (NodeKeeperException e) {
+            throw new BindingException(String.format("cannot read the children of %s", parent), e);
+        }
+    }
+
+    /**
+     * @return the value of the aggregate or null if there is none (e.g. the minimum without numeric children)
+     */
+    protected abstract Object aggregate(ChildAggregates.Aggregate aggregate);
+}
@@ -0,0 +1,350 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.NodeListener;
+import at.salzburgresearch.nodekeeper.eca.Value;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Aggregates over the children of nodes (count, sum, min and max of the numeric data) that are kept up to date from the
+ * node events, so reading them costs no zookeeper round trip. A parent is tracked from the first request on: its
+ * children are read once, every later created, updated or deleted child is applied incrementally. Listeners are told
+ * about every change of an aggregate, see {@link ChangeListener}.
+ * <p/>
+ * There is one instance per nodekeeper, it listens to all nodes with one listener, which only accepts the children of
+ * tracked nodes. The listener is added by {@link #get(NodeKeeper)}, also while nodekeeper delivers an event. Users like
+ * the rule handler {@link #acquire(NodeKeeper)} the instance while they need it, the last {@link #release()} removes
+ * the listener and forgets all aggregates.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ChildAggregates {
+
+    private static final Logger log = LoggerFactory.getLogger(ChildAggregates.class);
+
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final Map<NodeKeeper,ChildAggregates> instances = new WeakHashMap<NodeKeeper, ChildAggregates>();
+
+    private static final Comparator<Value> NUMERIC = new Comparator<Value>() {
+        @Override
+        public int compare(Value v1, Value v2) {
+            return Double.compare(v1.asDouble(), v2.asDouble());
+        }
+    };
+
+    /**
+     * is told when an aggregate of a tracked parent changes; called on the event thread of nodekeeper before the other
+     * listeners of the child event
+     */
+    public interface ChangeListener {
+        /**
+         * @param parent the path of the parent
+         * @param child the path of the child whose event changed the aggregate
+         */
+        void aggregateChanged(String parent, String child);
+    }
+
+    /**
+     * the aggregates of the children of one node
+     */
+    public static class Aggregate {
+
+        //the typed data by child path, non numeric data is counted only
+        private final HashMap<String,Value> children = new HashMap<String, Value>();
+        //the numeric values with their number of occurrences, for min and max after deletes
+        private final TreeMap<Value,Integer> numbers = new TreeMap<Value, Integer>(NUMERIC);
+        private long longSum;
+        private double doubleSum;
+        private int doubles;
+        private Number min, max;
+        //the children deleted by events while the children are read, null once they have been read
+        private HashSet<String> deleted;
+
+        public synchronized int getCount() {
+            return children.size();
+        }
+
+        /**
+         * @return the sum of the numeric data, a Long if all numbers are integral
+         */
+        public synchronized Number getSum() {
+            return doubles == 0 ? (Number) longSum : (Number) (longSum + doubleSum);
+        }
+
+        /**
+         * @return the minimum of the numeric data or null if no child has numeric data
+         */
+        public synchronized Number getMin() {
+            return min;
+        }
+
+        /**
+         * @return the maximum of the numeric data or null if no child has numeric data
+         */
+        public synchronized Number getMax() {
+            return max;
+        }
+
+        /**
+         * sets the data of a child
+         * @param onlyNew true if the data is only set if the child is unknown
+         * @return true if an aggregate changed
+         */
+        synchronized boolean put(String child, Value value, boolean onlyNew) {
+            if(onlyNew && (children.containsKey(child) || deleted != null && deleted.contains(child))) return false;
+            if(deleted != null) deleted.remove(child);
+            int count = children.size();
+            Number sum = getSum(), min = this.min, max = this.max;
+            remove(children.put(child, value));
+            if(value.isNumber()) {
+                Integer occurrences = numbers.get(value);
+                numbers.put(value, occurrences == null ? 1 : occurrences + 1);
+                if(value.getType() == Value.Type.LONG) {
+                    longSum += value.asLong();
+                } else {
+                    doubleSum += value.asDouble();
+                    doubles++;
+                }
+            }
+            return updated(count, sum, min, max);
+        }
+
+        /**
+         * removes a child
+         * @return true if an aggregate changed
+         */
+        synchronized boolean remove(String child) {
+            if(deleted != null) deleted.add(child);
+            if(!children.containsKey(child)) return false;
+            int count = children.size();
+            Number sum = getSum(), min = this.min, max = this.max;
+            remove(children.remove(child));
+            return updated(count, sum, min, max);
+        }
+
+        /**
+         * the children have been read, deleted children are not remembered any longer
+         */
+        synchronized void loaded() {
+            deleted = null;
+        }
+
+        private void remove(Value value) {
+            if(value == null || !value.isNumber()) return;
+            Integer count = numbers.get(value);
+            if(count == null) return;
+            if(count == 1) numbers.remove(value);
+            else numbers.put(value, count - 1);
+            if(value.getType() == Value.Type.LONG) {
+                longSum -= value.asLong();
+            } else {
+                doubleSum -= value.asDouble();
+                doubles--;
+            }
+        }
+
+        private boolean updated(int count, Number sum, Number min, Number max) {
+            this.min = numbers.isEmpty() ? null : number(numbers.firstKey());
+            this.max = numbers.isEmpty() ? null : number(numbers.lastKey());
+            return count != children.size() || !sum.equals(getSum()) || !equal(min, this.min) || !equal(max, this.max);
+        }
+
+        private static boolean equal(Number n1, Number n2) {
+            return n1 == null ? n2 == null : n1.equals(n2);
+        }
+
+        private static Number number(Value value) {
+            return value.getType() == Value.Type.LONG ? (Number) value.asLong() : (Number) value.asDouble();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("count=%s, sum=%s, min=%s, max=%s", getCount(), getSum(), min, max);
+        }
+    }
+
+    //weak, the instances are held by a weak map of their nodekeeper
+    private final WeakReference<NodeKeeper> nodeKeeper;
+    private final ConcurrentHashMap<String,Aggregate> aggregates = new ConcurrentHashMap<String, Aggregate>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+    private final Updater updater = new Updater();
+
+    //the number of acquisitions that have not been released, guarded by the instances
+    private int users = 0;
+
+    private ChildAggregates(NodeKeeper nodeKeeper) {
+        this.nodeKeeper = new WeakReference<NodeKeeper>(nodeKeeper);
+    }
+
+    /**
+     * @return the aggregates of the nodekeeper, the listener is added on the first call
+     */
+    public static ChildAggregates get(NodeKeeper nodeKeeper) throws NodeKeeperException {
+        synchronized (instances) {
+            ChildAggregates aggregates = instances.get(nodeKeeper);
+            if(aggregates == null) {
+                aggregates = new ChildAggregates(nodeKeeper);
+                nodeKeeper.addListener(".*", aggregates.updater);
+                instances.put(nodeKeeper, aggregates);
+            }
+            return aggregates;
+        }
+    }
+
+    /**
+     * returns the aggregates of the nodekeeper and keeps them up to date until {@link #release()} is called
+     */
+    public static ChildAggregates acquire(NodeKeeper nodeKeeper) throws NodeKeeperException {
+        synchronized (instances) {
+            ChildAggregates aggregates = get(nodeKeeper);
+            aggregates.users++;
+            return aggregates;
+        }
+    }
+
+    /**
+     * releases an acquisition; the last one removes the listener and forgets all aggregates
+     */
+    public void release() {
+        synchronized (instances) {
+            if(users > 0) users--;
+            if(users > 0) return;
+            NodeKeeper nodeKeeper = this.nodeKeeper.get();
+            if(nodeKeeper != null) {
+                nodeKeeper.removeListener(".*", updater);
+                if(instances.get(nodeKeeper) == this) instances.remove(nodeKeeper);
+            }
+            aggregates.clear();
+        }
+    }
+
+    /**
+     * returns the aggregates of the children of a node; the children are read once when the node is not tracked yet
+     * @param parent the path of the node
+     */
+    public Aggregate get(String parent) throws InterruptedException, NodeKeeperException {
+        Aggregate aggregate = aggregates.get(parent);
+        if(aggregate != null) return aggregate;
+
+        //tracked before the children are read, so no event is missed; events win over the read data, a child that is
+        //deleted while the children are read is not added again
+        aggregate = new Aggregate();
+        aggregate.deleted = new HashSet<String>();
+        Aggregate tracked = aggregates.putIfAbsent(parent, aggregate);
+        if(tracked != null) return tracked;
+        try {
+            for(Node<String> child : nodeKeeper.get().listChildrenNodes(parent, String.class)) {
+                aggregate.put(child.getPath(), Value.parse(child.getData().trim()), true);
+            }
+        } catch (NodeKeeperException e) {
+            //the node does not exist (yet), its children are added by the events
+            log.debug("cannot read the children of {}: {}", parent, e.getMessage());
+        } finally {
+            aggregate.loaded();
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return true if the aggregates of the node are kept up to date
+     */
+    public boolean isTracked(String parent) {
+        return aggregates.containsKey(parent);
+    }
+
+    /**
+     * stops tracking a node
+     */
+    public void untrack(String parent) {
+        aggregates.remove(parent);
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void changed(String parent, String child) {
+        for(ChangeListener listener : listeners) {
+            try {
+                listener.aggregateChanged(parent, child);
+            } catch (RuntimeException e) {
+                log.error(String.format("listener failed on a change of the children of %s", parent), e);
+            }
+        }
+    }
+
+    private static String getParent(String path) {
+        int i = path.lastIndexOf(PATH_SEPARATOR);
+        return i > 0 ? path.substring(0, i) : PATH_SEPARATOR;
+    }
+
+    /**
+     * applies the events of the children of tracked nodes; the data is only read for tracked parents
+     */
+    private class Updater extends NodeListener<byte[]> {
+
+        @Override
+        public boolean accepts(String path) {
+            return !aggregates.isEmpty() && (aggregates.containsKey(getParent(path)) || aggregates.containsKey(path));
+        }
+
+        @Override
+        public void onNodeCreated(Node<byte[]> node) {
+            update(node);
+        }
+
+        @Override
+        public void onNodeUpdated(Node<byte[]> node) {
+            update(node);
+        }
+
+        @Override
+        public void onNodeDeleted(Node<byte[]> node) {
+            if(aggregates.isEmpty()) return;
+            aggregates.remove(node.getPath());
+            String parent = getParent(node.getPath());
+            Aggregate aggregate = aggregates.get(parent);
+            if(aggregate != null && aggregate.remove(node.getPath())) changed(parent, node.getPath());
+        }
+
+        private void update(Node<byte[]> node) {
+            if(aggregates.isEmpty()) return;
+            String parent = getParent(node.getPath());
+            Aggregate aggregate = aggregates.get(parent);
+            if(aggregate == null) return;
+            String data;
+            try {
+                data = (String) nodekeeper.getDataHandler(String.class).parse(node.getData());
+            } catch (IOException e) {
+                log.warn("cannot parse the data of {}, it is counted as not numeric: {}", node.getPath(), e.getMessage());
+                data = "";
+            }
+            if(aggregate.put(node.getPath(), Value.parse(data.trim()), false)) changed(parent, node.getPath());
+        }
+
+        @Override
+        public Class<byte[]> getType() {
+            return byte[].class;
+        }
+    }
+}
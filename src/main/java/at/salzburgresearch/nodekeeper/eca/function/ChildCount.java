@@ -0,0 +1,24 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+/**
+ * ...
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ChildCount extends ChildAggregateFunction {
+
+    @Override
+    protected Object aggregate(ChildAggregates.Aggregate aggregate) {
+        return aggregate.getCount();
+    }
+
+    @Override
+    public String getName() {
+        return "childCount";
+    }
+
+    @Override
+    public String getDescription() {
+        return "the number of children of the node " + ((Function)params[0]).getDescription();
+    }
+}
@@ -0,0 +1,24 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+/**
+ * ...
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ChildMax extends ChildAggregateFunction {
+
+    @Override
+    protected Object aggregate(ChildAggregates.Aggregate aggregate) {
+        return aggregate.getMax();
+    }
+
+    @Override
+    public String getName() {
+        return "childMax";
+    }
+
+    @Override
+    public String getDescription() {
+        return "the maximum of the numeric data of the children of the node " + ((Function)params[0]).getDescription();
+    }
+}
@@ -0,0 +1,73 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A function tree compiled by the {@link FunctionCompiler}. It evaluates the compiled tree and describes itself like
+ * the source function, so signatures, descriptions and the xml form do not change.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class CompiledFunction extends Function {
+
+    private final Function source;
+    private final FunctionCompiler.Evaluator evaluator;
+
+    CompiledFunction(Function source, FunctionCompiler.Evaluator evaluator) {
+        this.source = source;
+        this.evaluator = evaluator;
+        this.params = source.params;
+    }
+
+    @Override
+    public Object execute(EvaluationContext context) throws BindingException {
+        return evaluator.evaluate(context);
+    }
+
+    /**
+     * sends the node reads of the function whose paths only depend on the event, so independent reads of several
+     * functions are resolved concurrently
+     */
+    @Override
+    public void prefetch(EvaluationContext context) {
+        evaluator.prefetch(context);
+    }
+
+    /**
+     * @return true if the function has been folded into a constant
+     */
+    public boolean isConstant() {
+        return evaluator.isConstant();
+    }
+
+    public Function getSource() {
+        return source;
+    }
+
+    @Override
+    public String getSignature() {
+        return source.getSignature();
+    }
+
+    @Override
+    public int getCost() {
+        return evaluator.isConstant() ? 0 : source.getCost();
+    }
+
+    @Override
+    public String getName() {
+        return source.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return source.getDescription();
+    }
+
+    @Override
+    public Element toElement(Document doc) {
+        return source.toElement(doc);
+    }
+}
@@ -1,8 +1,6 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -11,10 +9,10 @@ import at.salzburgresearch.nodekeeper.model.Node;
  */
 public class Concat extends Function {
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
+    public Object execute(EvaluationContext context) throws BindingException {
         StringBuilder b = new StringBuilder();
         for(Object param : params) {
-            b.append(((Function)param).execute(nodeKeeper,current));
+            b.append(((Function)param).execute(context));
         }
         return b.toString();
     }
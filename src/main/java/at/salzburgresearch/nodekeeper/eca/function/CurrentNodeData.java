@@ -1,7 +1,5 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -11,8 +9,8 @@ import at.salzburgresearch.nodekeeper.model.Node;
 public class CurrentNodeData extends Function {
 
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) {
-        return current.getData();
+    public Object execute(EvaluationContext context) {
+        return context.getCurrent().getData();
     }
 
     @Override
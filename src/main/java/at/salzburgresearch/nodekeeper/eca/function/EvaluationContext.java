@@ -0,0 +1,218 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.NodeKeeper;
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.handlers.DataHandler;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The context of one event delivery: the node that triggered the event and a read cache that is shared by all rules
+ * that fire on the event, so a node that is referenced by several rules (or several bindings) is read only once.
+ * The context counts reads and cache hits, which is the number of zookeeper round trips of the event. Functions that
+ * are shared by several rules are evaluated once per context, too.
+ * <p/>
+ * Reads can be prefetched: {@link #prefetch(String, Class)} sends an asynchronous request and returns at once, a later
+ * {@link #readData(String, Class)} of the same node waits for the response. Independent reads that are prefetched
+ * together cost about one round trip. Nothing is prefetched on the zookeeper event thread: it delivers the responses
+ * itself, so it could never receive a response it waits for.
+ * <p/>
+ * A context is used by one thread at a time.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class EvaluationContext {
+
+    //marks a cached read of a node that does not exist
+    private static final Object MISSING = new Object();
+
+    private NodeKeeper nodeKeeper;
+    private Node current;
+
+    private HashMap<Class,HashMap<String,Object>> cache = new HashMap<Class, HashMap<String, Object>>();
+
+    private IdentityHashMap<Function,Object> values = new IdentityHashMap<Function, Object>();
+
+    private int reads = 0;
+    private int cacheHits = 0;
+    private int evaluations = 0;
+    private int sharedEvaluations = 0;
+    private int prefetches = 0;
+
+    public EvaluationContext(NodeKeeper nodeKeeper, Node current) {
+        this.nodeKeeper = nodeKeeper;
+        this.current = current;
+    }
+
+    public NodeKeeper getNodeKeeper() {
+        return nodeKeeper;
+    }
+
+    /**
+     * @return the node that triggered the event
+     */
+    public Node getCurrent() {
+        return current;
+    }
+
+    /**
+     * reads the data of a node; every path and type is read from zookeeper only once per context
+     * @param path the node path
+     * @param clazz the type of the data
+     * @return the data or null if the node does not exist
+     */
+    public Object readData(String path, Class clazz) throws InterruptedException, NodeKeeperException, IOException {
+        HashMap<String,Object> values = cache.get(clazz);
+        if(values == null) {
+            values = new HashMap<String, Object>();
+            cache.put(clazz, values);
+        }
+        Object value = values.get(path);
+        if(value instanceof PendingRead) {
+            reads++;
+            value = ((PendingRead) value).await(clazz);
+            values.put(path, value == null ? MISSING : value);
+            return value;
+        }
+        if(value != null) {
+            cacheHits++;
+            return value == MISSING ? null : value;
+        }
+
+        reads++;
+        Node node = nodeKeeper.readNode(path, clazz);
+        value = node == null ? null : node.getData();
+        values.put(path, value == null ? MISSING : value);
+        return value;
+    }
+
+    /**
+     * sends an asynchronous read of a node, if the node has not been read or prefetched by this context before and the
+     * current thread is not the zookeeper event thread
+     * @param path the node path
+     * @param clazz the type of the data
+     */
+    public void prefetch(String path, Class clazz) {
+        if(nodeKeeper == null || path == null || nodeKeeper.getDataHandler(clazz) == null) return;
+        if(nodeKeeper.isEventThread()) return;
+        HashMap<String,Object> values = cache.get(clazz);
+        if(values == null) {
+            values = new HashMap<String, Object>();
+            cache.put(clazz, values);
+        }
+        if(values.containsKey(path)) return;
+
+        PendingRead read = new PendingRead(path);
+        values.put(path, read);
+        prefetches++;
+        try {
+            nodeKeeper.getZooKeeper().getData(path, false, read, null);
+        } catch (RuntimeException e) {
+            //e.g. an invalid path, the read is repeated synchronously
+            values.remove(path);
+        }
+    }
+
+    /**
+     * evaluates a function once per context; the result (or the binding exception) is returned for every further call
+     * with the same function instance
+     * @param function the function
+     * @return the result of the function
+     * @throws BindingException if the function failed
+     */
+    public Object evaluate(Function function) throws BindingException {
+        Object value = values.get(function);
+        if(value == null && !values.containsKey(function)) {
+            evaluations++;
+            try {
+                value = function.execute(this);
+            } catch (BindingException e) {
+                value = e;
+            }
+            values.put(function, value);
+        } else {
+            sharedEvaluations++;
+        }
+        if(value instanceof BindingException) throw (BindingException) value;
+        return value;
+    }
+
+    /**
+     * @return the number of zookeeper reads of this context
+     */
+    public int getReads() {
+        return reads;
+    }
+
+    /**
+     * @return the number of reads that have been sent asynchronously before they were needed
+     */
+    public int getPrefetches() {
+        return prefetches;
+    }
+
+    /**
+     * @return the number of reads that have been served by the cache
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of function evaluations of this context
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return the number of function evaluations that have been served by a former evaluation of the same function
+     */
+    public int getSharedEvaluations() {
+        return sharedEvaluations;
+    }
+
+    /**
+     * an asynchronous read; the response is parsed by the thread that needs it
+     */
+    private class PendingRead implements AsyncCallback.DataCallback {
+
+        private final String path;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile int rc;
+        private volatile byte[] data;
+
+        private PendingRead(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            this.rc = rc;
+            this.data = data;
+            done.countDown();
+        }
+
+        private Object await(Class clazz) throws InterruptedException, NodeKeeperException, IOException {
+            boolean received = done.await(nodeKeeper.getZooKeeper().getSessionTimeout(), TimeUnit.MILLISECONDS);
+            if(received && rc == KeeperException.Code.NONODE.intValue()) return null;
+            if(!received || rc != KeeperException.Code.OK.intValue()) {
+                //e.g. a connection loss or no response, the synchronous read reports the error
+                Node node = nodeKeeper.readNode(path, clazz);
+                return node == null ? null : node.getData();
+            }
+            DataHandler handler = nodeKeeper.getDataHandler(clazz);
+            return handler.parse(data);
+        }
+    }
+}
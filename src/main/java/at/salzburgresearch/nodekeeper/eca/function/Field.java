@@ -0,0 +1,153 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.model.JsonDocument;
+import at.salzburgresearch.nodekeeper.model.Node;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The value of a field of a JSON document, e.g. <i>status.health</i>. The first parameter is the field path, the
+ * optional second parameter the path of the node to read; by default the field is read from the current node. The
+ * document is scanned lazily, see {@link JsonDocument}. If the data of the current node is not decoded as document
+ * (the event type is not {@link JsonDocument}), the document and its field index are cached per node version, so the
+ * rules on one version share one scan.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class Field extends Function {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_DOCUMENTS = 1024;
+
+    //the documents by node path, an entry is valid for the version and data it was created for
+    private static final Map<String,CachedDocument> documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+            return size() > MAX_DOCUMENTS;
+        }
+    };
+
+    private static class CachedDocument {
+
+        final int version;
+        final Object data;
+        final JsonDocument document;
+
+        CachedDocument(int version, Object data, JsonDocument document) {
+            this.version = version;
+            this.data = data;
+            this.document = document;
+        }
+
+        //the version of a recreated node starts again, so the data is compared as well (identical on a hit)
+        boolean isValid(int version, Object data) {
+            if(this.version != version) return false;
+            if(data instanceof byte[] && this.data instanceof byte[]) return Arrays.equals((byte[]) data, (byte[]) this.data);
+            return data.equals(this.data);
+        }
+    }
+
+    //the last field and its path, fields are constant in almost all rules
+    private String field;
+    private String[] path;
+
+    @Override
+    public Object execute(EvaluationContext context) throws BindingException {
+        if(params.length < 1 || params.length > 2) throw new BindingException(String.format("function field needs a field and optionally a node path, found %s parameters", params.length));
+        String field = String.valueOf(((Function)params[0]).execute(context));
+        String[] path = split(field);
+
+        JsonDocument document;
+        String node;
+        if(params.length == 2) {
+            node = String.valueOf(((Function)params[1]).execute(context));
+            try {
+                document = (JsonDocument) context.readData(node, JsonDocument.class);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BindingException(String.format("interrupted while reading node %s", node), e);
+            } catch (NodeKeeperException e) {
+                throw new BindingException(String.format("cannot read node %s", node), e);
+            } catch (IOException e) {
+                throw new BindingException(String.format("cannot read node %s", node), e);
+            }
+            if(document == null) throw new BindingException(String.format("node %s does not exist", node));
+        } else {
+            node = context.getCurrent().getPath();
+            document = document(context.getCurrent());
+            if(document == null) throw new BindingException(String.format("node %s has no data", node));
+        }
+
+        try {
+            Object value = document.get(path);
+            if(value == null && !document.contains(path)) {
+                throw new BindingException(String.format("field %s is not set in node %s", field, node));
+            }
+            return value != null ? value : "";
+        } catch (IllegalArgumentException e) {
+            throw new BindingException(String.format("cannot read field %s of node %s: %s", field, node, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public void prefetch(EvaluationContext context) {
+        if(params.length != 2) return;
+        try {
+            context.prefetch(String.valueOf(((Function)params[1]).execute(context)), JsonDocument.class);
+        } catch (BindingException e) {
+            //the read fails when the binding is evaluated
+        }
+    }
+
+    private synchronized String[] split(String field) {
+        if(!field.equals(this.field)) {
+            this.path = JsonDocument.split(field);
+            this.field = field;
+        }
+        return path;
+    }
+
+    private static JsonDocument document(Node current) {
+        Object data = current.getData();
+        if(data == null) return null;
+        if(data instanceof JsonDocument) return (JsonDocument) data;
+        if(current.getVersion() < 0) return new JsonDocument(bytes(data));
+
+        synchronized (documents) {
+            CachedDocument cached = documents.get(current.getPath());
+            if(cached != null && cached.isValid(current.getVersion(), data)) return cached.document;
+        }
+        JsonDocument document = new JsonDocument(bytes(data));
+        synchronized (documents) {
+            documents.put(current.getPath(), new CachedDocument(current.getVersion(), data, document));
+        }
+        return document;
+    }
+
+    private static byte[] bytes(Object data) {
+        return data instanceof byte[] ? (byte[]) data : String.valueOf(data).getBytes(UTF8);
+    }
+
+    @Override
+    public String getName() {
+        return "field";
+    }
+
+    @Override
+    public int getCost() {
+        return params.length == 2 ? super.getCost() + READ_COST : super.getCost();
+    }
+
+    @Override
+    public String getDescription() {
+        return "the field " + ((Function)params[0]).getDescription() + " of the json data of "
+                + (params.length == 2 ? "the node having the path " + ((Function)params[1]).getDescription() : "the current node");
+    }
+}
@@ -13,12 +13,67 @@ import org.w3c.dom.Element;
  */
 public abstract class Function {
 
+    /**
+     * the estimated cost of a function that works on the event only
+     */
+    public static final int LOCAL_COST = 1;
+
+    /**
+     * the estimated cost of a function that reads a node from zookeeper
+     */
+    public static final int READ_COST = 100;
+
     public Object[] params = new Object[0];
 
     public void init(Object... params) {
         this.params = params;
     }
-    public abstract Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException;
+
+    /**
+     * evaluates the function for a node outside of an event delivery, in a context of its own
+     */
+    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
+        return execute(new EvaluationContext(nodeKeeper, current));
+    }
+
+    /**
+     * evaluates the function within an event delivery. Functions that read nodes read via
+     * {@link EvaluationContext#readData(String, Class)}, so the reads are shared by all rules that fire on the event.
+     */
+    public abstract Object execute(EvaluationContext context) throws BindingException;
+
+    /**
+     * sends the node reads the function will need asynchronously via {@link EvaluationContext#prefetch(String, Class)},
+     * before it is evaluated. The default does nothing.
+     */
+    public void prefetch(EvaluationContext context) {
+    }
+
+    /**
+     * returns a structural key of the function tree. Functions with the same signature return the same value for the
+     * same event, so rules can share the evaluation.
+     */
+    public String getSignature() {
+        StringBuilder b = new StringBuilder(getName()).append('(');
+        for(int i = 0; i < params.length; i++) {
+            if(i > 0) b.append(',');
+            b.append(((Function)params[i]).getSignature());
+        }
+        return b.append(')').toString();
+    }
+
+    /**
+     * estimates the cost of an evaluation, used to order conditions cheapest first
+     * @return the cost of the function tree, {@link #LOCAL_COST} per function and {@link #READ_COST} per node read
+     */
+    public int getCost() {
+        int cost = LOCAL_COST;
+        for(Object param : params) {
+            cost += ((Function)param).getCost();
+        }
+        return cost;
+    }
+
     public abstract String getName();
 
     public abstract String getDescription();
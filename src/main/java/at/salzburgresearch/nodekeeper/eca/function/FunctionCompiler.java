@@ -0,0 +1,486 @@
+package at.salzburgresearch.nodekeeper.eca.function;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a function tree into a tree of specialized evaluators, which is done once when a rule is activated. The
+ * evaluators call each other directly without casting parameters, subtrees that do not depend on the event are folded
+ * into constants, nested concatenations are fused into one string builder and path functions append substrings of the
+ * node path without creating intermediate strings. Functions that are not known by the compiler are interpreted.
+ * <p/>
+ * Node reads whose path only depends on the event can be prefetched, see {@link CompiledFunction#prefetch}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class FunctionCompiler {
+
+    private static final Logger log = LoggerFactory.getLogger(FunctionCompiler.class);
+
+    /**
+     * @param function the function tree
+     * @return a function that evaluates the compiled tree and describes itself like the source
+     */
+    public static Function compile(Function function) {
+        if(function instanceof CompiledFunction) return function;
+        return new CompiledFunction(function, compileEvaluator(function));
+    }
+
+    static Evaluator compileEvaluator(Function function) {
+        Class clazz = function.getClass();
+        Object[] params = function.params;
+
+        if(clazz == StaticValueFunction.class) return new Constant(params[0]);
+        if(clazz == CurrentNodeData.class) return new CurrentData();
+        if(clazz == CurrentNodeLabel.class) return new Label();
+        if(clazz == Parent.class) return new ParentPath();
+
+        Evaluator[] children = new Evaluator[params.length];
+        for(int i = 0; i < params.length; i++) {
+            children[i] = compileEvaluator((Function) params[i]);
+        }
+
+        Evaluator evaluator = null;
+        if(clazz == Concat.class) evaluator = concat(children);
+        else if(clazz == ToUpperCase.class && children.length == 1) evaluator = new UpperCase(children[0]);
+        else if(clazz == SearchReplace.class && children.length > 0) evaluator = new Replace(children);
+        else if(clazz == OrFunction.class) evaluator = new Or(children);
+        else if(clazz == PathNode.class && children.length == 1 && children[0].isConstant()) evaluator = pathNode(children[0]);
+        else if(clazz == NodeData.class && (children.length == 1 || children.length == 2 && children[1].isConstant())) evaluator = nodeData(children);
+
+        if(evaluator == null) return new Interpreted(function);
+        return fold(evaluator, children);
+    }
+
+    //evaluates event independent functions with constant parameters once
+    private static Evaluator fold(Evaluator evaluator, Evaluator[] children) {
+        if(evaluator.isConstant() || !evaluator.isPure()) return evaluator;
+        for(Evaluator child : children) {
+            if(!child.isConstant()) return evaluator;
+        }
+        try {
+            return new Constant(evaluator.evaluate(null));
+        } catch (BindingException e) {
+            return evaluator;
+        } catch (RuntimeException e) {
+            return evaluator;
+        }
+    }
+
+    private static Evaluator concat(Evaluator[] children) {
+        //flatten nested concatenations and merge adjacent constants
+        List<Evaluator> parts = new ArrayList<Evaluator>();
+        StringBuilder constant = null;
+        for(Evaluator child : flatten(children, new ArrayList<Evaluator>())) {
+            if(child.isConstant()) {
+                if(constant == null) constant = new StringBuilder();
+                constant.append(((Constant) child).value);
+            } else {
+                if(constant != null) parts.add(new Constant(constant.toString()));
+                constant = null;
+                parts.add(child);
+            }
+        }
+        if(constant != null) parts.add(new Constant(constant.toString()));
+        if(parts.isEmpty()) return new Constant("");
+        if(parts.size() == 1 && parts.get(0).isConstant()) return parts.get(0);
+        return new Concatenation(parts.toArray(new Evaluator[parts.size()]));
+    }
+
+    private static List<Evaluator> flatten(Evaluator[] children, List<Evaluator> result) {
+        for(Evaluator child : children) {
+            if(child instanceof Concatenation) flatten(((Concatenation) child).parts, result);
+            else result.add(child);
+        }
+        return result;
+    }
+
+    private static Evaluator pathNode(Evaluator slot) {
+        try {
+            int index = Integer.parseInt((String) slot.evaluate(null));
+            return index < 0 ? null : new Segment(index);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Evaluator nodeData(Evaluator[] children) {
+        Class clazz = String.class;
+        if(children.length == 2) {
+            try {
+                clazz = Class.forName((String) children[1].evaluate(null));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return new Data(children[0], clazz);
+    }
+
+    /**
+     * A compiled function node.
+     */
+    static abstract class Evaluator {
+
+        abstract Object evaluate(EvaluationContext context) throws BindingException;
+
+        /**
+         * appends the value, evaluators that produce substrings override it to avoid intermediate strings
+         */
+        void appendTo(StringBuilder b, EvaluationContext context) throws BindingException {
+            b.append(evaluate(context));
+        }
+
+        boolean isConstant() {
+            return false;
+        }
+
+        /**
+         * @return true if the result only depends on the parameters, not on the event
+         */
+        boolean isPure() {
+            return false;
+        }
+
+        /**
+         * @return true if the result only depends on the event and does not read nodes
+         */
+        boolean isLocal() {
+            for(Evaluator child : getChildren()) {
+                if(!child.isLocal()) return false;
+            }
+            return isPure();
+        }
+
+        Evaluator[] getChildren() {
+            return NO_CHILDREN;
+        }
+
+        /**
+         * sends the node reads of the subtree whose paths are known
+         */
+        void prefetch(EvaluationContext context) {
+            for(Evaluator child : getChildren()) {
+                child.prefetch(context);
+            }
+        }
+    }
+
+    private static final Evaluator[] NO_CHILDREN = new Evaluator[0];
+
+    static class Constant extends Evaluator {
+
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) {
+            return value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        boolean isLocal() {
+            return true;
+        }
+    }
+
+    static class Interpreted extends Evaluator {
+
+        private final Function function;
+
+        Interpreted(Function function) {
+            this.function = function;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            return function.execute(context);
+        }
+
+        @Override
+        void prefetch(EvaluationContext context) {
+            function.prefetch(context);
+        }
+    }
+
+    static class CurrentData extends Evaluator {
+        @Override
+        boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) {
+            return context.getCurrent().getData();
+        }
+    }
+
+    static class Label extends Evaluator {
+        @Override
+        boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        void appendTo(StringBuilder b, EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            b.append(path, path.lastIndexOf('/') + 1, path.length());
+        }
+    }
+
+    static class ParentPath extends Evaluator {
+        @Override
+        boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            return path.substring(0, path.lastIndexOf('/'));
+        }
+
+        @Override
+        void appendTo(StringBuilder b, EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            b.append(path, 0, path.lastIndexOf('/'));
+        }
+    }
+
+    /**
+     * the path segment with the given index, like path.split("/")[index] or "" if there is no such segment
+     */
+    static class Segment extends Evaluator {
+
+        private final int index;
+
+        Segment(int index) {
+            this.index = index;
+        }
+
+        @Override
+        boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            int start = start(path);
+            return start < 0 ? "" : path.substring(start, end(path, start));
+        }
+
+        @Override
+        void appendTo(StringBuilder b, EvaluationContext context) {
+            String path = context.getCurrent().getPath();
+            int start = start(path);
+            if(start >= 0) b.append(path, start, end(path, start));
+        }
+
+        private int start(String path) {
+            int start = 0;
+            for(int i = 0; i < index; i++) {
+                int separator = path.indexOf('/', start);
+                if(separator < 0) return -1;
+                start = separator + 1;
+            }
+            return start;
+        }
+
+        private int end(String path, int start) {
+            int end = path.indexOf('/', start);
+            return end < 0 ? path.length() : end;
+        }
+    }
+
+    static class Concatenation extends Evaluator {
+
+        private final Evaluator[] parts;
+
+        Concatenation(Evaluator[] parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        Evaluator[] getChildren() {
+            return parts;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            StringBuilder b = new StringBuilder();
+            appendTo(b, context);
+            return b.toString();
+        }
+
+        @Override
+        void appendTo(StringBuilder b, EvaluationContext context) throws BindingException {
+            for(Evaluator part : parts) {
+                part.appendTo(b, context);
+            }
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    static class UpperCase extends Evaluator {
+
+        private final Evaluator value;
+
+        UpperCase(Evaluator value) {
+            this.value = value;
+        }
+
+        @Override
+        Evaluator[] getChildren() {
+            return new Evaluator[]{value};
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            return ((String) value.evaluate(context)).toUpperCase();
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    static class Replace extends Evaluator {
+
+        private final Evaluator[] children;
+        private final Evaluator data;
+        private final Evaluator[] values;
+        //the placeholder patterns {1}, {2}, ... compiled once
+        private final Pattern[] patterns;
+
+        Replace(Evaluator[] children) {
+            this.children = children;
+            this.data = children[0];
+            this.values = new Evaluator[children.length - 1];
+            this.patterns = new Pattern[children.length - 1];
+            for(int i = 1; i < children.length; i++) {
+                values[i - 1] = children[i];
+                patterns[i - 1] = Pattern.compile("\\{" + i + "\\}");
+            }
+        }
+
+        @Override
+        Evaluator[] getChildren() {
+            return children;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            String result = (String) data.evaluate(context);
+            if(result == null) {
+                throw new BindingException(String.format("missing Node '%s'! return empty String",
+                        context != null && context.getCurrent() != null ? context.getCurrent().getPath() : null));
+            }
+            for(int i = 0; i < values.length; i++) {
+                result = patterns[i].matcher(result).replaceAll((String) values[i].evaluate(context));
+            }
+            return result;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    static class Or extends Evaluator {
+
+        private final Evaluator[] values;
+
+        Or(Evaluator[] values) {
+            this.values = values;
+        }
+
+        @Override
+        Evaluator[] getChildren() {
+            return values;
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            for(Evaluator evaluator : values) {
+                Object value = evaluator.evaluate(context);
+                if(value != null) return value;
+            }
+            return null;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    static class Data extends Evaluator {
+
+        private final Evaluator path;
+        private final Class clazz;
+
+        Data(Evaluator path, Class clazz) {
+            this.path = path;
+            this.clazz = clazz;
+        }
+
+        @Override
+        void prefetch(EvaluationContext context) {
+            if(!path.isLocal()) {
+                //the path depends on another read, which may be prefetched itself
+                path.prefetch(context);
+                return;
+            }
+            try {
+                context.prefetch((String) path.evaluate(context), clazz);
+            } catch (BindingException e) {
+                //the read fails when the binding is evaluated
+            } catch (RuntimeException e) {
+                //e.g. a path function of a deleted node
+            }
+        }
+
+        @Override
+        Object evaluate(EvaluationContext context) throws BindingException {
+            String p = (String) path.evaluate(context);
+            try {
+                return context.readData(p, clazz);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn(String.format("interrupted while reading %s", p), e);
+            } catch (NodeKeeperException e) {
+                log.warn(String.format("cannot read %s", p), e);
+            } catch (IOException e) {
+                log.warn(String.format("cannot read %s", p), e);
+            }
+            return "";
+        }
+    }
+}
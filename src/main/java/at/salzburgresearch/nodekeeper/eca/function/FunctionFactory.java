@@ -21,6 +21,11 @@ public class FunctionFactory {
         put("concat",Concat.class);
         put("parentNode",Parent.class);
         put("or",OrFunction.class);
+        put("childCount",ChildCount.class);
+        put("childSum",ChildSum.class);
+        put("childMin",ChildMin.class);
+        put("childMax",ChildMax.class);
+        put("field",Field.class);
     }};
 
     public static Function createFunction(String clazzname, Object... args) {
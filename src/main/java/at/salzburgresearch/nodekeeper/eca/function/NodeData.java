@@ -1,9 +1,7 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 import java.io.IOException;
 
@@ -14,11 +12,10 @@ import java.io.IOException;
  */
 public class NodeData extends Function {
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
+    public Object execute(EvaluationContext context) throws BindingException {
         try {
-            Class clazz = params.length == 2 ? Class.forName((String)((Function)params[0]).execute(nodeKeeper,current)) : String.class;
-            Node node = nodeKeeper.readNode((String)((Function)params[0]).execute(nodeKeeper,current),clazz);
-            return node == null ? null : node.getData();
+            Class clazz = params.length == 2 ? Class.forName((String)((Function)params[1]).execute(context)) : String.class;
+            return context.readData((String)((Function)params[0]).execute(context),clazz);
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -32,6 +29,11 @@ public class NodeData extends Function {
         return "";
     }
 
+    @Override
+    public int getCost() {
+        return super.getCost() - LOCAL_COST + READ_COST;
+    }
+
     @Override
     public String getName() {
         return "nodeData";
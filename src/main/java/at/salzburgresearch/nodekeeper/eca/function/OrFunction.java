@@ -1,8 +1,6 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -12,9 +10,9 @@ import at.salzburgresearch.nodekeeper.model.Node;
 public class OrFunction extends Function {
 
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
+    public Object execute(EvaluationContext context) throws BindingException {
         for(Object param : params) {
-            Object value = ((Function)param).execute(nodeKeeper,current);
+            Object value = ((Function)param).execute(context);
             if(value != null) return value;
         }
         return null;
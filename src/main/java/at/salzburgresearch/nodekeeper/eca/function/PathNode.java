@@ -1,8 +1,6 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -11,11 +9,18 @@ import at.salzburgresearch.nodekeeper.model.Node;
  */
 public class PathNode extends Function {
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
-        String[] path = current.getPath().split("/");
-        int slot = Integer.parseInt(((String)((Function)params[0]).execute(nodeKeeper,current)));
-        if(slot < path.length) return path[slot];
-        return "";
+    public Object execute(EvaluationContext context) throws BindingException {
+        String path = context.getCurrent().getPath();
+        int slot = Integer.parseInt(((String)((Function)params[0]).execute(context)));
+        //scans to the segment instead of splitting the path
+        int start = 0;
+        for(int i = 0; i < slot; i++) {
+            start = path.indexOf('/', start);
+            if(start < 0) return "";
+            start++;
+        }
+        int end = path.indexOf('/', start);
+        return path.substring(start, end < 0 ? path.length() : end);
     }
 
     @Override
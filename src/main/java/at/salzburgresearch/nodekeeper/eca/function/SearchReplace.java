@@ -4,8 +4,6 @@ import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -17,16 +15,16 @@ public class SearchReplace extends Function {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
+    public Object execute(EvaluationContext context) throws BindingException {
         //first param is the string where values should be replaced
-        String data = (String)((Function)params[0]).execute(nodeKeeper,current);
+        String data = (String)((Function)params[0]).execute(context);
         if(data != null){
             for(int i = 1; i < params.length; i++) {
-                String value = (String)((Function)params[i]).execute(nodeKeeper,current);
+                String value = (String)((Function)params[i]).execute(context);
                 data = data.replaceAll("\\{"+i+"\\}",value);
             }
         } else {
-            throw new BindingException(String.format("missing Node '%s'! return empty String", current != null ? current.getPath() : current));
+            throw new BindingException(String.format("missing Node '%s'! return empty String", context.getCurrent() != null ? context.getCurrent().getPath() : null));
         }
         return data;
     }
@@ -1,7 +1,5 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
-import at.salzburgresearch.nodekeeper.model.Node;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -12,7 +10,7 @@ import org.w3c.dom.Element;
  */
 public class StaticValueFunction extends Function {
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) {
+    public Object execute(EvaluationContext context) {
         return params[0];
     }
 
@@ -21,6 +19,16 @@ public class StaticValueFunction extends Function {
         return "staticValue";
     }
 
+    @Override
+    public int getCost() {
+        return 0;
+    }
+
+    @Override
+    public String getSignature() {
+        return "'" + String.valueOf(params[0]).replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
     @Override
     public String getDescription() {
         return "'"+(String)params[0]+"'";
@@ -1,8 +1,6 @@
 package at.salzburgresearch.nodekeeper.eca.function;
 
-import at.salzburgresearch.nodekeeper.NodeKeeper;
 import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
-import at.salzburgresearch.nodekeeper.model.Node;
 
 /**
  * ...
@@ -12,8 +10,8 @@ import at.salzburgresearch.nodekeeper.model.Node;
 public class ToUpperCase extends Function {
 
     @Override
-    public Object execute(NodeKeeper nodeKeeper, Node current) throws BindingException {
-        return ((String)((Function)params[0]).execute(nodeKeeper,current)).toUpperCase();
+    public Object execute(EvaluationContext context) throws BindingException {
+        return ((String)((Function)params[0]).execute(context)).toUpperCase();
     }
 
     @Override
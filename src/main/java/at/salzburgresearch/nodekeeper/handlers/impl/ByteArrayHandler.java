@@ -0,0 +1,28 @@
+package at.salzburgresearch.nodekeeper.handlers.impl;
+
+import at.salzburgresearch.nodekeeper.handlers.DataHandler;
+
+/**
+ * A handler for raw byte[] data. The data is passed through as it is stored in zookeeper.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ByteArrayHandler implements DataHandler<byte[]> {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    @Override
+    public byte[] parse(byte[] data) {
+        return data == null ? EMPTY : data;
+    }
+
+    @Override
+    public byte[] serialize(byte[] data) {
+        return data == null ? EMPTY : data;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return byte[].class;
+    }
+}
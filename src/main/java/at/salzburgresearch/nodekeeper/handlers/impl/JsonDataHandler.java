@@ -0,0 +1,28 @@
+package at.salzburgresearch.nodekeeper.handlers.impl;
+
+import at.salzburgresearch.nodekeeper.handlers.DataHandler;
+import at.salzburgresearch.nodekeeper.model.JsonDocument;
+
+/**
+ * A handler for JSON data. Parsing only wraps the bytes, the fields are scanned when they are read, see
+ * {@link JsonDocument}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class JsonDataHandler implements DataHandler<JsonDocument> {
+
+    @Override
+    public JsonDocument parse(byte[] data) {
+        return new JsonDocument(data);
+    }
+
+    @Override
+    public byte[] serialize(JsonDocument data) {
+        return data.getBytes();
+    }
+
+    @Override
+    public Class<?> getType() {
+        return JsonDocument.class;
+    }
+}
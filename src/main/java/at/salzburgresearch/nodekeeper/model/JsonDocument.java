@@ -0,0 +1,294 @@
+package at.salzburgresearch.nodekeeper.model;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The data of a node as JSON document that is not decoded as a whole. A field like <i>status.health</i> (array elements
+ * are addressed by their index, e.g. <i>items.0.name</i>) is found by scanning the bytes; only the objects and arrays on
+ * the way are scanned, each of them once: the offsets of their members are indexed on the first access, so later
+ * lookups in the same document are hash lookups. Only the value that is returned is decoded.
+ * <p/>
+ * A document belongs to one version of a node, so the index never has to be invalidated. Malformed JSON is detected
+ * when the malformed part is scanned and reported with an {@link IllegalArgumentException}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class JsonDocument {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+
+    //the offsets of the member values by object offset and of the elements by array offset
+    private final HashMap<Integer,HashMap<String,Integer>> objects = new HashMap<Integer, HashMap<String, Integer>>();
+    private final HashMap<Integer,int[]> arrays = new HashMap<Integer, int[]>();
+
+    public JsonDocument(byte[] data) {
+        this.data = data != null ? data : new byte[0];
+    }
+
+    public JsonDocument(String json) {
+        this(json.getBytes(UTF8));
+    }
+
+    /**
+     * @return the raw bytes of the document
+     */
+    public byte[] getBytes() {
+        return data;
+    }
+
+    /**
+     * returns the value of a field, decoded to a String, Long, Double or Boolean; objects and arrays are returned as
+     * JSON text
+     * @param field the field path, e.g. <i>status.health</i>
+     * @return the value or null if the field is null or does not exist
+     */
+    public Object get(String field) {
+        return get(split(field));
+    }
+
+    /**
+     * @param path the field path split at the dots
+     */
+    public synchronized Object get(String... path) {
+        int offset = find(path);
+        return offset < 0 ? null : decode(offset);
+    }
+
+    /**
+     * @return true if the field exists, its value may be null
+     */
+    public boolean contains(String field) {
+        return contains(split(field));
+    }
+
+    public synchronized boolean contains(String... path) {
+        return find(path) >= 0;
+    }
+
+    /**
+     * splits a field path at the dots
+     */
+    public static String[] split(String field) {
+        List<String> path = new ArrayList<String>();
+        int start = 0;
+        int dot;
+        while((dot = field.indexOf('.', start)) >= 0) {
+            path.add(field.substring(start, dot));
+            start = dot + 1;
+        }
+        path.add(field.substring(start));
+        return path.toArray(new String[path.size()]);
+    }
+
+    //the offset of the value or -1
+    private int find(String[] path) {
+        int offset = skipWhitespace(0);
+        if(offset >= data.length) return -1;
+        for(String name : path) {
+            switch (data[offset]) {
+                case '{':
+                    Integer member = members(offset).get(name);
+                    if(member == null) return -1;
+                    offset = member;
+                    break;
+                case '[':
+                    int[] elements = elements(offset);
+                    int index;
+                    try {
+                        index = Integer.parseInt(name);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                    if(index < 0 || index >= elements.length) return -1;
+                    offset = elements[index];
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return offset;
+    }
+
+    private HashMap<String,Integer> members(int offset) {
+        HashMap<String,Integer> members = objects.get(offset);
+        if(members != null) return members;
+
+        members = new HashMap<String, Integer>();
+        int i = skipWhitespace(offset + 1);
+        if(i < data.length && data[i] == '}') {
+            objects.put(offset, members);
+            return members;
+        }
+        while(true) {
+            if(i >= data.length || data[i] != '"') throw malformed(i, "a member name");
+            int end = skipString(i);
+            String name = decodeString(i, end);
+            i = skipWhitespace(end);
+            if(i >= data.length || data[i] != ':') throw malformed(i, "':'");
+            i = skipWhitespace(i + 1);
+            //the first occurrence of a duplicate name wins
+            if(!members.containsKey(name)) members.put(name, i);
+            i = skipWhitespace(skipValue(i));
+            if(i < data.length && data[i] == ',') {
+                i = skipWhitespace(i + 1);
+            } else if(i < data.length && data[i] == '}') {
+                break;
+            } else {
+                throw malformed(i, "',' or '}'");
+            }
+        }
+        objects.put(offset, members);
+        return members;
+    }
+
+    private int[] elements(int offset) {
+        int[] elements = arrays.get(offset);
+        if(elements != null) return elements;
+
+        List<Integer> offsets = new ArrayList<Integer>();
+        int i = skipWhitespace(offset + 1);
+        if(i >= data.length || data[i] != ']') {
+            while(true) {
+                offsets.add(i);
+                i = skipWhitespace(skipValue(i));
+                if(i < data.length && data[i] == ',') {
+                    i = skipWhitespace(i + 1);
+                } else if(i < data.length && data[i] == ']') {
+                    break;
+                } else {
+                    throw malformed(i, "',' or ']'");
+                }
+            }
+        }
+        elements = new int[offsets.size()];
+        for(int j = 0; j < elements.length; j++) {
+            elements[j] = offsets.get(j);
+        }
+        arrays.put(offset, elements);
+        return elements;
+    }
+
+    private Object decode(int offset) {
+        int end = skipValue(offset);
+        switch (data[offset]) {
+            case '"': return decodeString(offset, end);
+            case '{':
+            case '[': return new String(data, offset, end - offset, UTF8);
+            case 't': return Boolean.TRUE;
+            case 'f': return Boolean.FALSE;
+            case 'n': return null;
+            default:
+                String number = new String(data, offset, end - offset, UTF8);
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    try {
+                        return Double.parseDouble(number);
+                    } catch (NumberFormatException e2) {
+                        throw malformed(offset, "a value");
+                    }
+                }
+        }
+    }
+
+    //decodes the string between the quotes at start and end - 1
+    private String decodeString(int start, int end) {
+        int i = start + 1;
+        int last = end - 1;
+        //no escapes, the common case
+        int escape = i;
+        while(escape < last && data[escape] != '\\') escape++;
+        if(escape == last) return new String(data, i, last - i, UTF8);
+
+        StringBuilder b = new StringBuilder(new String(data, i, escape - i, UTF8));
+        i = escape;
+        while(i < last) {
+            int next = i;
+            while(next < last && data[next] != '\\') next++;
+            b.append(new String(data, i, next - i, UTF8));
+            if(next == last) break;
+            char c = (char) data[next + 1];
+            switch (c) {
+                case 'b': b.append('\b'); break;
+                case 'f': b.append('\f'); break;
+                case 'n': b.append('\n'); break;
+                case 'r': b.append('\r'); break;
+                case 't': b.append('\t'); break;
+                case 'u':
+                    if(next + 6 > last) throw malformed(next, "a unicode escape");
+                    try {
+                        b.append((char) Integer.parseInt(new String(data, next + 2, 4, UTF8), 16));
+                    } catch (NumberFormatException e) {
+                        throw malformed(next, "a unicode escape");
+                    }
+                    i = next + 6;
+                    continue;
+                default: b.append(c);
+            }
+            i = next + 2;
+        }
+        return b.toString();
+    }
+
+    //the offset after the value that starts at offset
+    private int skipValue(int offset) {
+        if(offset >= data.length) throw malformed(offset, "a value");
+        switch (data[offset]) {
+            case '"': return skipString(offset);
+            case '{':
+            case '[':
+                int depth = 0;
+                int i = offset;
+                while(i < data.length) {
+                    switch (data[i]) {
+                        case '"': i = skipString(i); continue;
+                        case '{':
+                        case '[': depth++; break;
+                        case '}':
+                        case ']': if(--depth == 0) return i + 1; break;
+                    }
+                    i++;
+                }
+                throw malformed(i, "the end of " + (data[offset] == '{' ? "an object" : "an array"));
+            default:
+                int end = offset;
+                while(end < data.length && data[end] != ',' && data[end] != '}' && data[end] != ']' && !isWhitespace(data[end])) end++;
+                if(end == offset) throw malformed(offset, "a value");
+                return end;
+        }
+    }
+
+    //the offset after the closing quote of the string that starts at offset
+    private int skipString(int offset) {
+        int i = offset + 1;
+        while(i < data.length) {
+            if(data[i] == '\\') i += 2;
+            else if(data[i] == '"') return i + 1;
+            else i++;
+        }
+        throw malformed(offset, "the end of a string");
+    }
+
+    private int skipWhitespace(int offset) {
+        while(offset < data.length && isWhitespace(data[offset])) offset++;
+        return offset;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private IllegalArgumentException malformed(int offset, String expected) {
+        return new IllegalArgumentException(String.format("malformed json, expected %s at offset %s", expected, offset));
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, UTF8);
+    }
+}
@@ -0,0 +1,226 @@
+package at.salzburgresearch.nodekeeper.timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timing wheel for a large number of pending timers (e.g. node TTLs). Time is divided into ticks; the
+ * wheel has several levels of 64 slots, a timer is put into the slot of the level in which its tick first differs from
+ * the current tick. Scheduling and cancelling are O(1); when the current tick crosses the boundary of a higher level
+ * slot, its timers are moved to the lower levels. Expired timers are run on the thread of the wheel, so they should
+ * hand off blocking work.
+ * <p/>
+ * Deadlines are wall clock times (milliseconds since the epoch), so timers can be derived from persisted times such as
+ * the modification time of a node.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TimingWheel {
+
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 7;
+    //the farthest tick from the current tick a timer can be put into directly
+    private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+    /**
+     * a scheduled task
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long tick;
+
+        //the slot list the timer is in, null if it is not scheduled anymore
+        private Timeout prev, next;
+        private Timeout[] slot;
+        private int index;
+        private volatile boolean expired;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the deadline in milliseconds since the epoch
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    private final long tickMillis;
+    private final long start = System.currentTimeMillis();
+
+    //the heads of the slot lists, by level
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * creates and starts a timing wheel
+     * @param tick the resolution of the wheel; timers expire at the first tick after their deadline
+     */
+    public TimingWheel(long tick, TimeUnit unit) {
+        this.tickMillis = Math.max(1, unit.toMillis(tick));
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "nodekeeper-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * runs the task after the delay
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduleAt(task, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
+    /**
+     * runs the task at the deadline; a deadline in the past runs the task at the next tick
+     * @param deadline milliseconds since the epoch
+     */
+    public Timeout scheduleAt(Runnable task, long deadline) {
+        Timeout timeout = new Timeout(task, deadline);
+        synchronized (this) {
+            long ticks = (deadline - start + tickMillis - 1) / tickMillis;
+            timeout.tick = Math.max(currentTick + 1, ticks);
+            add(timeout);
+            size++;
+            notifyAll();
+        }
+        return timeout;
+    }
+
+    /**
+     * cancels a timer
+     * @return false if the timer already expired or has been cancelled
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        if(timeout.slot == null) return false;
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of pending timers
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * stops the wheel, pending timers are not run
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while(running) {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            try {
+                synchronized (this) {
+                    long now = (System.currentTimeMillis() - start) / tickMillis;
+                    if(size == 0) {
+                        //nothing to move or expire, jump to the current tick
+                        currentTick = Math.max(currentTick, now);
+                        wait();
+                        continue;
+                    }
+                    if(currentTick >= now) {
+                        wait(Math.max(1, start + (currentTick + 1) * tickMillis - System.currentTimeMillis()));
+                        continue;
+                    }
+                    while(currentTick < now) {
+                        advance(expired);
+                    }
+                }
+            } catch (InterruptedException e) {
+                if(!running) return;
+            }
+            for(Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    log.error("timer task failed", e);
+                }
+            }
+        }
+    }
+
+    //moves to the next tick, collects the timers of the tick
+    private void advance(List<Timeout> expired) {
+        currentTick++;
+        //cascade the higher level slots whose range starts now, highest first
+        for(int level = LEVELS - 1; level > 0; level--) {
+            if((currentTick & ((1L << (BITS * level)) - 1)) != 0) continue;
+            int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+            Timeout timeout = wheels[level][index];
+            wheels[level][index] = null;
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = timeout.next = null;
+                timeout.slot = null;
+                add(timeout);
+                timeout = next;
+            }
+        }
+        int index = (int) (currentTick & MASK);
+        Timeout timeout = wheels[0][index];
+        wheels[0][index] = null;
+        while(timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.slot = null;
+            timeout.expired = true;
+            expired.add(timeout);
+            size--;
+            timeout = next;
+        }
+    }
+
+    private void add(Timeout timeout) {
+        if(timeout.tick - currentTick > MAX_DELTA) timeout.tick = currentTick + MAX_DELTA;
+        long diff = timeout.tick ^ currentTick;
+        int level = diff == 0 ? 0 : Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(diff)) / BITS);
+        int index = (int) ((timeout.tick >>> (BITS * level)) & MASK);
+        Timeout[] slot = wheels[level];
+        timeout.slot = slot;
+        timeout.index = index;
+        timeout.prev = null;
+        timeout.next = slot[index];
+        if(slot[index] != null) slot[index].prev = timeout;
+        slot[index] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if(timeout.prev != null) timeout.prev.next = timeout.next;
+        else timeout.slot[timeout.index] = timeout.next;
+        if(timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.slot = null;
+    }
+}
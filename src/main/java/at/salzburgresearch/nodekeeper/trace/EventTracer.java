@@ -0,0 +1,295 @@
+package at.salzburgresearch.nodekeeper.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sampling tracer for node events. A sampled event gets a trace id and a root span; the stages that handle it (fetch,
+ * decode, listeners, rules, bindings, conditions, actions, writes) are recorded as child spans of the span that is
+ * current on the thread. A write of a traced event registers itself as the cause of the next event on its path, so the
+ * cascaded event joins the trace of its cause, with a <i>queue</i> span for the time between the write and the start of
+ * the event. Events that are not sampled cost one thread local lookup per stage.
+ * <p/>
+ * Finished spans are kept in a bounded buffer and can be exported with {@link #writeJson(java.io.Writer)} in the
+ * Zipkin v2 JSON format, which is read by Zipkin, Jaeger and most trace viewers.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class EventTracer {
+
+    public static final String SERVICE_NAME = "nodekeeper";
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    //a cause that did not produce an event within this time is forgotten (e.g. the write did not change anything)
+    private static final long CAUSE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_CAUSES = 10000;
+
+    private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+    private final ConcurrentHashMap<String,Span> causes = new ConcurrentHashMap<String, Span>();
+
+    private final ArrayDeque<Span> spans = new ArrayDeque<Span>();
+    private final AtomicLong dropped = new AtomicLong();
+    private int capacity = DEFAULT_CAPACITY;
+
+    private volatile double sampleRate;
+
+    //maps nano time to microseconds since the epoch
+    private final long baseNanos = System.nanoTime();
+    private final long baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+    /**
+     * creates a tracer that samples no event
+     */
+    public EventTracer() {
+        this(0);
+    }
+
+    /**
+     * @param sampleRate the fraction of events that are traced, between 0 and 1
+     */
+    public EventTracer(double sampleRate) {
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * sets the fraction of events that are traced, between 0 (none, the default) and 1 (all). Events that are caused by
+     * a traced event are always traced.
+     */
+    public void setSampleRate(double sampleRate) {
+        if(sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException(String.format("sample rate %s is not between 0 and 1", sampleRate));
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * sets the number of finished spans that are kept; if the buffer is full, the oldest spans are dropped
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        while(spans.size() > capacity) {
+            spans.removeFirst();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts the root span of an event on the current thread. If another span is current, the event is part of its
+     * trace and a child span is started instead. If the event has been caused by a traced write, it joins the trace of
+     * the write. Otherwise the event is sampled.
+     * @param name the name of the span
+     * @param path the path of the node of the event
+     * @return the span or null if the event is not traced
+     */
+    public Span startTrace(String name, String path) {
+        Span parent = current.get();
+        if(parent != null) return start(parent, name).tag("path", path);
+
+        Span cause = causes.isEmpty() ? null : causes.remove(path);
+        long now = System.nanoTime();
+        long written = cause != null ? written(cause, now) : 0;
+        if(cause != null && now - written < CAUSE_TIMEOUT) {
+            //the time between the write and the event: the delivery of the watch and the queue of the event thread
+            Span queue = new Span(cause.getTraceId(), nextId(), cause.getId(), "queue", null, written, micros(written));
+            queue.endNanos = now;
+            record(queue);
+            return open(new Span(cause.getTraceId(), nextId(), queue.getId(), name, null, now, micros(now))).tag("path", path);
+        }
+
+        double rate = sampleRate;
+        if(rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate) return null;
+        return open(new Span(nextId(), nextId(), 0, name, null, now, micros(now))).tag("path", path);
+    }
+
+    /**
+     * starts a child of the current span on this thread
+     * @return the span or null if the current event is not traced
+     */
+    public Span start(String name) {
+        Span parent = current.get();
+        return parent == null ? null : start(parent, name);
+    }
+
+    /**
+     * starts a child of the current span on this thread that does not become the current span, e.g. one of several
+     * operations of a batch
+     * @return the span or null if the current event is not traced
+     */
+    public Span child(String name) {
+        Span parent = current.get();
+        if(parent == null) return null;
+        long now = System.nanoTime();
+        return new Span(parent.getTraceId(), nextId(), parent.getId(), name, parent, now, micros(now));
+    }
+
+    /**
+     * @return the current span of this thread or null
+     */
+    public Span current() {
+        return current.get();
+    }
+
+    /**
+     * finishes the span; if it is the current span, its parent becomes the current span. A finished root span always
+     * ends the trace on this thread. Null is ignored.
+     */
+    public void finish(Span span) {
+        if(span == null) return;
+        span.endNanos = System.nanoTime();
+        if(span.parent == null) current.remove();
+        else if(current.get() == span) current.set(span.parent);
+        record(span);
+    }
+
+    /**
+     * registers a write span as the cause of the next event on the path
+     */
+    public void caused(String path, Span write) {
+        if(write == null) return;
+        if(causes.size() >= MAX_CAUSES) expireCauses();
+        causes.put(path, write);
+    }
+
+    /**
+     * @return the number of spans that have been dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the finished spans in the order they finished
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    public synchronized void clear() {
+        spans.clear();
+        causes.clear();
+        dropped.set(0);
+    }
+
+    /**
+     * writes the finished spans as a Zipkin v2 JSON array, timestamps and durations in microseconds
+     */
+    public void writeJson(Writer writer) throws IOException {
+        List<Span> spans = getSpans();
+        writer.write("[");
+        for(int i = 0; i < spans.size(); i++) {
+            Span span = spans.get(i);
+            if(i > 0) writer.write(",");
+            writer.write("\n{\"traceId\":\"");
+            writer.write(hex(span.getTraceId()));
+            writer.write("\",\"id\":\"");
+            writer.write(hex(span.getId()));
+            writer.write("\"");
+            if(span.getParentId() != 0) {
+                writer.write(",\"parentId\":\"");
+                writer.write(hex(span.getParentId()));
+                writer.write("\"");
+            }
+            writer.write(",\"name\":");
+            writer.write(quote(span.getName()));
+            writer.write(",\"timestamp\":");
+            writer.write(String.valueOf(span.getTimestamp()));
+            writer.write(",\"duration\":");
+            writer.write(String.valueOf(span.getDuration()));
+            writer.write(",\"localEndpoint\":{\"serviceName\":\"" + SERVICE_NAME + "\"}");
+            Map<String,String> tags = span.getTags();
+            if(!tags.isEmpty()) {
+                writer.write(",\"tags\":{");
+                boolean first = true;
+                for(Map.Entry<String,String> tag : tags.entrySet()) {
+                    if(!first) writer.write(",");
+                    writer.write(quote(tag.getKey()));
+                    writer.write(":");
+                    writer.write(quote(tag.getValue()));
+                    first = false;
+                }
+                writer.write("}");
+            }
+            writer.write("}");
+        }
+        writer.write("\n]\n");
+        writer.flush();
+    }
+
+    private Span start(Span parent, String name) {
+        long now = System.nanoTime();
+        return open(new Span(parent.getTraceId(), nextId(), parent.getId(), name, parent, now, micros(now)));
+    }
+
+    private Span open(Span span) {
+        current.set(span);
+        return span;
+    }
+
+    private synchronized void record(Span span) {
+        if(capacity <= 0) return;
+        if(spans.size() >= capacity) {
+            spans.removeFirst();
+            dropped.incrementAndGet();
+        }
+        spans.addLast(span);
+    }
+
+    private void expireCauses() {
+        long now = System.nanoTime();
+        for(Map.Entry<String,Span> cause : causes.entrySet()) {
+            if(now - written(cause.getValue(), now) >= CAUSE_TIMEOUT) causes.remove(cause.getKey(), cause.getValue());
+        }
+        if(causes.size() >= MAX_CAUSES) causes.clear();
+    }
+
+    //the end of a write, a write that is not finished yet is finished now
+    private static long written(Span write, long now) {
+        return write.isFinished() ? write.endNanos : now;
+    }
+
+    private long micros(long nanos) {
+        return baseMicros + (nanos - baseNanos) / 1000;
+    }
+
+    private static long nextId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while(id == 0);
+        return id;
+    }
+
+    static String hex(long id) {
+        return String.format("%016x", id);
+    }
+
+    private static String quote(String value) {
+        StringBuilder b = new StringBuilder(value.length() + 2);
+        b.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': b.append("\\\""); break;
+                case '\\': b.append("\\\\"); break;
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                case '\t': b.append("\\t"); break;
+                default:
+                    if(c < 0x20) b.append(String.format("\\u%04x", (int) c));
+                    else b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+}
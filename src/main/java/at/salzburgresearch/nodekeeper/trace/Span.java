@@ -0,0 +1,96 @@
+package at.salzburgresearch.nodekeeper.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed stage of a traced event, e.g. the fetch of the node data or the conditions of a rule. The spans of an event
+ * and of the events it caused share the trace id and form a tree via the parent ids.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class Span {
+
+    private final long traceId;
+    private final long id;
+    private final long parentId;
+    private final String name;
+
+    //the span that is current on the thread when this span is finished
+    final Span parent;
+
+    final long startNanos;
+    long endNanos = -1;
+
+    private final long timestamp;
+    private final Map<String,String> tags = new LinkedHashMap<String, String>();
+
+    Span(long traceId, long id, long parentId, String name, Span parent, long startNanos, long timestamp) {
+        this.traceId = traceId;
+        this.id = id;
+        this.parentId = parentId;
+        this.name = name;
+        this.parent = parent;
+        this.startNanos = startNanos;
+        this.timestamp = timestamp;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the id of the parent span or 0 for the root span of a trace
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the start in microseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the duration in microseconds or -1 if the span is not finished
+     */
+    public long getDuration() {
+        return endNanos < 0 ? -1 : Math.max(0, (endNanos - startNanos) / 1000);
+    }
+
+    public boolean isFinished() {
+        return endNanos >= 0;
+    }
+
+    /**
+     * adds a tag, e.g. the path of the event or the id of a rule
+     */
+    public Span tag(String key, Object value) {
+        synchronized (tags) {
+            tags.put(key, String.valueOf(value));
+        }
+        return this;
+    }
+
+    public Map<String,String> getTags() {
+        synchronized (tags) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, String>(tags));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%016x/%016x] %s us %s", name, traceId, id, getDuration(), getTags());
+    }
+}
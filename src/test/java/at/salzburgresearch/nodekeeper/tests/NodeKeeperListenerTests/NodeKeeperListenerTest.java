@@ -197,4 +197,25 @@ public class NodeKeeperListenerTest extends NodeKeeperTest {
 
     }
 
+    @Test
+    public void testDeclinedNodes() throws NodeKeeperException, IOException, InterruptedException {
+        nodeKeeper.addListener(".*",new CountingNodeListener() {
+            @Override
+            public boolean accepts(String path) {
+                return path.startsWith("/accepted");
+            }
+        });
+        nodeKeeper.startListeners();
+
+        nodeKeeper.writeNode(new Node<String>("/accepted","one"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/declined","one"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/declined","two"),String.class);
+        nodeKeeper.deleteNode(new Node<String>("/declined"));
+        Thread.sleep(100);
+
+        assertEquals("1", data[0]);
+        assertNull(data[1]);
+        assertNull(data[2]);
+    }
+
 }
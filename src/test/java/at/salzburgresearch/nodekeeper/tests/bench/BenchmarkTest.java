@@ -0,0 +1,40 @@
+package at.salzburgresearch.nodekeeper.tests.bench;
+
+import at.salzburgresearch.nodekeeper.bench.Benchmark;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.tests.NodeKeeperTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * ...
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class BenchmarkTest extends NodeKeeperTest {
+
+    @Test
+    public void runBenchmark() throws InterruptedException, IOException, NodeKeeperException {
+        Benchmark benchmark = new Benchmark(nodeKeeper);
+        benchmark.setThreads(2);
+        benchmark.setKeys(20);
+        benchmark.setMix("50:40:10");
+        benchmark.setListeners(2);
+        benchmark.setWarmup(0);
+        benchmark.setDuration(2);
+
+        Benchmark.Result result = benchmark.run();
+        result.print(System.out);
+
+        Assert.assertTrue(result.getLatency(Benchmark.Operation.read).getCount() > 0);
+        Assert.assertTrue(result.getLatency(Benchmark.Operation.write).getCount() > 0);
+        Assert.assertTrue(result.getLatency(Benchmark.Operation.list).getCount() > 0);
+        Assert.assertTrue(result.getCallbackLatency().getCount() > 0);
+
+        //the key space is removed at the end
+        Assert.assertNull(nodeKeeper.readNode(benchmark.getBasePath(), String.class));
+    }
+
+}
@@ -0,0 +1,60 @@
+package at.salzburgresearch.nodekeeper.tests.bench;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionCompiler;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.junit.Test;
+
+/**
+ * Times a compiled function tree against the interpreted functions for a typical binding function. Not part of the
+ * unit tests, run it with the benchmark profile (<i>mvn test -Pbenchmark</i>).
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class FunctionCompilerBenchmark {
+
+    private static final int ITERATIONS = 200000;
+
+    private static final EvaluationContext context =
+            new EvaluationContext(null, new Node<String>("/devices/d1/sensors/temperature", "21.5 {1}"));
+
+    @Test
+    public void compiledBinding() throws BindingException {
+        //a typical binding: the target path is built from segments of the event path
+        Function function = f("concat", s("/processed/"), f("pathNode", s("2")), s("/"),
+                f("toUpperCase", f("currentNodeLabel")), s("/"), f("searchReplace", s("{1}:{2}"), s("value"), f("currentNodeData")));
+        Function compiled = FunctionCompiler.compile(function);
+
+        //warmup
+        for(int i = 0; i < ITERATIONS / 10; i++) {
+            function.execute(context);
+            compiled.execute(context);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            function.execute(context);
+        }
+        long interpreted = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            compiled.execute(context);
+        }
+        long direct = System.nanoTime() - start;
+
+        System.out.println(String.format("binding function: interpreted %.3f us/evaluation, compiled %.3f us/evaluation",
+                interpreted / 1000.0 / ITERATIONS, direct / 1000.0 / ITERATIONS));
+    }
+
+    private static Function f(String name, Object... params) {
+        return FunctionFactory.createFunction(name, params);
+    }
+
+    private static Function s(String value) {
+        return FunctionFactory.createFunction("staticValue", value);
+    }
+}
@@ -0,0 +1,42 @@
+package at.salzburgresearch.nodekeeper.tests.bench;
+
+import at.salzburgresearch.nodekeeper.bench.RuleBenchmark;
+import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.tests.NodeKeeperTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ...
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleBenchmarkTest extends NodeKeeperTest {
+
+    @Test
+    public void runSuite() throws InterruptedException, IOException, NodeKeeperException {
+        RuleBenchmark benchmark = new RuleBenchmark(nodeKeeper);
+        benchmark.setEvents(20);
+        benchmark.setWarmup(4);
+
+        List<RuleBenchmark.Result> results = benchmark.run(Arrays.asList(
+                new RuleBenchmark.Shape(10, 2, 3, 2, 2),
+                new RuleBenchmark.Shape(40, 4, 1, 0, 1)), System.out);
+
+        //every event fires the rules of its pattern
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0).isComplete());
+        Assert.assertEquals(100, results.get(0).getFirings());
+        Assert.assertEquals(200, results.get(1).getFirings());
+
+        Assert.assertTrue(results.get(0).getThroughput() > 0);
+        Assert.assertTrue(results.get(0).getLatency().getCount() > 0);
+        Assert.assertTrue(results.get(0).getReadsPerEvent() > 0);
+        Assert.assertEquals(0, results.get(1).getReadsPerEvent(), 0.0);
+    }
+
+}
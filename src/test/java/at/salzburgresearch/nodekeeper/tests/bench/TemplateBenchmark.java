@@ -0,0 +1,53 @@
+package at.salzburgresearch.nodekeeper.tests.bench;
+
+import at.salzburgresearch.nodekeeper.eca.Template;
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.tests.ruleEngineTests.TemplateTest;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Times the precompiled templates against the regex replacement that was used before, for rules with many bindings.
+ * Not part of the unit tests, run it with the benchmark profile (<i>mvn test -Pbenchmark</i>).
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TemplateBenchmark {
+
+    private static final int BINDINGS = 50;
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void manyBindings() throws BindingException {
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        StringBuilder arg = new StringBuilder();
+        for(int i = 0; i < BINDINGS; i++) {
+            bindings.put("binding" + i, "value" + i);
+            arg.append("/{binding").append(i).append("}");
+        }
+        String source = arg.toString();
+        Template template = Template.compile(source);
+
+        //warmup
+        for(int i = 0; i < ITERATIONS / 10; i++) {
+            TemplateTest.replace(source, bindings);
+            template.render(bindings);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            TemplateTest.replace(source, bindings);
+        }
+        long regex = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            template.render(bindings);
+        }
+        long compiled = System.nanoTime() - start;
+
+        System.out.println(String.format("%s bindings: regex %.2f us/render, template %.2f us/render",
+                BINDINGS, regex / 1000.0 / ITERATIONS, compiled / 1000.0 / ITERATIONS));
+    }
+}
@@ -1,11 +1,16 @@
 package at.salzburgresearch.nodekeeper.tests.readWrite;
 
+import at.salzburgresearch.nodekeeper.bootstrap.SnapshotEntry;
+import at.salzburgresearch.nodekeeper.bootstrap.SnapshotReader;
+import at.salzburgresearch.nodekeeper.bootstrap.SyncPlan;
 import at.salzburgresearch.nodekeeper.bootstrap.ZKBootstrap;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
 import at.salzburgresearch.nodekeeper.model.Node;
 import at.salzburgresearch.nodekeeper.tests.NodeKeeperTest;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -46,4 +51,62 @@ public class BootstrapTest extends NodeKeeperTest {
         out2.close();
     }
 
+    @Test
+    public void snapshot() throws NodeKeeperException, InterruptedException, IOException {
+        byte[] binary = new byte[]{0, 1, 2, (byte)255, 10, 13};
+
+        nodeKeeper.writeNode(new Node<String>("/snap/a", "Test"), String.class);
+        nodeKeeper.writeNode(new Node<byte[]>("/snap/a/b", binary), byte[].class);
+        nodeKeeper.writeNode(new Node<Integer>("/snap/c", 123), Integer.class);
+
+        ZKBootstrap bootstrap = new ZKBootstrap(nodeKeeper);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(4, bootstrap.writeSnapshot(out, "/", true));
+
+        SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(out.toByteArray()));
+        SnapshotEntry entry = reader.next();
+        Assert.assertEquals("/snap", entry.getPath());
+        Assert.assertNotNull(entry.getStat());
+        reader.close();
+
+        nodeKeeper.deleteNode(new Node<String>("/snap"), true);
+        Assert.assertNull(nodeKeeper.readNode("/snap/a", String.class));
+
+        Assert.assertEquals(4, bootstrap.loadSnapshot(new SnapshotReader(new ByteArrayInputStream(out.toByteArray())), false));
+
+        Assert.assertEquals("Test", nodeKeeper.readNode("/snap/a", String.class).getData());
+        Assert.assertArrayEquals(binary, nodeKeeper.readNode("/snap/a/b", byte[].class).getData());
+        Assert.assertEquals(123, (int) nodeKeeper.readNode("/snap/c", Integer.class).getData());
+    }
+
+    @Test
+    public void sync() throws NodeKeeperException, InterruptedException, IOException, URISyntaxException {
+        File file = new File(this.getClass().getResource("bootstrap.properties").toURI());
+        ZKBootstrap bootstrap = new ZKBootstrap(nodeKeeper);
+
+        SyncPlan plan = bootstrap.sync(file, "/", false, false);
+        //4 nodes of the file and their parents /my, /other and /stanbol
+        Assert.assertEquals(7, plan.getCreates());
+        Assert.assertEquals(0, plan.getUpdates());
+
+        //nothing changed, nothing to do
+        Assert.assertTrue(bootstrap.diff(file, "/", false).isEmpty());
+
+        nodeKeeper.writeNode(new Node<String>("/my/node", "Changed"), String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/extra", "Extra"), String.class);
+
+        plan = bootstrap.sync(file, "/my", true, true);
+        Assert.assertEquals(0, plan.getCreates());
+        Assert.assertEquals(1, plan.getUpdates());
+        Assert.assertEquals(1, plan.getDeletes());
+        Assert.assertEquals(1, plan.getUnchanged());
+        //dry run does not change anything
+        Assert.assertEquals("Changed", nodeKeeper.readNode("/my/node", String.class).getData());
+
+        bootstrap.sync(file, "/my", true, false);
+        Assert.assertEquals("Test", nodeKeeper.readNode("/my/node", String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/extra", String.class));
+        Assert.assertNotNull(nodeKeeper.readNode("/other/node", String.class));
+    }
+
 }
@@ -0,0 +1,47 @@
+package at.salzburgresearch.nodekeeper.tests.readWrite;
+
+import at.salzburgresearch.nodekeeper.model.JsonDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the lazy field access of json documents.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class JsonDocumentTest {
+
+    private static final String JSON = "{\"id\": \"d1\", \"status\": {\"health\": \"ok\", \"load\": 0.75, \"up\": true},\n" +
+            " \"items\": [{\"name\": \"a\\\"b\"}, {\"name\": \"\\u00e4\"}], \"count\": 42, \"note\": null, \"tags\": []}";
+
+    @Test
+    public void fields() {
+        JsonDocument document = new JsonDocument(JSON);
+        Assert.assertEquals("d1", document.get("id"));
+        Assert.assertEquals("ok", document.get("status.health"));
+        Assert.assertEquals(0.75, document.get("status.load"));
+        Assert.assertEquals(Boolean.TRUE, document.get("status.up"));
+        Assert.assertEquals(42L, document.get("count"));
+        Assert.assertEquals("a\"b", document.get("items.0.name"));
+        Assert.assertEquals("\u00e4", document.get("items.1.name"));
+        Assert.assertEquals("[]", document.get("tags"));
+
+        //null and missing fields
+        Assert.assertNull(document.get("note"));
+        Assert.assertTrue(document.contains("note"));
+        Assert.assertFalse(document.contains("status.missing"));
+        Assert.assertFalse(document.contains("items.2.name"));
+        Assert.assertFalse(document.contains("id.name"));
+    }
+
+    @Test
+    public void empty() {
+        Assert.assertFalse(new JsonDocument(new byte[0]).contains("id"));
+        Assert.assertFalse(new JsonDocument("{}").contains("id"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed() {
+        new JsonDocument("{\"id\": \"d1\" \"status\": 1}").get("status");
+    }
+}
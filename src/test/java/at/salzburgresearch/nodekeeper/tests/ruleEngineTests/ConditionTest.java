@@ -0,0 +1,126 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.Binding;
+import at.salzburgresearch.nodekeeper.eca.Condition;
+import at.salzburgresearch.nodekeeper.eca.Rule;
+import at.salzburgresearch.nodekeeper.eca.RuleCache;
+import at.salzburgresearch.nodekeeper.eca.RuleParser;
+import at.salzburgresearch.nodekeeper.eca.exception.RuleParseException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests composed conditions and the cost based evaluation order.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ConditionTest {
+
+    private static final String RULES = "<rules>\n" +
+            "    <rule name=\"composed\">\n" +
+            "        <event type=\"nodeCreated\"><param>/devices/.+</param></event>\n" +
+            "        <bindings>\n" +
+            "            <binding name=\"limit\" type=\"nodeData\"><param>/config/limit</param></binding>\n" +
+            "            <binding name=\"label\" type=\"currentNodeLabel\"/>\n" +
+            "            <binding name=\"data\" type=\"currentNodeData\"/>\n" +
+            "        </bindings>\n" +
+            "        <conditions>\n" +
+            "            <condition type=\"lowerThan\"><param>{data}</param><param>{limit}</param></condition>\n" +
+            "            <condition type=\"or\">\n" +
+            "                <condition type=\"equals\"><param>{label}</param><param>temperature</param></condition>\n" +
+            "                <condition type=\"not\">\n" +
+            "                    <condition type=\"greaterThan\"><param>{data}</param><param>100</param></condition>\n" +
+            "                </condition>\n" +
+            "            </condition>\n" +
+            "        </conditions>\n" +
+            "    </rule>\n" +
+            "</rules>";
+
+    @Test
+    public void composition() throws IOException {
+        Rule rule = parse(RULES).get(0);
+        Assert.assertEquals(2, rule.conditions.size());
+        Condition or = rule.conditions.get(1);
+        Assert.assertEquals(Condition.Type.or, or.getType());
+        Assert.assertEquals(2, or.getTerms().size());
+        Assert.assertEquals(Condition.Type.not, or.getTerms().get(1).getType());
+
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        bindings.put("label", "humidity");
+        bindings.put("data", "50");
+        Assert.assertTrue(or.execute(bindings));
+        bindings.put("data", "150");
+        Assert.assertFalse(or.execute(bindings));
+        bindings.put("label", "temperature");
+        Assert.assertTrue(or.execute(bindings));
+    }
+
+    @Test
+    public void cheapestFirst() throws IOException {
+        Rule rule = parse(RULES).get(0);
+        HashMap<String,Binding> bindings = new HashMap<String, Binding>();
+        for(Binding binding : rule.bindings) {
+            bindings.put(binding.getName(), binding);
+        }
+
+        //the comparison with the node read is tested last
+        List<Condition> ordered = Condition.order(rule.conditions, bindings);
+        Assert.assertEquals(Condition.Type.or, ordered.get(0).getType());
+        Assert.assertEquals(Condition.Type.lowerThan, ordered.get(1).getType());
+        Assert.assertTrue(ordered.get(0).getCost(bindings) < ordered.get(1).getCost(bindings));
+        Assert.assertEquals(Condition.Type.lowerThan, rule.conditions.get(0).getType());
+
+        //short-circuit: the node read binding is never touched if the cheap condition fails
+        HashMap<String,Object> values = new HashMap<String, Object>() {
+            @Override
+            public Object get(Object key) {
+                if("limit".equals(key)) Assert.fail("the node read binding should not be evaluated");
+                return super.get(key);
+            }
+        };
+        values.put("label", "humidity");
+        values.put("data", "150");
+        for(Condition condition : ordered) {
+            if(!condition.execute(values)) break;
+        }
+    }
+
+    @Test
+    public void invalidComposition() throws IOException {
+        String xml = "<rules><rule><event type=\"nodeCreated\"><param>/a</param></event><conditions>\n" +
+                "<condition type=\"not\"></condition>\n" +
+                "</conditions></rule></rules>";
+        try {
+            parse(xml);
+            Assert.fail("not needs exactly one condition");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(2, e.getLine());
+        }
+    }
+
+    @Test
+    public void cacheComposition() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "nodekeeper_rules_" + UUID.randomUUID().toString());
+        try {
+            RuleCache cache = new RuleCache(directory);
+            List<Rule> parsed = cache.load(new ByteArrayInputStream(RULES.getBytes("UTF-8")));
+            List<Rule> cached = cache.load(new ByteArrayInputStream(RULES.getBytes("UTF-8")));
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(parsed.get(0).getFingerprint(), cached.get(0).getFingerprint());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private static List<Rule> parse(String xml) throws IOException {
+        return RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+}
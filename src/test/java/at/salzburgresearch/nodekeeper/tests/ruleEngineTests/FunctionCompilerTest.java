@@ -0,0 +1,78 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import at.salzburgresearch.nodekeeper.eca.function.CompiledFunction;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionCompiler;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.model.Node;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares compiled function trees with the interpreted functions: both must return the same values. The timing is
+ * measured by {@link at.salzburgresearch.nodekeeper.tests.bench.FunctionCompilerBenchmark}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class FunctionCompilerTest {
+
+    private static final EvaluationContext context =
+            new EvaluationContext(null, new Node<String>("/devices/d1/sensors/temperature", "21.5 {1}"));
+
+    @Test
+    public void sameResults() throws BindingException {
+        Function[] functions = {
+                f("currentNodeData"),
+                f("currentNodeLabel"),
+                f("parentNode"),
+                f("pathNode", s("2")),
+                f("pathNode", s("3")),
+                f("pathNode", s("9")),
+                f("toUpperCase", f("currentNodeLabel")),
+                f("toUpperCase", s("abc")),
+                f("searchReplace", f("currentNodeData"), f("pathNode", s("2"))),
+                f("searchReplace", s("{1}-{2}-{1}"), s("ab"), s("c")),
+                f("or", f("currentNodeData"), s("x")),
+                f("or", s("x"), f("currentNodeData")),
+                f("concat", s("/a/"), f("concat", s("b/"), f("currentNodeLabel")), s("/"), f("parentNode"), s("/c")),
+                f("concat", s("a"), f("toUpperCase", s("b"))),
+                f("concat", f("pathNode", s("4")), s("_"), f("pathNode", s("2")))
+        };
+        for(Function function : functions) {
+            Assert.assertEquals(function.getSignature(), function.execute(context),
+                    FunctionCompiler.compile(function).execute(context));
+            Assert.assertEquals(function.getSignature(), FunctionCompiler.compile(function).getSignature());
+        }
+    }
+
+    @Test
+    public void constantFolding() {
+        Assert.assertTrue(((CompiledFunction) FunctionCompiler.compile(
+                f("concat", s("a"), f("toUpperCase", s("b")), s("c")))).isConstant());
+        Assert.assertTrue(((CompiledFunction) FunctionCompiler.compile(
+                f("searchReplace", s("{1}"), s("x")))).isConstant());
+        Assert.assertFalse(((CompiledFunction) FunctionCompiler.compile(
+                f("concat", s("a"), f("currentNodeLabel")))).isConstant());
+    }
+
+    @Test
+    public void compiledBinding() throws BindingException {
+        //a typical binding: the target path is built from segments of the event path
+        Function function = f("concat", s("/processed/"), f("pathNode", s("2")), s("/"),
+                f("toUpperCase", f("currentNodeLabel")), s("/"), f("searchReplace", s("{1}:{2}"), s("value"), f("currentNodeData")));
+        Function compiled = FunctionCompiler.compile(function);
+
+        Assert.assertEquals("/processed/d1/TEMPERATURE/value:21.5 {1}", compiled.execute(context));
+        Assert.assertEquals(function.execute(context), compiled.execute(context));
+    }
+
+    private static Function f(String name, Object... params) {
+        return FunctionFactory.createFunction(name, params);
+    }
+
+    private static Function s(String value) {
+        return FunctionFactory.createFunction("staticValue", value);
+    }
+}
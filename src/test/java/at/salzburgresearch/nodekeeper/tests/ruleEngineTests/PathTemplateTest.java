@@ -0,0 +1,59 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.PathTemplate;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests the path templates of the event patterns.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class PathTemplateTest {
+
+    @Test
+    public void detection() {
+        Assert.assertTrue(PathTemplate.isTemplate("/devices/{id}"));
+        Assert.assertTrue(PathTemplate.isTemplate("/devices/{id}/*"));
+        Assert.assertTrue(PathTemplate.isTemplate("/devices/*/state/**"));
+        Assert.assertTrue(PathTemplate.isTemplate("/devices/**"));
+        //regex patterns keep their meaning, a single * is a valid regex
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/*/state"));
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/*"));
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/.+"));
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/[^/]{2}"));
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/a{2}"));
+        Assert.assertFalse(PathTemplate.isTemplate("/devices/node"));
+        Assert.assertFalse(PathTemplate.isTemplate(".*"));
+    }
+
+    @Test
+    public void matching() {
+        PathTemplate template = PathTemplate.compile("/devices/{id}/sensors/{sensor}/**");
+        Assert.assertEquals(Arrays.asList("id", "sensor"), template.getCaptures());
+        Assert.assertEquals(Arrays.asList("devices"), template.getConstantSegments());
+
+        Assert.assertTrue(template.matches("/devices/d1/sensors/s1"));
+        Assert.assertTrue(template.matches("/devices/d1/sensors/s1/values/1"));
+        Assert.assertFalse(template.matches("/devices/d1/sensors"));
+        Assert.assertFalse(template.matches("/devices/d1/actors/s1"));
+        Assert.assertFalse(template.matches("/devices//sensors/s1"));
+
+        PathTemplate wildcard = PathTemplate.compile("/devices/{id}/*/state");
+        Assert.assertTrue(wildcard.matches("/devices/d1/s1/state"));
+        Assert.assertFalse(wildcard.matches("/devices/d1/s1/state/x"));
+        Assert.assertFalse(wildcard.matches("/devices/d1/s1/states"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateCapture() {
+        PathTemplate.compile("/devices/{id}/sensors/{id}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void innerGlobstar() {
+        PathTemplate.compile("/devices/**/state");
+    }
+}
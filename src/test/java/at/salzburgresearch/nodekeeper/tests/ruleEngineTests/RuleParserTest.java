@@ -0,0 +1,209 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.Action;
+import at.salzburgresearch.nodekeeper.eca.Event;
+import at.salzburgresearch.nodekeeper.eca.EventSequence;
+import at.salzburgresearch.nodekeeper.eca.Rule;
+import at.salzburgresearch.nodekeeper.eca.RuleCache;
+import at.salzburgresearch.nodekeeper.eca.RuleParser;
+import at.salzburgresearch.nodekeeper.eca.TriggerPolicy;
+import at.salzburgresearch.nodekeeper.eca.exception.RuleParseException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests the streaming rule parser and the compiled rule cache.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class RuleParserTest {
+
+    @Test
+    public void parseRules() throws IOException {
+        List<Rule> rules = RuleParser.parse(new FileInputStream("src/test/resources/rules3.xml"));
+        Assert.assertEquals(1, rules.size());
+        Assert.assertEquals(2, rules.get(0).bindings.size());
+        Assert.assertEquals("/parent/.+", rules.get(0).event.pattern);
+    }
+
+    @Test
+    public void errorLocation() throws IOException {
+        String xml = "<rules>\n" +
+                "    <rule name=\"test_rule\">\n" +
+                "        <event type=\"nodeCreated\"><param>/my/event/.+</param></event>\n" +
+                "        <conditions>\n" +
+                "            <condition type=\"equals\"><param>{a}</param></condition>\n" +
+                "        </conditions>\n" +
+                "    </rule>\n" +
+                "</rules>";
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            Assert.fail("the condition has only one parameter");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(5, e.getLine());
+        }
+    }
+
+    @Test
+    public void ruleCache() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "nodekeeper_rules_" + UUID.randomUUID().toString());
+        try {
+            RuleCache cache = new RuleCache(directory);
+
+            List<Rule> parsed = cache.load(new FileInputStream("src/test/resources/rules.xml"));
+            List<Rule> cached = cache.load(new FileInputStream("src/test/resources/rules.xml"));
+
+            Assert.assertEquals(1, cache.getMisses());
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(parsed.get(0).getFingerprint(), cached.get(0).getFingerprint());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void triggerPolicy() throws IOException {
+        String xml = "<rules>\n" +
+                "    <rule name=\"deploy\">\n" +
+                "        <event type=\"nodeCreated\"><param>/deploy/.+/.+</param></event>\n" +
+                "        <trigger type=\"debounce\" interval=\"500\" key=\"{parent}\"/>\n" +
+                "        <bindings><binding name=\"parent\" type=\"parentNode\"/></bindings>\n" +
+                "        <actions><action type=\"createUpdateNode\"><param>{parent}/done</param><param>{_count}</param></action></actions>\n" +
+                "    </rule>\n" +
+                "</rules>";
+        List<Rule> rules = RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        TriggerPolicy trigger = rules.get(0).trigger;
+        Assert.assertEquals(TriggerPolicy.Type.debounce, trigger.type);
+        Assert.assertEquals(500, trigger.interval);
+        Assert.assertEquals("{parent}", trigger.key);
+
+        //the trigger is part of the fingerprint and of the compiled rule set
+        List<Rule> plain = RuleParser.parse(new ByteArrayInputStream(xml.replaceAll("<trigger[^>]*>", "").getBytes("UTF-8")));
+        Assert.assertFalse(plain.get(0).getFingerprint().equals(rules.get(0).getFingerprint()));
+
+        File directory = new File(System.getProperty("java.io.tmpdir"), "nodekeeper_rules_" + UUID.randomUUID().toString());
+        try {
+            RuleCache cache = new RuleCache(directory);
+            cache.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            List<Rule> cached = cache.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(rules.get(0).getFingerprint(), cached.get(0).getFingerprint());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.replace("interval=\"500\"", "interval=\"soon\"").getBytes("UTF-8")));
+            Assert.fail("the interval is not a number");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(4, e.getLine());
+        }
+    }
+
+    @Test
+    public void idleEvent() throws IOException {
+        String xml = "<rules>\n" +
+                "    <rule name=\"idle\">\n" +
+                "        <event type=\"nodeIdle\" timeout=\"60000\"><param>/sensors/.+</param></event>\n" +
+                "        <actions><action type=\"expireNode\"><param>/sensors/x</param><param>1000</param></action></actions>\n" +
+                "    </rule>\n" +
+                "</rules>";
+        List<Rule> rules = RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals(Event.Type.nodeIdle, rules.get(0).event.type);
+        Assert.assertEquals(60000, rules.get(0).event.timeout);
+        Assert.assertEquals(Action.Type.expireNode, rules.get(0).actions.get(0).type);
+
+        //the timeout is part of the fingerprint
+        List<Rule> other = RuleParser.parse(new ByteArrayInputStream(xml.replace("60000", "30000").getBytes("UTF-8")));
+        Assert.assertFalse(other.get(0).getFingerprint().equals(rules.get(0).getFingerprint()));
+
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.replace(" timeout=\"60000\"", "").getBytes("UTF-8")));
+            Assert.fail("the timeout is missing");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(3, e.getLine());
+        }
+    }
+
+    @Test
+    public void sequence() throws IOException {
+        String xml = "<rules>\n" +
+                "    <rule name=\"payment\">\n" +
+                "        <sequence within=\"30000\" key=\"{name}\">\n" +
+                "            <event type=\"nodeCreated\"><param>/orders/.+</param></event>\n" +
+                "            <event type=\"nodeCreated\"><param>/payments/.+</param></event>\n" +
+                "            <absent type=\"nodeDeleted\"><param>/orders/.+</param></absent>\n" +
+                "        </sequence>\n" +
+                "        <bindings><binding name=\"name\" type=\"currentNodeLabel\"/></bindings>\n" +
+                "        <actions><action type=\"createUpdateNode\"><param>/paid/{name}</param><param>true</param></action></actions>\n" +
+                "    </rule>\n" +
+                "</rules>";
+        List<Rule> rules = RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        EventSequence sequence = rules.get(0).sequence;
+        Assert.assertEquals(2, sequence.events.size());
+        Assert.assertEquals(Event.Type.nodeDeleted, sequence.absent.type);
+        Assert.assertEquals(30000, sequence.within);
+        Assert.assertEquals("{name}", sequence.key);
+        //the rule is listed under its first event
+        Assert.assertSame(sequence.events.get(0), rules.get(0).event);
+
+        //the sequence is part of the fingerprint and of the compiled rule set
+        List<Rule> other = RuleParser.parse(new ByteArrayInputStream(xml.replace("30000", "10000").getBytes("UTF-8")));
+        Assert.assertFalse(other.get(0).getFingerprint().equals(rules.get(0).getFingerprint()));
+
+        File directory = new File(System.getProperty("java.io.tmpdir"), "nodekeeper_rules_" + UUID.randomUUID().toString());
+        try {
+            RuleCache cache = new RuleCache(directory);
+            cache.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            List<Rule> cached = cache.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(rules.get(0).getFingerprint(), cached.get(0).getFingerprint());
+            Assert.assertEquals(Event.Type.nodeDeleted, cached.get(0).sequence.absent.type);
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.replaceAll("<absent.*</absent>", "").replaceAll("<event type=\"nodeCreated\"><param>/payments/.+</param></event>", "").getBytes("UTF-8")));
+            Assert.fail("a single event without an absent event is no sequence");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(3, e.getLine());
+        }
+    }
+
+    @Test
+    public void pathTemplate() throws IOException {
+        String xml = "<rules>\n" +
+                "    <rule name=\"sensors\">\n" +
+                "        <event type=\"nodeUpdated\"><param>/devices/{id}/sensors/{sensor}</param></event>\n" +
+                "        <bindings><binding name=\"data\" type=\"currentNodeData\"/></bindings>\n" +
+                "        <actions><action type=\"createUpdateNode\"><param>/latest/{id}/{sensor}</param><param>{data}</param></action></actions>\n" +
+                "    </rule>\n" +
+                "</rules>";
+        List<Rule> rules = RuleParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals(Arrays.asList("id", "sensor"), rules.get(0).event.getTemplate().getCaptures());
+
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.replace("{sensor}</param></event>", "{id}</param></event>").getBytes("UTF-8")));
+            Assert.fail("the capture is used twice");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(3, e.getLine());
+        }
+        try {
+            RuleParser.parse(new ByteArrayInputStream(xml.replace("name=\"data\"", "name=\"id\"").getBytes("UTF-8")));
+            Assert.fail("the capture is bound twice");
+        } catch (RuleParseException e) {
+            Assert.assertEquals(2, e.getLine());
+        }
+    }
+
+}
@@ -1,20 +1,41 @@
 package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
 
 import at.salzburgresearch.nodekeeper.eca.*;
+import at.salzburgresearch.nodekeeper.eca.function.ChildAggregates;
+import at.salzburgresearch.nodekeeper.eca.function.ChildCount;
+import at.salzburgresearch.nodekeeper.eca.function.ChildMax;
+import at.salzburgresearch.nodekeeper.eca.function.ChildSum;
+import at.salzburgresearch.nodekeeper.eca.function.Concat;
+import at.salzburgresearch.nodekeeper.eca.function.EvaluationContext;
 import at.salzburgresearch.nodekeeper.eca.function.CurrentNodeData;
 import at.salzburgresearch.nodekeeper.eca.function.CurrentNodeLabel;
+import at.salzburgresearch.nodekeeper.eca.function.Function;
+import at.salzburgresearch.nodekeeper.eca.function.FunctionFactory;
+import at.salzburgresearch.nodekeeper.eca.function.NodeData;
+import at.salzburgresearch.nodekeeper.eca.function.Parent;
+import at.salzburgresearch.nodekeeper.eca.function.StaticValueFunction;
 import at.salzburgresearch.nodekeeper.exception.NodeKeeperException;
+import at.salzburgresearch.nodekeeper.model.JsonDocument;
 import at.salzburgresearch.nodekeeper.model.Node;
 import at.salzburgresearch.nodekeeper.tests.NodeKeeperTest;
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ...
@@ -204,4 +225,794 @@ public class SimpleRuleTests extends NodeKeeperTest {
         in.close();
     }
 
+    @Test
+    public void lazyBindings() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        NodeData config = new NodeData();
+        StaticValueFunction configPath = new StaticValueFunction();
+        configPath.init("/my/config");
+        config.init(configPath);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.bindings.add(new Binding("config",config,false));
+        rule.bindings.add(new Binding("unused",new CurrentNodeData(),false));
+        rule.conditions.add(new Condition(Condition.Type.equals,"{name}","node1"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}","{config}"));
+
+        nodeKeeper.writeNode(new Node<String>("/my/config","Config"),String.class);
+        ruleHandler.addRule(rule);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node2","Data"),String.class);
+        Thread.sleep(2000);
+
+        //the condition fails, so just 'name' is evaluated
+        Assert.assertEquals(1, ruleHandler.getBindingEvaluations());
+        Assert.assertEquals(2, ruleHandler.getSkippedBindingEvaluations());
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        //'unused' is never evaluated
+        Assert.assertEquals(3, ruleHandler.getBindingEvaluations());
+        Assert.assertEquals(3, ruleHandler.getSkippedBindingEvaluations());
+        Assert.assertEquals("Config", nodeKeeper.readNode("/my/action/node1",String.class).getData());
+    }
+
+    @Test
+    public void sharedReads() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        for(int i = 0; i < 3; i++) {
+            NodeData config = new NodeData();
+            StaticValueFunction configPath = new StaticValueFunction();
+            configPath.init("/my/config");
+            config.init(configPath);
+
+            Rule rule = new Rule();
+            rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+            rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+            rule.bindings.add(new Binding("config",config,false));
+            rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action" + i + "/{name}","{config}"));
+            ruleHandler.addRule(rule);
+        }
+
+        nodeKeeper.writeNode(new Node<String>("/my/config","Config"),String.class);
+        Thread.sleep(1000);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        //the config node is read once for all rules of the event
+        Assert.assertEquals(1, ruleHandler.getEvents());
+        Assert.assertEquals(1, ruleHandler.getNodeReads());
+        Assert.assertEquals(2, ruleHandler.getCachedNodeReads());
+        for(int i = 0; i < 3; i++) {
+            Assert.assertEquals("Config", nodeKeeper.readNode("/my/action" + i + "/node1",String.class).getData());
+        }
+    }
+
+    @Test
+    public void ruleNetwork() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        //rules on other paths are not tested
+        for(int i = 0; i < 50; i++) {
+            Rule rule = new Rule();
+            rule.event = new Event(Event.Type.nodeCreated,"/my/other" + i + "/.+");
+            rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/other" + i,"Data"));
+            ruleHandler.addRule(rule);
+        }
+
+        //rules with the same pattern and binding share the test and the evaluation
+        for(int i = 0; i < 3; i++) {
+            Rule rule = new Rule();
+            rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+            rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+            rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action" + i + "/{name}","Data"));
+            ruleHandler.addRule(rule);
+        }
+
+        Assert.assertEquals(51, ruleHandler.getPatternCount());
+        Assert.assertEquals(1, ruleHandler.getBindingCount());
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        Assert.assertEquals(1, ruleHandler.getPatternTests());
+        Assert.assertEquals(3, ruleHandler.getBindingEvaluations());
+        Assert.assertEquals(2, ruleHandler.getSharedBindingEvaluations());
+        for(int i = 0; i < 3; i++) {
+            Assert.assertNotNull(nodeKeeper.readNode("/my/action" + i + "/node1",String.class));
+        }
+        Assert.assertNull(nodeKeeper.readNode("/my/action/other0",String.class));
+    }
+
+    @Test
+    public void bulkActivation() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        for(int i = 0; i < 3; i++) {
+            nodeKeeper.writeNode(new Node<String>("/my/event/node" + i,"Data"),String.class);
+        }
+
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 3; i++) {
+            Rule rule = new Rule();
+            rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+            rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+            rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action" + i + "/{name}","Data"));
+            rules.add(rule);
+        }
+
+        //the first rule is activated by the traversal
+        ruleHandler.addRule(rules.get(0));
+        Thread.sleep(1000);
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action0/node2",String.class));
+        ruleHandler.resetStatistics();
+
+        //the others get the existing nodes replayed, the first rule is not fired again
+        ruleHandler.addRules(rules.subList(1, 3));
+        Assert.assertEquals(3, ruleHandler.getReplayedEvents());
+        Assert.assertEquals(6, ruleHandler.getBindingEvaluations());
+        for(int i = 1; i < 3; i++) {
+            for(int j = 0; j < 3; j++) {
+                Assert.assertNotNull(nodeKeeper.readNode("/my/action" + i + "/node" + j,String.class));
+            }
+        }
+    }
+
+    @Test
+    public void reloadRules() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler handler = new RuleHandler(nodeKeeper);
+
+        RuleSetDiff diff = handler.reloadRules(new FileInputStream("src/test/resources/rules.xml"));
+        Assert.assertEquals(1, diff.getAdded().size());
+
+        //the same rule set does not change anything
+        diff = handler.reloadRules(new FileInputStream("src/test/resources/rules.xml"));
+        Assert.assertTrue(diff.isEmpty());
+        Assert.assertEquals(1, diff.getUnchanged().size());
+
+        diff = handler.reloadRules(new FileInputStream("src/test/resources/rules2.xml"));
+        Assert.assertEquals("dataset_created_updated", diff.getAdded().get(0));
+        Assert.assertEquals("test_rule", diff.getRemoved().get(0));
+        Assert.assertEquals(1, handler.getRuleIds().size());
+    }
+
+    @Test
+    public void watchRules() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler handler = new RuleHandler(nodeKeeper);
+
+        nodeKeeper.writeNode(new Node<byte[]>("/config/rules", FileUtils.readFileToByteArray(new File("src/test/resources/rules.xml"))),byte[].class);
+        handler.watchRules("/config/rules");
+        Thread.sleep(1000);
+        Assert.assertNotNull(handler.getRule("test_rule"));
+
+        nodeKeeper.writeNode(new Node<byte[]>("/config/rules", FileUtils.readFileToByteArray(new File("src/test/resources/rules2.xml"))),byte[].class);
+        Thread.sleep(2000);
+        Assert.assertNull(handler.getRule("test_rule"));
+        Assert.assertNotNull(handler.getRule("dataset_created_updated"));
+
+        //an invalid rule set keeps the active rules
+        nodeKeeper.writeNode(new Node<byte[]>("/config/rules", "<rules".getBytes()),byte[].class);
+        Thread.sleep(2000);
+        Assert.assertNotNull(handler.getRule("dataset_created_updated"));
+    }
+
+    @Test
+    public void transactionalActions() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/a","A"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/b","B"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/a","A2"));
+        rule.actions.add(new Action(Action.Type.deleteNode,"/my/action/{name}/b"));
+        ruleHandler.addRule(rule);
+
+        //the second rule fails (the event node has children), so none of its actions is applied
+        Rule failing = new Rule();
+        failing.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        failing.actions.add(new Action(Action.Type.createUpdateNode,"/my/failed","Data"));
+        failing.actions.add(new Action(Action.Type.deleteNode,"/my/event"));
+        ruleHandler.addRule(failing);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        //all actions of a firing are one transaction, the parents are created once
+        Assert.assertEquals(1, ruleHandler.getTransactions());
+        Assert.assertEquals("A2", nodeKeeper.readNode("/my/action/node1/a",String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/action/node1/b",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/failed",String.class));
+
+        //all firings of an event in one transaction
+        ruleHandler.removeRule(failing);
+        Rule second = new Rule();
+        second.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        second.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        second.actions.add(new Action(Action.Type.createUpdateNode,"/my/second/{name}","Data"));
+        ruleHandler.addRule(second);
+        ruleHandler.setActionScope(ActionPlan.Scope.event);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node2","Data"),String.class);
+        Thread.sleep(2000);
+
+        Assert.assertEquals(1, ruleHandler.getTransactions());
+        Assert.assertEquals("A2", nodeKeeper.readNode("/my/action/node2/a",String.class).getData());
+        Assert.assertEquals("Data", nodeKeeper.readNode("/my/second/node2",String.class).getData());
+    }
+
+    @Test
+    public void unmatchedNodes() throws InterruptedException, IOException, NodeKeeperException {
+        //nodes no rule listens to exist before the listeners are started
+        nodeKeeper.writeNode(new Node<String>("/my/other/node","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/event/node0","Data"),String.class);
+
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}","Data"));
+        ruleHandler.addRule(rule);
+        Assert.assertTrue(nodeKeeper.isListening());
+
+        nodeKeeper.writeNode(new Node<String>("/my/other/node","Data2"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node0",String.class));
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node1",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/action/node",String.class));
+    }
+
+    @Test
+    public void actionsOnEventThread() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/a","A"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/b","B"));
+        ruleHandler.addRule(rule);
+        nodeKeeper.startListeners();
+        ruleHandler.resetStatistics();
+
+        //the rule fires on the zookeeper event thread, the versions of the targets are read without waiting for callbacks
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        Assert.assertEquals(1, ruleHandler.getTransactions());
+        Assert.assertEquals("A", nodeKeeper.readNode("/my/action/node1/a",String.class).getData());
+        Assert.assertEquals("B", nodeKeeper.readNode("/my/action/node1/b",String.class).getData());
+    }
+
+    @Test
+    public void prefetchReads() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        String[] names = {"unit", "limit", "owner"};
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/devices/.+/value");
+        StringBuilder data = new StringBuilder();
+        for(String name : names) {
+            //nodeData(concat(parentNode,'/<name>'))
+            Concat path = new Concat();
+            StaticValueFunction suffix = new StaticValueFunction();
+            suffix.init("/" + name);
+            path.init(new Parent(), suffix);
+            NodeData read = new NodeData();
+            read.init(path);
+            rule.bindings.add(new Binding(name,read,false));
+            data.append("{").append(name).append("}");
+        }
+        //a binding that is not referenced is not read
+        NodeData unused = new NodeData();
+        StaticValueFunction unusedPath = new StaticValueFunction();
+        unusedPath.init("/my/unused");
+        unused.init(unusedPath);
+        rule.bindings.add(new Binding("unused",unused,false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/device",data.toString()));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/unit","C"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/limit","30"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/owner","me"),String.class);
+        Thread.sleep(1000);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/value","21"),String.class);
+        Thread.sleep(2000);
+
+        //the rule fires on the event thread, which cannot wait for asynchronous reads
+        Assert.assertEquals(0, ruleHandler.getPrefetchedReads());
+        Assert.assertEquals(3, ruleHandler.getNodeReads());
+        Assert.assertEquals("C30me", nodeKeeper.readNode("/my/action/device",String.class).getData());
+
+        //on any other thread the reads are sent together before the first one is needed
+        EvaluationContext context = new EvaluationContext(nodeKeeper, new Node<String>("/my/devices/d1/value","21"));
+        for(String name : names) {
+            context.prefetch("/my/devices/d1/" + name, String.class);
+        }
+        context.prefetch("/my/devices/d1/missing", String.class);
+        Assert.assertEquals(4, context.getPrefetches());
+        Assert.assertEquals("C", context.readData("/my/devices/d1/unit", String.class));
+        Assert.assertEquals("30", context.readData("/my/devices/d1/limit", String.class));
+        Assert.assertEquals("me", context.readData("/my/devices/d1/owner", String.class));
+        Assert.assertNull(context.readData("/my/devices/d1/missing", String.class));
+        Assert.assertEquals(4, context.getReads());
+    }
+
+    @Test
+    public void profiler() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule conditional = new Rule();
+        conditional.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        conditional.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        conditional.conditions.add(new Condition(Condition.Type.equals,"{name}","node1"));
+        conditional.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}","Data"));
+        ruleHandler.addRule(conditional);
+
+        Rule reading = new Rule();
+        reading.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        NodeData read = new NodeData();
+        StaticValueFunction path = new StaticValueFunction();
+        path.init("/my/config");
+        read.init(path);
+        reading.bindings.add(new Binding("config",read,false));
+        reading.actions.add(new Action(Action.Type.createUpdateNode,"/my/copy","{config}"));
+        ruleHandler.addRule(reading);
+
+        nodeKeeper.writeNode(new Node<String>("/my/config","C"),String.class);
+        Thread.sleep(1000);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/event/node2","Data"),String.class);
+        Thread.sleep(2000);
+
+        RuleProfiler profiler = ruleHandler.getProfiler();
+        Assert.assertEquals(2, profiler.getRuleCount());
+        RuleProfiler.RuleProfile conditionalProfile = null, readingProfile = null;
+        for(RuleProfiler.RuleProfile profile : profiler.getProfiles()) {
+            if(profile.getBindings().containsKey("name")) conditionalProfile = profile;
+            else readingProfile = profile;
+        }
+
+        Assert.assertEquals(2, conditionalProfile.getMatches());
+        Assert.assertEquals(1, conditionalProfile.getConditionPasses());
+        Assert.assertEquals(1, conditionalProfile.getConditionFailures());
+        Assert.assertEquals(2, conditionalProfile.getBindings().get("name").getCount());
+        Assert.assertEquals(2, readingProfile.getConditionPasses());
+        Assert.assertEquals(2, readingProfile.getBindings().get("config").getCount());
+        Assert.assertEquals(0, readingProfile.getErrors());
+        Assert.assertEquals(2, profiler.getFunctions().get("nodeData").getCount());
+
+        //the rule that reads a node is the most expensive one
+        Assert.assertSame(readingProfile, profiler.getTopRules(1).get(0));
+        Assert.assertEquals(2, profiler.getTopRuleSummaries(5).length);
+
+        ruleHandler.resetStatistics();
+        Assert.assertEquals(0, readingProfile.getMatches());
+        Assert.assertEquals(0, profiler.getFunctions().get("nodeData").getCount());
+
+        ruleHandler.removeRule(reading);
+        Assert.assertEquals(1, profiler.getRuleCount());
+    }
+
+    @Test
+    public void tracing() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule first = new Rule();
+        first.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        first.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        first.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}","Data"));
+        ruleHandler.addRule(first);
+
+        //fired by the action of the first rule
+        Rule second = new Rule();
+        second.event = new Event(Event.Type.nodeCreated,"/my/action/.+");
+        second.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        second.actions.add(new Action(Action.Type.createUpdateNode,"/my/second/{name}","Data"));
+        ruleHandler.addRule(second);
+        Thread.sleep(1000);
+
+        EventTracer tracer = new EventTracer(1);
+        nodeKeeper.setTracer(tracer);
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+        nodeKeeper.setTracer(new EventTracer());
+
+        Assert.assertEquals("Data", nodeKeeper.readNode("/my/second/node1",String.class).getData());
+        List<Span> rules = new ArrayList<Span>();
+        int queues = 0;
+        for(Span span : tracer.getSpans()) {
+            if(span.getName().equals("rule")) rules.add(span);
+            if(span.getName().equals("queue")) queues++;
+        }
+        //both rule firings are part of one trace, linked by the write of the first rule
+        Assert.assertEquals(2, rules.size());
+        Assert.assertEquals(rules.get(0).getTraceId(), rules.get(1).getTraceId());
+        Assert.assertTrue(queues >= 1);
+    }
+
+    @Test
+    public void cascadeProtection() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+        ruleHandler.setMaxCascadeDepth(3);
+
+        //a rule that updates the node it listens to
+        Rule loop = new Rule();
+        loop.event = new Event(Event.Type.nodeUpdated,"/my/counter");
+        loop.bindings.add(new Binding("data",new CurrentNodeData(),false));
+        loop.actions.add(new Action(Action.Type.createUpdateNode,"/my/counter","{data}x"));
+        ruleHandler.addRule(loop);
+
+        //a rule that creates a child of the node it listens to
+        Rule chain = new Rule();
+        chain.event = new Event(Event.Type.nodeCreated,"/my/chain(/n)+");
+        Concat child = new Concat();
+        StaticValueFunction slash = new StaticValueFunction();
+        slash.init("/");
+        StaticValueFunction suffix = new StaticValueFunction();
+        suffix.init("/n");
+        child.init(new Parent(), slash, new CurrentNodeLabel(), suffix);
+        chain.bindings.add(new Binding("child",child,false));
+        chain.actions.add(new Action(Action.Type.createUpdateNode,"{child}","Data"));
+        ruleHandler.addRule(chain);
+
+        nodeKeeper.writeNode(new Node<String>("/my/counter","A"),String.class);
+        Thread.sleep(1000);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/counter","B"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/chain/n","Data"),String.class);
+        Thread.sleep(3000);
+
+        //the loop is stopped after one firing
+        Assert.assertEquals(1, ruleHandler.getLoops());
+        Assert.assertEquals("Bx", nodeKeeper.readNode("/my/counter",String.class).getData());
+
+        //the chain is stopped at the maximum depth
+        Assert.assertEquals(1, ruleHandler.getCascadeLimits());
+        Assert.assertNotNull(nodeKeeper.readNode("/my/chain/n/n/n/n",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/chain/n/n/n/n/n",String.class));
+        Assert.assertEquals(2, ruleHandler.getDroppedActions());
+    }
+
+    @Test
+    public void cascadeOfWritesOnly() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        //expireNode writes nothing, so the next update of the node is no part of the firing's cascade
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeUpdated,"/my/sessions/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.expireNode,"/my/sessions/{name}","60000"));
+        rule.actions.add(new Action(Action.Type.deleteNode,"/my/missing/{name}"));
+        ruleHandler.addRule(rule);
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/a","Data"),String.class);
+        Thread.sleep(500);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/a","Data2"),String.class);
+        Thread.sleep(500);
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/a","Data3"),String.class);
+        Thread.sleep(500);
+
+        Assert.assertEquals(2, ruleHandler.getFirings());
+        Assert.assertEquals(0, ruleHandler.getLoops());
+    }
+
+    @Test
+    public void actionRateLimit() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+        ruleHandler.setRuleActionRate(1, 2);
+        ruleHandler.setMaxThrottleWait(0, TimeUnit.MILLISECONDS);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}","Data"));
+        ruleHandler.addRule(rule);
+        ruleHandler.resetStatistics();
+
+        for(int i = 0; i < 5; i++) {
+            nodeKeeper.writeNode(new Node<String>("/my/event/node" + i,"Data"),String.class);
+        }
+        Thread.sleep(2000);
+
+        //the burst of two actions is executed, the rest is dropped
+        Assert.assertTrue(ruleHandler.getDroppedActions() >= 2);
+        Assert.assertEquals(5, ruleHandler.getDroppedActions() + ruleHandler.getTransactions());
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node0",String.class));
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node1",String.class));
+    }
+
+    @Test
+    public void actionRateLimitPerFiring() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+        ruleHandler.setRuleActionRate(0.1, 3);
+        ruleHandler.setMaxThrottleWait(0, TimeUnit.MILLISECONDS);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/event/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/a","A"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/action/{name}/b","B"));
+        ruleHandler.addRule(rule);
+        ruleHandler.resetStatistics();
+
+        nodeKeeper.writeNode(new Node<String>("/my/event/node0","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/event/node1","Data"),String.class);
+        Thread.sleep(2000);
+
+        //the second firing finds one of two tokens and is dropped as a whole
+        Assert.assertEquals(2, ruleHandler.getDroppedActions());
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node0/a",String.class));
+        Assert.assertNotNull(nodeKeeper.readNode("/my/action/node0/b",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/action/node1/a",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/action/node1/b",String.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxThrottleWaitLimit() throws InterruptedException, IOException, NodeKeeperException {
+        new RuleHandler(nodeKeeper).setMaxThrottleWait(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void debounceTrigger() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/deploy/[^/]+/.+");
+        rule.trigger = new TriggerPolicy(TriggerPolicy.Type.debounce, 500, "{parent}");
+        rule.bindings.add(new Binding("parent",new Parent(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/done{parent}","{_count}"));
+        ruleHandler.addRule(rule);
+        ruleHandler.resetStatistics();
+
+        for(int i = 0; i < 20; i++) {
+            nodeKeeper.writeNode(new Node<String>("/my/deploy/a/node" + i,"Data"),String.class);
+        }
+        for(int i = 0; i < 5; i++) {
+            nodeKeeper.writeNode(new Node<String>("/my/deploy/b/node" + i,"Data"),String.class);
+        }
+        Thread.sleep(3000);
+
+        //one firing per parent after the burst
+        Assert.assertEquals(25, ruleHandler.getWindowedEvents());
+        Assert.assertEquals(2, ruleHandler.getWindowFirings());
+        Assert.assertEquals("20", nodeKeeper.readNode("/my/done/my/deploy/a",String.class).getData());
+        Assert.assertEquals("5", nodeKeeper.readNode("/my/done/my/deploy/b",String.class).getData());
+    }
+
+    @Test
+    public void idleEvent() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeIdle,"/my/sensors/.+");
+        rule.event.timeout = 1000;
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/idle/{name}","idle"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/sensors/a","1"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/sensors/b","1"),String.class);
+        Thread.sleep(600);
+        nodeKeeper.writeNode(new Node<String>("/my/sensors/a","2"),String.class);
+        Thread.sleep(700);
+
+        //b is idle, a has been updated in the meantime
+        Assert.assertEquals("idle", nodeKeeper.readNode("/my/idle/b",String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/idle/a",String.class));
+
+        Thread.sleep(1000);
+        Assert.assertEquals("idle", nodeKeeper.readNode("/my/idle/a",String.class).getData());
+        //one firing per idle period
+        Assert.assertEquals(2, ruleHandler.getIdleEvents());
+        Assert.assertEquals(0, ruleHandler.getIdleTimers());
+    }
+
+    @Test
+    public void expireNode() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreated,"/my/sessions/.+");
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.expireNode,"/my/sessions/{name}","1000"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/a","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/b","Data"),String.class);
+        Thread.sleep(600);
+        Assert.assertEquals(1000, nodeKeeper.getTimeToLive("/my/sessions/a"));
+        //an update restarts the time to live
+        nodeKeeper.writeNode(new Node<String>("/my/sessions/a","Data2"),String.class);
+        Thread.sleep(800);
+
+        Assert.assertNotNull(nodeKeeper.readNode("/my/sessions/a",String.class));
+        Assert.assertNull(nodeKeeper.readNode("/my/sessions/b",String.class));
+        Assert.assertEquals(-1, nodeKeeper.getTimeToLive("/my/sessions/b"));
+
+        Thread.sleep(1000);
+        Assert.assertNull(nodeKeeper.readNode("/my/sessions/a",String.class));
+        Assert.assertFalse(nodeKeeper.getKnownPaths().contains("/my/sessions/a"));
+    }
+
+    @Test
+    public void childAggregates() throws InterruptedException, IOException, NodeKeeperException {
+        nodeKeeper.writeNode(new Node<String>("/my/readings/a","5"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/readings/b","7"),String.class);
+
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.childrenChanged,"/my/readings");
+        rule.bindings.add(new Binding("count",function(new ChildCount(),"/my/readings"),false));
+        rule.bindings.add(new Binding("sum",function(new ChildSum(),"/my/readings"),false));
+        rule.bindings.add(new Binding("max",function(new ChildMax(),"/my/readings"),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/stats/readings","{count} {sum} {max}"));
+        ruleHandler.addRule(rule);
+        Thread.sleep(500);
+
+        nodeKeeper.writeNode(new Node<String>("/my/readings/c","11"),String.class);
+        Thread.sleep(500);
+        Assert.assertEquals("3 23 11", nodeKeeper.readNode("/my/stats/readings",String.class).getData());
+
+        nodeKeeper.writeNode(new Node<String>("/my/readings/b","2"),String.class);
+        nodeKeeper.deleteNode(new Node<String>("/my/readings/c"));
+        Thread.sleep(500);
+        Assert.assertEquals("2 7 5", nodeKeeper.readNode("/my/stats/readings",String.class).getData());
+        Assert.assertEquals(3, ruleHandler.getChildrenEvents());
+
+        //an update that does not change an aggregate is no event
+        nodeKeeper.writeNode(new Node<String>("/my/readings/b","2"),String.class);
+        Thread.sleep(500);
+        Assert.assertEquals(3, ruleHandler.getChildrenEvents());
+
+        ChildAggregates.Aggregate aggregate = ChildAggregates.get(nodeKeeper).get("/my/readings");
+        Assert.assertEquals(2, aggregate.getCount());
+        Assert.assertEquals(2L, aggregate.getMin());
+
+        //the aggregates are forgotten once no rule needs them
+        ruleHandler.removeRule(rule);
+        Assert.assertFalse(ChildAggregates.get(nodeKeeper).isTracked("/my/readings"));
+    }
+
+    @Test
+    public void sequence() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.sequence = new EventSequence(Arrays.asList(
+                new Event(Event.Type.nodeCreated,"/my/orders/.+"),
+                new Event(Event.Type.nodeCreated,"/my/payments/.+")), null, 1000, "{name}");
+        rule.event = rule.sequence.events.get(0);
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/paid/{name}","true"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/orders/a","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/orders/b","Data"),String.class);
+        //a payment without an order and a payment out of order do not match
+        nodeKeeper.writeNode(new Node<String>("/my/payments/c","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/payments/a","Data"),String.class);
+        Thread.sleep(500);
+        Assert.assertEquals("true", nodeKeeper.readNode("/my/paid/a",String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/paid/c",String.class));
+        Assert.assertEquals(1, ruleHandler.getPartialMatches());
+
+        //the window of b is over
+        Thread.sleep(1000);
+        nodeKeeper.writeNode(new Node<String>("/my/payments/b","Data"),String.class);
+        Thread.sleep(500);
+        Assert.assertNull(nodeKeeper.readNode("/my/paid/b",String.class));
+        Assert.assertEquals(1, ruleHandler.getSequenceMatches());
+        Assert.assertEquals(0, ruleHandler.getPartialMatches());
+    }
+
+    @Test
+    public void absence() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.sequence = new EventSequence(Collections.singletonList(new Event(Event.Type.nodeDeleted,"/my/services/.+")),
+                new Event(Event.Type.nodeCreated,"/my/services/.+"), 1000, "{name}");
+        rule.event = rule.sequence.events.get(0);
+        rule.bindings.add(new Binding("name",new CurrentNodeLabel(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/down/{name}","down"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/services/a","Data"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/services/b","Data"),String.class);
+        Thread.sleep(500);
+        nodeKeeper.deleteNode(new Node<String>("/my/services/a"));
+        nodeKeeper.deleteNode(new Node<String>("/my/services/b"));
+        Thread.sleep(300);
+        //b is recreated within the window, a is not
+        nodeKeeper.writeNode(new Node<String>("/my/services/b","Data"),String.class);
+        Thread.sleep(500);
+        Assert.assertNull(nodeKeeper.readNode("/my/down/a",String.class));
+
+        Thread.sleep(1000);
+        Assert.assertEquals("down", nodeKeeper.readNode("/my/down/a",String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/down/b",String.class));
+        Assert.assertEquals(1, ruleHandler.getSequenceMatches());
+    }
+
+    @Test
+    public void pathTemplate() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreatedUpdated,"/my/devices/{id}/sensors/{sensor}/**");
+        rule.bindings.add(new Binding("data",new CurrentNodeData(),false));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/latest/{id}/{sensor}","{data}"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/sensors/temp","20"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1/sensors/temp/raw","21"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d2/actors/valve","open"),String.class);
+        Thread.sleep(500);
+
+        Assert.assertEquals("21", nodeKeeper.readNode("/my/latest/d1/temp",String.class).getData());
+        Assert.assertNull(nodeKeeper.readNode("/my/latest/d2/valve",String.class));
+        //the captures are no binding evaluations
+        Assert.assertEquals(2, ruleHandler.getBindingEvaluations());
+    }
+
+    @Test
+    public void jsonField() throws InterruptedException, IOException, NodeKeeperException {
+        RuleHandler ruleHandler = new RuleHandler(nodeKeeper);
+
+        Rule rule = new Rule();
+        rule.event = new Event(Event.Type.nodeCreatedUpdated,"/my/devices/{id}");
+        rule.event.nodeType = JsonDocument.class;
+        rule.bindings.add(new Binding("health",FunctionFactory.createFunction("field",value("status.health")),true));
+        rule.conditions.add(new Condition(Condition.Type.notEquals,"{health}","ok"));
+        rule.actions.add(new Action(Action.Type.createUpdateNode,"/my/alerts/{id}","{health}"));
+        ruleHandler.addRule(rule);
+
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d1","{\"status\": {\"health\": \"ok\", \"load\": 1}}"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d2","{\"status\": {\"health\": \"degraded\"}}"),String.class);
+        nodeKeeper.writeNode(new Node<String>("/my/devices/d3","{\"status\": {}}"),String.class);
+        Thread.sleep(500);
+
+        Assert.assertNull(nodeKeeper.readNode("/my/alerts/d1",String.class));
+        Assert.assertEquals("degraded", nodeKeeper.readNode("/my/alerts/d2",String.class).getData());
+        //the field is missing and the binding is strict
+        Assert.assertNull(nodeKeeper.readNode("/my/alerts/d3",String.class));
+        Assert.assertEquals("ok", nodeKeeper.readNode("/my/devices/d1",JsonDocument.class).getData().get("status.health"));
+    }
+
+    private static Function value(String value) {
+        StaticValueFunction function = new StaticValueFunction();
+        function.init(value);
+        return function;
+    }
+
+    private static Function function(Function function, String parent) {
+        StaticValueFunction param = new StaticValueFunction();
+        param.init(parent);
+        function.init(param);
+        return function;
+    }
+
 }
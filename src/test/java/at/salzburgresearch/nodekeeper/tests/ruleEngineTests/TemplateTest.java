@@ -0,0 +1,68 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.Binding;
+import at.salzburgresearch.nodekeeper.eca.Template;
+import at.salzburgresearch.nodekeeper.eca.exception.BindingException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Compares the precompiled templates with the regex replacement that was used before; the timing is measured by
+ * {@link at.salzburgresearch.nodekeeper.tests.bench.TemplateBenchmark}.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TemplateTest {
+
+    private static final int BINDINGS = 50;
+
+    @Test
+    public void renderSpecialCharacters() throws BindingException {
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        bindings.put("a", "$1 \\ {b}");
+        bindings.put("b", "B");
+
+        Assert.assertEquals("/x/$1 \\ {b}/B/{c}", Template.compile("/x/{a}/{b}/{c}").render(bindings));
+        Assert.assertEquals("{BB}", Template.compile("{{b}{b}}").render(bindings));
+
+        BindingException e = new BindingException("failed");
+        bindings.put("c", e);
+        Assert.assertEquals("/x/" + Binding.DEFAULT_BINDING, Template.compile("/x/{c}").render(bindings));
+    }
+
+    @Test(expected = BindingException.class)
+    public void renderStrictBinding() throws BindingException {
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        BindingException e = new BindingException("failed");
+        e.setStrict(true);
+        bindings.put("c", e);
+        Template.compile("/x/{c}").render(bindings);
+    }
+
+    @Test
+    public void manyBindings() throws BindingException {
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        StringBuilder arg = new StringBuilder();
+        for(int i = 0; i < BINDINGS; i++) {
+            bindings.put("binding" + i, "value" + i);
+            arg.append("/{binding").append(i).append("}");
+        }
+        String source = arg.toString();
+        Template template = Template.compile(source);
+
+        Assert.assertEquals(replace(source, bindings), template.render(bindings));
+    }
+
+    /**
+     * the regex replacement that was used before the templates
+     */
+    public static String replace(String arg, HashMap<String,Object> bindings) {
+        for(String name : bindings.keySet()) {
+            arg = arg.replaceAll("\\{" + name + "\\}", (String) bindings.get(name));
+        }
+        return arg;
+    }
+
+}
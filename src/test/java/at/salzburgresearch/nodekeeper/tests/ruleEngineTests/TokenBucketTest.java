@@ -0,0 +1,67 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.TokenBucket;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the token bucket of the action rate limits.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void burst() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+        for(int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, bucket.take(0));
+        }
+        //no token and no wait allowed
+        Assert.assertEquals(-1, bucket.take(0));
+        bucket.giveBack();
+        Assert.assertEquals(0, bucket.take(0));
+    }
+
+    @Test
+    public void takeAllOrNone() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+        Assert.assertEquals(0, bucket.take(2, 0));
+        //one token is left, none of the two is taken
+        Assert.assertEquals(-1, bucket.take(2, 0));
+        Assert.assertEquals(0, bucket.take(1, 0));
+        bucket.giveBack(2);
+        Assert.assertEquals(0, bucket.take(2, 0));
+        //the missing tokens are reserved together
+        long wait = bucket.take(2, TimeUnit.SECONDS.toNanos(3));
+        Assert.assertTrue(wait > TimeUnit.SECONDS.toNanos(1) && wait <= TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void waitForToken() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        Assert.assertEquals(0, bucket.take(0));
+        //the next token comes in about 100 ms
+        long wait = bucket.take(TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        //the token has been reserved, the following one comes in about 200 ms
+        Assert.assertEquals(-1, bucket.take(TimeUnit.MILLISECONDS.toNanos(150)));
+        Assert.assertTrue(bucket.take(TimeUnit.MILLISECONDS.toNanos(250)) > TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void refill() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        Assert.assertEquals(0, bucket.take(0));
+        Assert.assertEquals(-1, bucket.take(0));
+        Thread.sleep(50);
+        Assert.assertEquals(0, bucket.take(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalid() {
+        new TokenBucket(0, 1);
+    }
+}
@@ -0,0 +1,51 @@
+package at.salzburgresearch.nodekeeper.tests.ruleEngineTests;
+
+import at.salzburgresearch.nodekeeper.eca.Condition;
+import at.salzburgresearch.nodekeeper.eca.Value;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Tests value typing and typed condition evaluation.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class ValueTest {
+
+    @Test
+    public void parse() {
+        Assert.assertEquals(Value.Type.LONG, Value.parse("42").getType());
+        Assert.assertEquals(Long.MIN_VALUE, Value.parse("-9223372036854775808").asLong());
+        Assert.assertEquals(Value.Type.DOUBLE, Value.parse("9223372036854775808").getType());
+        Assert.assertEquals(Value.Type.DOUBLE, Value.parse("-1.5e3").getType());
+        Assert.assertEquals(Value.Type.BOOLEAN, Value.parse("true").getType());
+        Assert.assertEquals(Value.Type.STRING, Value.parse("12abc").getType());
+        Assert.assertEquals(Value.Type.STRING, Value.parse("-").getType());
+        Assert.assertEquals(Value.Type.STRING, Value.parse("1e").getType());
+        Assert.assertEquals(Value.Type.STRING, Value.parse("").getType());
+        Assert.assertEquals(Value.Type.LONG, Value.of(7).getType());
+        Assert.assertEquals(Value.Type.BYTES, Value.of(new byte[]{1}).getType());
+    }
+
+    @Test
+    public void conditions() {
+        HashMap<String,Object> bindings = new HashMap<String, Object>();
+        bindings.put("big", 5000000000L);
+        bindings.put("count", "7");
+        bindings.put("ratio", 0.5d);
+        bindings.put("name", "abc");
+
+        //beyond int range
+        Assert.assertTrue(new Condition(Condition.Type.greaterThan, "{big}", "2147483647").execute(bindings));
+        Assert.assertTrue(new Condition(Condition.Type.equals, "{count}", "7").execute(bindings));
+        Assert.assertTrue(new Condition(Condition.Type.lowerThan, "{count}", "10").execute(bindings));
+        Assert.assertTrue(new Condition(Condition.Type.lowerThan, "{ratio}", "1").execute(bindings));
+        Assert.assertTrue(new Condition(Condition.Type.equals, "{name}", "abc").execute(bindings));
+        Assert.assertTrue(new Condition(Condition.Type.equals, "x{count}", "x7").execute(bindings));
+        //strings are still compared by length
+        Assert.assertTrue(new Condition(Condition.Type.greaterThan, "{name}", "ab").execute(bindings));
+        Assert.assertFalse(new Condition(Condition.Type.equals, "{name}", "{count}").execute(bindings));
+    }
+}
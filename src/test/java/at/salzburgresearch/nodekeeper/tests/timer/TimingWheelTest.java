@@ -0,0 +1,129 @@
+package at.salzburgresearch.nodekeeper.tests.timer;
+
+import at.salzburgresearch.nodekeeper.timer.TimingWheel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests ordering, cancelling and the cascade of long delays of the timing wheel.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void ordering() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS);
+        try {
+            final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch done = new CountDownLatch(3);
+            for(final int delay : new int[]{300, 100, 200}) {
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        fired.add(delay);
+                        done.countDown();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertEquals(3, wheel.size());
+            Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(100, (int) fired.get(0));
+            Assert.assertEquals(200, (int) fired.get(1));
+            Assert.assertEquals(300, (int) fired.get(2));
+            Assert.assertEquals(0, wheel.size());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void notBeforeDeadline() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS);
+        try {
+            final long[] fired = new long[1];
+            final CountDownLatch done = new CountDownLatch(1);
+            TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired[0] = System.currentTimeMillis();
+                    done.countDown();
+                }
+            }, 150, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+            Assert.assertTrue(fired[0] >= timeout.getDeadline());
+            Assert.assertTrue(timeout.isExpired());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS);
+        try {
+            final AtomicInteger fired = new AtomicInteger();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    fired.incrementAndGet();
+                }
+            };
+            TimingWheel.Timeout cancelled = wheel.schedule(task, 100, TimeUnit.MILLISECONDS);
+            wheel.schedule(task, 100, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(wheel.cancel(cancelled));
+            Assert.assertFalse(wheel.cancel(cancelled));
+            Thread.sleep(400);
+            Assert.assertEquals(1, fired.get());
+            Assert.assertFalse(cancelled.isExpired());
+            Assert.assertEquals(0, wheel.size());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void cascade() throws InterruptedException {
+        //1ms ticks, so the delays span several levels of the wheel
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        try {
+            final AtomicInteger fired = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(1);
+            int timers = 10000;
+            for(int i = 0; i < timers; i++) {
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        fired.incrementAndGet();
+                    }
+                }, 50 + (i % 5000), TimeUnit.MILLISECONDS);
+            }
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            }, 5100, TimeUnit.MILLISECONDS);
+            //far timers are kept, but do not fire
+            TimingWheel.Timeout far = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.incrementAndGet();
+                }
+            }, 1, TimeUnit.DAYS);
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(timers, fired.get());
+            Assert.assertEquals(1, wheel.size());
+            Assert.assertTrue(wheel.cancel(far));
+        } finally {
+            wheel.stop();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package at.salzburgresearch.nodekeeper.tests.trace;
+
+import at.salzburgresearch.nodekeeper.trace.EventTracer;
+import at.salzburgresearch.nodekeeper.trace.Span;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Tests sampling, span trees, cascade links and the json export of the event tracer.
+ * <p/>
+ * Author: Thomas Kurz (tkurz@apache.org)
+ */
+public class EventTracerTest {
+
+    @Test
+    public void sampling() {
+        EventTracer tracer = new EventTracer();
+        Assert.assertNull(tracer.startTrace("event", "/a"));
+        Assert.assertNull(tracer.start("fetch"));
+        Assert.assertNull(tracer.current());
+
+        tracer.setSampleRate(1);
+        Span span = tracer.startTrace("event", "/a");
+        Assert.assertNotNull(span);
+        tracer.finish(span);
+        Assert.assertNull(tracer.current());
+        Assert.assertEquals(1, tracer.getSpans().size());
+    }
+
+    @Test
+    public void spanTree() {
+        EventTracer tracer = new EventTracer(1);
+        Span root = tracer.startTrace("event", "/a");
+        Span handle = tracer.startTrace("handle", "/a");
+        Span fetch = tracer.start("fetch");
+        tracer.finish(fetch);
+        Span write1 = tracer.child("write");
+        Span write2 = tracer.child("write");
+        Assert.assertSame(handle, tracer.current());
+        tracer.finish(write1);
+        tracer.finish(write2);
+        tracer.finish(handle);
+        Assert.assertSame(root, tracer.current());
+        tracer.finish(root);
+        Assert.assertNull(tracer.current());
+
+        Assert.assertEquals(0, root.getParentId());
+        Assert.assertEquals(root.getId(), handle.getParentId());
+        Assert.assertEquals(handle.getId(), fetch.getParentId());
+        Assert.assertEquals(handle.getId(), write1.getParentId());
+        Assert.assertEquals(handle.getId(), write2.getParentId());
+        for(Span span : tracer.getSpans()) {
+            Assert.assertEquals(root.getTraceId(), span.getTraceId());
+            Assert.assertTrue(span.getDuration() >= 0);
+        }
+    }
+
+    @Test
+    public void cascade() {
+        EventTracer tracer = new EventTracer(1);
+        Span root = tracer.startTrace("event", "/a");
+        Span write = tracer.start("write");
+        tracer.caused("/b", write);
+        tracer.finish(write);
+        tracer.finish(root);
+
+        //the cascaded event is traced even if it would not be sampled
+        tracer.setSampleRate(0);
+        Span cascaded = tracer.startTrace("event", "/b");
+        Assert.assertNotNull(cascaded);
+        tracer.finish(cascaded);
+        Assert.assertEquals(root.getTraceId(), cascaded.getTraceId());
+
+        //event <- queue <- write
+        Span queue = null;
+        for(Span span : tracer.getSpans()) {
+            if(span.getName().equals("queue")) queue = span;
+        }
+        Assert.assertNotNull(queue);
+        Assert.assertEquals(write.getId(), queue.getParentId());
+        Assert.assertEquals(queue.getId(), cascaded.getParentId());
+
+        //a cause is used once
+        Assert.assertNull(tracer.startTrace("event", "/b"));
+    }
+
+    @Test
+    public void exportJson() throws IOException {
+        EventTracer tracer = new EventTracer(1);
+        Span root = tracer.startTrace("event", "/a\"b");
+        root.tag("rule", "line\nbreak");
+        tracer.finish(root);
+
+        StringWriter writer = new StringWriter();
+        tracer.writeJson(writer);
+        String json = writer.toString().trim();
+        Assert.assertTrue(json.startsWith("[") && json.endsWith("]"));
+        Assert.assertTrue(json.contains(String.format("\"traceId\":\"%016x\"", root.getTraceId())));
+        Assert.assertTrue(json.contains("\"name\":\"event\""));
+        Assert.assertTrue(json.contains("\"path\":\"/a\\\"b\""));
+        Assert.assertTrue(json.contains("\"rule\":\"line\\nbreak\""));
+        Assert.assertTrue(json.contains("\"localEndpoint\":{\"serviceName\":\"nodekeeper\"}"));
+        Assert.assertFalse(json.contains("parentId"));
+    }
+
+    @Test
+    public void capacity() {
+        EventTracer tracer = new EventTracer(1);
+        tracer.setCapacity(2);
+        for(int i = 0; i < 5; i++) {
+            tracer.finish(tracer.startTrace("event", "/a"));
+        }
+        List<Span> spans = tracer.getSpans();
+        Assert.assertEquals(2, spans.size());
+        Assert.assertEquals(3, tracer.getDropped());
+    }
+}